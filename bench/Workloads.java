@@ -0,0 +1,379 @@
+import java.util.Random;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+public class Workloads {
+
+	// The work measured by the JMH benchmarks in bench/benchmarks, and the
+	// expressions they measure it on.  JMH won't generate code for benchmarks
+	// in the default package, and a class in a package can't name the
+	// classes here (which are all in the default package), so the benchmarks
+	// look these methods up by reflection in their setup, and then only call
+	// them through java.util.function interfaces: the calls are monomorphic,
+	// and inlined, so they cost nothing in the measurement.
+	//
+	// A corpus is a set of generated expressions of one shape:
+	//
+	//   short    a few operands:                   v3 * 7 + v1
+	//   long     a flat chain of 32 operands:      v0 + v5 * 3 - v2 % 7 + ...
+	//   deep     parentheses nested 12 deep:       v1 - (v4 * (2 - (v0 ...)))
+	//   assign   assignments, += etc., ++ and --:  v2 += ((v0 = v3 - 4) * (v1++ - 7))
+	//
+	// over a given number of variables, v0 .. v<n-1>, all defined in the
+	// symbols() table.  Divisors are numbers from 1 to 9, so no expression
+	// divides by zero.  The operators of the chains and the nesting come
+	// from a mix:
+	//
+	//   uniform          + - * / % equally often
+	//   additive         only + and -
+	//   multiplicative   * / % four times in five
+	//   assignment       as uniform, but half the operands are assignments:
+	//                    (v3 = 7), (v1 += v0), v2++, --v5
+	//
+	// The uniform corpora are the same as before there were mixes, so their
+	// results can be compared with older ones.
+
+	public static final String[] SHAPES = { "short", "long", "deep", "assign" };
+
+	public static final String[] MIXES = { "uniform", "additive", "multiplicative", "assignment" };
+
+	public static String[] corpus(String shape, String mix, int count, int variables, long seed) {
+		if (!java.util.Arrays.asList(MIXES).contains(mix)) {
+			throw new IllegalArgumentException("Unknown mix: " + mix);
+		}
+		Random random = new Random(seed);
+		String[] lines = new String[count];
+		for (int i = 0; i < count; i++) {
+			StringBuilder line = new StringBuilder();
+			switch (shape) {
+				case "short":
+					chain(line, random, 2 + random.nextInt(3), variables, mix);
+					break;
+				case "long":
+					chain(line, random, 32, variables, mix);
+					break;
+				case "deep":
+					nest(line, random, 12, variables, mix);
+					break;
+				case "assign":
+					assignment(line, random, 3, variables, mix);
+					break;
+				default:
+					throw new IllegalArgumentException("Unknown shape: " + shape);
+			}
+			lines[i] = line.toString();
+		}
+		return lines;
+	}
+
+	private static void operand(StringBuilder line, Random random, int variables, String mix) {
+		if (mix.equals("assignment") && random.nextBoolean()) {
+			String target = "v" + random.nextInt(variables);
+			switch (random.nextInt(4)) {
+				case 0:
+					line.append('(').append(target).append(" = ");
+					operand(line, random, variables, "uniform");
+					line.append(')');
+					break;
+				case 1:
+					line.append('(').append(target).append(" += ");
+					operand(line, random, variables, "uniform");
+					line.append(')');
+					break;
+				case 2:
+					line.append(target).append(random.nextBoolean() ? "++" : "--");
+					break;
+				default:
+					line.append(random.nextBoolean() ? "++" : "--").append(target);
+					break;
+			}
+		} else if (random.nextInt(3) == 0) {
+			line.append(random.nextInt(100));
+		} else {
+			line.append('v').append(random.nextInt(variables));
+		}
+	}
+
+	private static void operator(StringBuilder line, Random random, String mix) {
+		// An operator of the mix and, for / and %, its (non-zero) divisor.
+		int operator;
+		switch (mix) {
+			case "additive":
+				operator = random.nextInt(2);
+				break;
+			case "multiplicative":
+				operator = (random.nextInt(5) == 0) ? random.nextInt(2) : 2 + random.nextInt(3);
+				break;
+			default:
+				operator = random.nextInt(5);
+				break;
+		}
+		switch (operator) {
+			case 0:  line.append(" + "); break;
+			case 1:  line.append(" - "); break;
+			case 2:  line.append(" * "); break;
+			case 3:  line.append(" / ").append(1 + random.nextInt(9)); break;
+			default: line.append(" % ").append(1 + random.nextInt(9)); break;
+		}
+	}
+
+	private static void chain(StringBuilder line, Random random, int operands, int variables, String mix) {
+		operand(line, random, variables, mix);
+		for (int i = 1; i < operands; i++) {
+			int length = line.length();
+			operator(line, random, mix);
+			if (line.length() == length + 3) {
+				operand(line, random, variables, mix);	// Not after a divisor
+			}
+		}
+	}
+
+	private static void nest(StringBuilder line, Random random, int depth, int variables, String mix) {
+		if (depth == 0) {
+			operand(line, random, variables, mix);
+			return;
+		}
+		operand(line, random, variables, mix);
+		switch (mix) {
+			case "additive":
+				line.append(random.nextBoolean() ? " - (" : " + (");
+				break;
+			case "multiplicative":
+				line.append(random.nextInt(5) == 0 ? " - (" : " * (");
+				break;
+			default:
+				line.append(random.nextBoolean() ? " - (" : " * (");
+				break;
+		}
+		nest(line, random, depth - 1, variables, mix);
+		line.append(')');
+	}
+
+	private static void assignment(StringBuilder line, Random random, int depth, int variables, String mix) {
+		String target = "v" + random.nextInt(variables);
+		String[] assignments = { " = ", " += ", " -= ", " *= " };
+		switch (depth == 0 ? 3 : random.nextInt(4)) {
+			case 0:
+				line.append(target).append(assignments[random.nextInt(assignments.length)]);
+				nested(line, random, depth - 1, variables, mix);
+				break;
+			case 1:
+				line.append('(').append(target).append(" = ");
+				chain(line, random, 2, variables, mix);
+				line.append(") * ");
+				nested(line, random, depth - 1, variables, mix);
+				break;
+			case 2:
+				line.append(random.nextBoolean() ? "++" : "--").append(target).append(" + ");
+				nested(line, random, depth - 1, variables, mix);
+				break;
+			default:
+				line.append(target).append(random.nextBoolean() ? "++" : "--").append(" - ");
+				chain(line, random, 2, variables, mix);
+				break;
+		}
+	}
+
+	private static void nested(StringBuilder line, Random random, int depth, int variables, String mix) {
+		// In parentheses, since the parser groups assignments to the left.
+		line.append('(');
+		assignment(line, random, depth, variables, mix);
+		line.append(')');
+	}
+
+	public static IntValueHashMap symbols(int variables) {
+		// A table defining every variable of a corpus.
+		IntValueHashMap symbols = new IntValueHashMap();
+		for (int v = 0; v < variables; v++) {
+			symbols.add("v" + v, 3 * v + 1);
+		}
+		return symbols;
+	}
+
+
+	// The work.  Each function is one operation of a benchmark, and returns
+	// something that depends on all of it, for the benchmark to consume.
+
+	public static ToIntFunction<String> scanner() {
+		// Scans a line to the end, with one scanner reset for each line.
+		ExpressionScanner scanner = new ExpressionScanner("");
+		return line -> {
+			scanner.reset(line);
+			int tokens = 0;
+			while (scanner.advance() != Token.Kind.END) {
+				tokens++;
+			}
+			return tokens;
+		};
+	}
+
+	public static ToIntFunction<String> tokenizer() {
+		// Scans a line with next(), which makes a Token for each.
+		return line -> {
+			ExpressionScanner scanner = new ExpressionScanner(line);
+			int tokens = 0;
+			while (scanner.hasNext()) {
+				scanner.next();
+				tokens++;
+			}
+			return tokens;
+		};
+	}
+
+	public static Function<String, Object> parser() {
+		// Parses a line (with no cache, so every line is parsed).
+		ExpressionParser parser = new ExpressionParser();
+		return line -> {
+			try {
+				return parser.parse(line);
+			} catch (ExpressionParser.SyntaxError | ExpressionTree.NotAVariable | ExpressionTree.UndefinedVariable e) {
+				throw new IllegalStateException(line, e);
+			}
+		};
+	}
+
+	public static Function<String, Object> precedenceParser() {
+		// The same with PrecedenceParser, which doesn't recurse.
+		PrecedenceParser parser = new PrecedenceParser();
+		return line -> {
+			try {
+				return parser.parse(line);
+			} catch (ExpressionParser.SyntaxError | ExpressionTree.NotAVariable e) {
+				throw new IllegalStateException(line, e);
+			}
+		};
+	}
+
+	public static Object[] trees(String[] lines) {
+		Function<String, Object> parser = parser();
+		Object[] trees = new Object[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			trees[i] = parser.apply(lines[i]);
+		}
+		return trees;
+	}
+
+	public static ToIntFunction<Object> evaluator(int variables) {
+		// Evaluates a tree against a table of the variables.  (The assign
+		// shape and the assignment mix change the values, but never define
+		// or remove any.)
+		IntValueHashMap symbols = symbols(variables);
+		return tree -> {
+			try {
+				return ((ExpressionTree.Node) tree).evaluate(symbols);
+			} catch (ExpressionTree.UndefinedVariable e) {
+				throw new IllegalStateException(e);
+			}
+		};
+	}
+
+	public static ToIntFunction<String> rpnEvaluator(int variables) {
+		// Evaluates the RPN text of a tree (as Node.format() writes it).
+		IntValueHashMap symbols = symbols(variables);
+		RpnEvaluator evaluator = new RpnEvaluator();
+		return rpn -> {
+			try {
+				return evaluator.evaluate(rpn, symbols);
+			} catch (ExpressionTree.NotAVariable | ExpressionTree.UndefinedVariable e) {
+				throw new IllegalStateException(e);
+			}
+		};
+	}
+
+	public static String[] rpn(Object[] trees) {
+		String[] rpn = new String[trees.length];
+		for (int i = 0; i < trees.length; i++) {
+			rpn[i] = ((ExpressionTree.Node) trees[i]).format();
+		}
+		return rpn;
+	}
+
+
+	// The hash maps, filled with size keys "k0" .. "k<size-1>" (each key
+	// mapping to its number).
+
+	public static String[] keys(String prefix, int size) {
+		String[] keys = new String[size];
+		for (int i = 0; i < size; i++) {
+			keys[i] = prefix + i;
+			keys[i].hashCode();	// Cached, as for a variable's name
+		}
+		return keys;
+	}
+
+	public static ToIntFunction<String> linearProbingFind(int size) {
+		// Returns the value of the key, or -1.
+		LinearProbingHashMap<String, Integer> map = new LinearProbingHashMap<>();
+		String[] keys = keys("k", size);
+		for (int i = 0; i < size; i++) {
+			map.add(keys[i], i);
+		}
+		return key -> {
+			Integer value = map.find(key);
+			return (value == null) ? -1 : value;
+		};
+	}
+
+	public static ToIntFunction<String> linearProbingAdd(int size) {
+		// Replaces the value of the key, and returns the size.
+		LinearProbingHashMap<String, Integer> map = new LinearProbingHashMap<>();
+		String[] keys = keys("k", size);
+		for (int i = 0; i < size; i++) {
+			map.add(keys[i], i);
+		}
+		return key -> {
+			map.add(key, key.length());
+			return map.size();
+		};
+	}
+
+	public static ToIntFunction<String> intValueFind(int size) {
+		IntValueHashMap map = new IntValueHashMap();
+		String[] keys = keys("k", size);
+		for (int i = 0; i < size; i++) {
+			map.add(keys[i], i);
+		}
+		return key -> map.find(key, -1);
+	}
+
+	public static ToIntFunction<String> intValueMerge(int size) {
+		// Adds one to the value of the key (as x++ does).
+		IntValueHashMap map = new IntValueHashMap();
+		String[] keys = keys("k", size);
+		for (int i = 0; i < size; i++) {
+			map.add(keys[i], i);
+		}
+		return key -> map.merge(key, 1, Integer::sum);
+	}
+
+
+	// A main program that prints a few expressions of each shape and mix,
+	// and checks that every expression of the corpora parses and evaluates.
+
+	public static void main(String[] args) {
+		for (String shape : SHAPES) {
+			for (String mix : MIXES) {
+				System.out.println(shape + ", " + mix + ":");
+				for (String line : corpus(shape, mix, 3, 16, 1)) {
+					System.out.println("    " + line);
+				}
+				for (int variables : new int[] { 1, 16, 256 }) {
+					String[] lines = corpus(shape, mix, 1024, variables, 42);
+					Object[] trees = trees(lines);
+					ToIntFunction<Object> evaluator = evaluator(variables);
+					ToIntFunction<String> rpnEvaluator = rpnEvaluator(variables);
+					ToIntFunction<String> scanner = scanner();
+					String[] rpn = rpn(trees);
+					long tokens = 0;
+					for (int i = 0; i < lines.length; i++) {
+						tokens += scanner.applyAsInt(lines[i]);
+						evaluator.applyAsInt(trees[i]);
+						rpnEvaluator.applyAsInt(rpn[i]);
+					}
+					System.out.printf("    %d variables: %d expressions, %.1f tokens each%n",
+						variables, lines.length, (double) tokens / lines.length);
+				}
+			}
+		}
+	}
+}
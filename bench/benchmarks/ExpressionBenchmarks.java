@@ -0,0 +1,108 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.ToIntFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class ExpressionBenchmarks {
+
+	// Scanning, parsing and evaluating the expressions of a generated corpus
+	// (see Workloads) of each shape and operator mix, over 1, 16 or 256
+	// variables.  Each operation is one expression of the corpus, taken in
+	// turn.  That is 48 corpora for each benchmark; -p picks fewer, as in
+	// -p mix=uniform -p variables=16.
+
+	private static final int COUNT = 1024;		// Expressions in a corpus
+
+	@Param({ "short", "long", "deep", "assign" })
+	public String shape;
+
+	@Param({ "uniform", "additive", "multiplicative", "assignment" })
+	public String mix;
+
+	@Param({ "1", "16", "256" })
+	public int variables;
+
+	private String[] lines;
+	private Object[] trees;
+	private String[] rpn;
+	private int next;
+
+	private ToIntFunction<String> scanner;
+	private ToIntFunction<String> tokenizer;
+	private Function<String, Object> parser;
+	private Function<String, Object> precedenceParser;
+	private ToIntFunction<Object> evaluator;
+	private ToIntFunction<String> rpnEvaluator;
+
+	@Setup
+	public void setUp() {
+		lines = WorkloadCalls.call("corpus", shape, mix, COUNT, variables, 42L);
+		trees = WorkloadCalls.call("trees", (Object) lines);
+		rpn = WorkloadCalls.call("rpn", (Object) trees);
+		scanner = WorkloadCalls.call("scanner");
+		tokenizer = WorkloadCalls.call("tokenizer");
+		parser = WorkloadCalls.call("parser");
+		precedenceParser = WorkloadCalls.call("precedenceParser");
+		evaluator = WorkloadCalls.call("evaluator", variables);
+		rpnEvaluator = WorkloadCalls.call("rpnEvaluator", variables);
+	}
+
+	private int next() {
+		return next = (next + 1) & (COUNT - 1);
+	}
+
+	@Benchmark
+	public int scan() {
+		// ExpressionScanner.advance() over a line.
+		return scanner.applyAsInt(lines[next()]);
+	}
+
+	@Benchmark
+	public int scanTokens() {
+		// ExpressionScanner.next() over a line (a Token for each).
+		return tokenizer.applyAsInt(lines[next()]);
+	}
+
+	@Benchmark
+	public Object parse() {
+		// ExpressionParser (recursive descent).
+		return parser.apply(lines[next()]);
+	}
+
+	@Benchmark
+	public Object parsePrecedence() {
+		// PrecedenceParser (explicit stacks).
+		return precedenceParser.apply(lines[next()]);
+	}
+
+	@Benchmark
+	public int evaluate() {
+		// Node.evaluate on a parsed tree.
+		return evaluator.applyAsInt(trees[next()]);
+	}
+
+	@Benchmark
+	public int evaluateRpn() {
+		// ExpressionTree.evaluate(String)'s work, on the tree's RPN.
+		return rpnEvaluator.applyAsInt(rpn[next()]);
+	}
+}
@@ -0,0 +1,87 @@
+package benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToIntFunction;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+@State(Scope.Thread)
+public class HashMapBenchmarks {
+
+	// LinearProbingHashMap<String, Integer> and IntValueHashMap (the symbol
+	// table) holding size keys: finding keys that are there and keys that
+	// aren't, replacing a value, and merging (as x++ does).  Each operation
+	// is one key, taken in turn.
+
+	@Param({ "16", "1024", "65536" })
+	public int size;
+
+	private String[] keys;		// Keys in the maps
+	private String[] missing;	// ... and keys that aren't
+	private int next;
+
+	private ToIntFunction<String> linearProbingFind;
+	private ToIntFunction<String> linearProbingAdd;
+	private ToIntFunction<String> intValueFind;
+	private ToIntFunction<String> intValueMerge;
+
+	@Setup
+	public void setUp() {
+		keys = WorkloadCalls.call("keys", "k", size);
+		missing = WorkloadCalls.call("keys", "m", size);
+		linearProbingFind = WorkloadCalls.call("linearProbingFind", size);
+		linearProbingAdd = WorkloadCalls.call("linearProbingAdd", size);
+		intValueFind = WorkloadCalls.call("intValueFind", size);
+		intValueMerge = WorkloadCalls.call("intValueMerge", size);
+	}
+
+	private int next() {
+		int i = next + 1;
+		return next = (i == size) ? 0 : i;
+	}
+
+	@Benchmark
+	public int linearProbingFindHit() {
+		return linearProbingFind.applyAsInt(keys[next()]);
+	}
+
+	@Benchmark
+	public int linearProbingFindMiss() {
+		return linearProbingFind.applyAsInt(missing[next()]);
+	}
+
+	@Benchmark
+	public int linearProbingAdd() {
+		return linearProbingAdd.applyAsInt(keys[next()]);
+	}
+
+	@Benchmark
+	public int intValueFindHit() {
+		return intValueFind.applyAsInt(keys[next()]);
+	}
+
+	@Benchmark
+	public int intValueFindMiss() {
+		return intValueFind.applyAsInt(missing[next()]);
+	}
+
+	@Benchmark
+	public int intValueMerge() {
+		return intValueMerge.applyAsInt(keys[next()]);
+	}
+}
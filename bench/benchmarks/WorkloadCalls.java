@@ -0,0 +1,31 @@
+package benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+final class WorkloadCalls {
+
+	// Calls the static methods of the Workloads class in the default
+	// package (which can't be named from here, hence the different name).
+	// Only used in setup.
+
+	private WorkloadCalls() {
+	}
+
+	@SuppressWarnings("unchecked")
+	static <T> T call(String name, Object... args) {
+		try {
+			Class<?> workloads = Class.forName("Workloads");
+			for (Method method : workloads.getMethods()) {
+				if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+					return (T) method.invoke(null, args);
+				}
+			}
+			throw new IllegalArgumentException("No workload " + name);
+		} catch (ClassNotFoundException | IllegalAccessException e) {
+			throw new IllegalStateException(e);
+		} catch (InvocationTargetException e) {
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+}
@@ -0,0 +1,376 @@
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+public class BatchRunner {
+
+	// Evaluates a file of expressions, one per line, as fast as possible.  The
+	// input is memory-mapped, and each line is scanned in place: a Bytes view
+	// of the mapped bytes is handed to a reused ExpressionScanner, so nothing
+	// is copied or decoded (a line with non-ASCII bytes in it is decoded as
+	// UTF-8 instead, so that it scans the same as it would from a String).
+	// The results, or an error with the line and column, are written one per
+	// line, as ASCII digits straight into a large buffer that is written to
+	// the output channel when it fills up.
+	//
+	// The variables assigned on one line can be used on the following lines,
+	// as in HW17_Reiss.  A file bigger than 2GB (the most that can be mapped
+	// at once) is mapped a window at a time, each starting at the beginning
+	// of a line.
+
+	public static class Bytes implements CharSequence {
+
+		// A CharSequence view of (ASCII) bytes in a ByteBuffer.  The same
+		// names turn up on line after line, so toString() keeps the Strings it
+		// has made in a small direct-mapped cache (shared with the views made
+		// by subSequence) and returns the cached String if the bytes match.
+		// That saves making the String, and also hashing it again when it is
+		// looked up in the symbol table, since a String caches its hash.
+
+		private ByteBuffer buffer;
+		private int start;
+		private int length;
+		private String[] strings;
+
+		public Bytes(ByteBuffer buffer, int start, int end) {
+			this(buffer, start, end, new String[256]);
+		}
+
+		private Bytes(ByteBuffer buffer, int start, int end, String[] strings) {
+			this.strings = strings;
+			reset(buffer, start, end);
+		}
+
+		public void reset(ByteBuffer buffer, int start, int end) {
+			this.buffer = buffer;
+			this.start = start;
+			this.length = end - start;
+		}
+
+		@Override
+		public int length() {
+			return this.length;
+		}
+
+		@Override
+		public char charAt(int index) {
+			return (char) (buffer.get(start + index) & 0xff);
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new Bytes(buffer, this.start + start, this.start + end, strings);
+		}
+
+		@Override
+		public String toString() {
+			int hash = 0;		// As String.hashCode would compute it
+			for (int i = 0; i < length; i++) {
+				hash = 31 * hash + charAt(i);
+			}
+			int index = LinearProbingHashMap.mix(hash) & (strings.length - 1);
+			String string = strings[index];
+			if (string != null && string.hashCode() == hash && contentEquals(string)) {
+				return string;
+			}
+
+			char[] chars = new char[length];
+			for (int i = 0; i < length; i++) {
+				chars[i] = charAt(i);
+			}
+			string = new String(chars);
+			strings[index] = string;
+			return string;
+		}
+
+		private boolean contentEquals(String string) {
+			if (string.length() != length) return false;
+			for (int i = 0; i < length; i++) {
+				if (string.charAt(i) != charAt(i)) return false;
+			}
+			return true;
+		}
+	}
+
+
+	private static final int WINDOW = 1 << 30;	// Bytes mapped at once
+
+	private SymbolTable symbols;
+	private ExpressionParser parser;
+	private ExpressionScanner scanner;
+	private Bytes bytes;
+	private WritableByteChannel out;
+	private ByteBuffer output;		// Results not yet written to out
+	private byte[] digits;
+	private long lines;			// Lines evaluated so far
+	private long errors;			// ... and how many of them failed
+
+
+	public BatchRunner(SymbolTable symbols, WritableByteChannel out, int outputSize) {
+		this.symbols = symbols;
+		this.parser = new ExpressionParser();
+		this.scanner = new ExpressionScanner("");
+		this.bytes = new Bytes(null, 0, 0);
+		this.out = out;
+		this.output = ByteBuffer.allocate(outputSize);
+		this.digits = new byte[11];
+		this.lines = 0;
+		this.errors = 0;
+	}
+
+	public BatchRunner(SymbolTable symbols, WritableByteChannel out) {
+		this(symbols, out, 1 << 20);
+	}
+
+	public long lines() {
+		return this.lines;
+	}
+
+	public long errors() {
+		return this.errors;
+	}
+
+
+	public void run(Path file) throws IOException {
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ)) {
+			run(in);
+		}
+	}
+
+	public void run(FileChannel in) throws IOException {
+		long size = in.size();
+		long offset = 0;		// The start of the first line not yet run
+		long window = WINDOW;
+		while (offset < size) {
+			long length = Math.min(size - offset, window);
+			MappedByteBuffer buffer = in.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			int used = run(buffer, (int) length, offset + length == size);
+			if (used == 0) {
+				// A line longer than the window: map more of it.
+				if (window == Integer.MAX_VALUE) {
+					throw new IOException("Line " + (lines + 1) + " is too long");
+				}
+				window = Math.min(2 * window, Integer.MAX_VALUE);
+			}
+			offset += used;
+		}
+		flush();
+	}
+
+	private int run(ByteBuffer buffer, int length, boolean last) throws IOException {
+
+		// Runs each complete line in the buffer (and the last line of the
+		// file even without a newline).  Returns the number of bytes used.
+
+		int start = 0;
+		boolean ascii = true;
+		for (int i = 0; i < length; i++) {
+			byte b = buffer.get(i);
+			if (b == '\n') {
+				line(buffer, start, i, ascii);
+				start = i+1;
+				ascii = true;
+			} else if (b < 0) {
+				ascii = false;
+			}
+		}
+		if (last && start < length) {
+			line(buffer, start, length, ascii);
+			start = length;
+		}
+		return start;
+	}
+
+	private void line(ByteBuffer buffer, int start, int end, boolean ascii) throws IOException {
+		lines++;
+		if (end > start && buffer.get(end-1) == '\r') end--;
+
+		CharSequence text;
+		if (ascii) {
+			bytes.reset(buffer, start, end);
+			text = bytes;
+		} else {
+			ByteBuffer slice = buffer.duplicate();
+			slice.position(start);
+			slice.limit(end);
+			text = StandardCharsets.UTF_8.decode(slice);
+		}
+
+		// Errors found while parsing are reported where the scanner is;
+		// errors in evaluating at the start of the expression.
+
+		scanner.reset(text);
+		try {
+			ExpressionTree.Node tree = parser.parse(scanner);
+			if (complete(tree)) {
+				write(tree.evaluate(symbols));
+			} else {
+				error(firstColumn(text), "Syntax error");
+			}
+		} catch (ExpressionParser.SyntaxError e) {
+			error(e.position(), "Syntax error");
+		} catch (NumberFormatException e) {
+			error(scanner.position(), "Number too large");
+		} catch (ExpressionTree.NotAVariable | ExpressionTree.UndefinedVariable e) {
+			error(firstColumn(text), e.getMessage());
+		} catch (ArithmeticException e) {
+			// Once compiled, a hot division may throw this without a message.
+			error(firstColumn(text), "Division by zero");
+		}
+	}
+
+	static boolean complete(ExpressionTree.Node node) {
+
+		// False if the tree is missing an operand, as the parser leaves it
+		// for a unary + (so "+a" and "x * +y" are syntax errors, and nothing
+		// on the line is evaluated).
+
+		while (true) {
+			if (node == null) {
+				return false;
+			} else if (node instanceof ExpressionTree.UnaryOperator) {
+				node = ((ExpressionTree.UnaryOperator) node).operand();
+			} else if (node instanceof ExpressionTree.BinaryOperator) {
+				ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+				if (!complete(op.left())) return false;
+				node = op.right();
+			} else {
+				return true;
+			}
+		}
+	}
+
+	static int firstColumn(CharSequence text) {
+		int column = 0;
+		while (column < text.length() && Character.isWhitespace(text.charAt(column))) column++;
+		return column;
+	}
+
+
+	private void write(int value) throws IOException {
+		// Writes the value in decimal, without making a String.
+		if (output.remaining() < digits.length + 1) flush();
+		long v = value;
+		if (v < 0) {
+			output.put((byte) '-');
+			v = -v;
+		}
+		int n = digits.length;
+		do {
+			digits[--n] = (byte) ('0' + v % 10);
+			v /= 10;
+		} while (v != 0);
+		output.put(digits, n, digits.length - n);
+		output.put((byte) '\n');
+	}
+
+	private void error(int position, String message) throws IOException {
+		errors++;
+		byte[] text = (error(lines, position, message) + "\n").getBytes(StandardCharsets.UTF_8);
+		for (int i = 0; i < text.length; ) {
+			if (!output.hasRemaining()) flush();
+			int n = Math.min(text.length - i, output.remaining());
+			output.put(text, i, n);
+			i += n;
+		}
+	}
+
+	static String error(long line, int position, String message) {
+		// The text reported for an error (lines and columns count from 1).
+		return "Error at line " + line + ", column " + (position + 1) + ": " + message;
+	}
+
+	public void flush() throws IOException {
+		output.flip();
+		while (output.hasRemaining()) {
+			out.write(output);
+		}
+		output.clear();
+	}
+
+
+	// A main program that runs a file of expressions, writing the results to
+	// standard output (or to a second file).  Without arguments, it times a
+	// generated file against the line-at-a-time loop of HW17_Reiss.
+
+	private static Path generate(int count) throws IOException {
+		Path file = java.nio.file.Files.createTempFile("expressions", ".txt");
+		try (java.io.BufferedWriter writer = java.nio.file.Files.newBufferedWriter(file)) {
+			writer.write("x = 1\ny = 2\ntotal = 0\n");
+			for (int i = 3; i < count; i++) {
+				switch (i % 5) {
+					case 0:  writer.write("x = " + i % 10007); break;
+					case 1:  writer.write("y += x * 3 - " + i % 101 + " % 7"); break;
+					case 2:  writer.write("(x + y) / (" + i % 1000 + " - y % 1000)"); break;
+					case 3:  writer.write("total += x++ - --y"); break;
+					default: writer.write("  total * 2 + x % (y - 40)"); break;
+				}
+				writer.write('\n');
+			}
+		}
+		return file;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0) {
+			WritableByteChannel out = (args.length > 1)
+				? FileChannel.open(Paths.get(args[1]), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)
+				: new FileOutputStream(FileDescriptor.out).getChannel();
+			BatchRunner runner = new BatchRunner(new IntValueHashMap(), out);
+			runner.run(Paths.get(args[0]));
+			out.close();
+			return;
+		}
+
+		int count = 5000000;
+		Path input = generate(count);
+		Path output = java.nio.file.Files.createTempFile("results", ".txt");
+		try {
+			for (int round = 0; round < 3; round++) {
+				long start = System.nanoTime();
+				BatchRunner runner;
+				try (FileChannel out = FileChannel.open(output, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+					runner = new BatchRunner(new IntValueHashMap(), out);
+					runner.run(input);
+				}
+				long elapsed = System.nanoTime() - start;
+				System.out.printf("batch: %d lines, %d errors, %.2f M lines/s%n",
+					runner.lines(), runner.errors(), 1e3 * runner.lines() / elapsed);
+			}
+
+			// The HW17_Reiss loop, on the first part of the file.
+
+			int lines = 200000;
+			ExpressionTree.symbols = new IntValueHashMap();
+			ExpressionParser parser = new ExpressionParser(new ExpressionParser.Cache(1000));
+			long start = System.nanoTime();
+			try (java.util.Scanner console = new java.util.Scanner(input.toFile());
+					java.io.PrintStream printer = new java.io.PrintStream(
+						new FileOutputStream(output.toFile()), true)) {
+				for (int i = 0; i < lines; i++) {
+					try {
+						printer.println(parser.parse(console.nextLine()).evaluate());
+					} catch (ExpressionParser.SyntaxError | ExpressionTree.UndefinedVariable | ArithmeticException e) {
+						printer.println("Error at position " + e.getMessage());
+					}
+				}
+			}
+			long elapsed = System.nanoTime() - start;
+			System.out.printf("Scanner/println: %d lines, %.2f M lines/s%n", lines, 1e3 * lines / elapsed);
+			ExpressionTree.symbols = new IntValueHashMap();
+		} finally {
+			java.nio.file.Files.delete(input);
+			java.nio.file.Files.delete(output);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+import java.util.Arrays;
+
+public class Binder {
+
+	// A bind/resolve pass that runs after ExpressionParser.parse.  Each distinct
+	// identifier is given an integer slot in a Frame, and every Variable in the
+	// tree is replaced by a Slot node that reads and writes the frame's int[]
+	// directly ... no hashing of the name and no boxing of the value.
+	//
+	// Whether a variable has been assigned yet is tracked by a per-slot
+	// "defined" bitmap rather than by find() returning null.
+
+	public static class Frame {
+
+		private LinearProbingHashMap<String, Integer> slots;	// Only used while binding
+		private String[] names;		// names[i] is the identifier bound to slot i
+		private int[]    values;	// values[i] is the current value of slot i
+		private long[]   defined;	// Bit i is set once slot i has been assigned
+		private int      count;		// Number of slots in use
+
+		public Frame() {
+			this.slots   = new LinearProbingHashMap<>();
+			this.names   = new String[16];
+			this.values  = new int[16];
+			this.defined = new long[1];
+			this.count   = 0;
+		}
+
+		public int size() {
+			return this.count;
+		}
+
+		public String name(int slot) {
+			return this.names[slot];
+		}
+
+		public int slot(String name) {
+
+			// Returns the slot for this name, allocating one if needed.
+
+			Integer slot = slots.find(name);
+			if (slot != null) return slot;
+
+			if (count == names.length) {
+				names = Arrays.copyOf(names, 2 * count);
+				values = Arrays.copyOf(values, 2 * count);
+			}
+			if ((count >>> 6) == defined.length) {
+				defined = Arrays.copyOf(defined, 2 * defined.length);
+			}
+			names[count] = name;
+			slots.add(name, count);
+			return count++;
+		}
+
+		public boolean isDefined(int slot) {
+			return (defined[slot >>> 6] & (1L << slot)) != 0;
+		}
+
+		public int get(int slot) throws ExpressionTree.UndefinedVariable {
+			if (!isDefined(slot)) {
+				throw new ExpressionTree.UndefinedVariable(names[slot]);
+			}
+			return values[slot];
+		}
+
+		public void set(int slot, int value) {
+			values[slot] = value;
+			defined[slot >>> 6] |= 1L << slot;
+		}
+
+		public void undefine(int slot) {
+			defined[slot >>> 6] &= ~(1L << slot);
+		}
+
+		public Integer find(String name) {
+			// The map-style lookup, for callers outside of evaluation.
+			Integer slot = slots.find(name);
+			if (slot == null || !isDefined(slot)) return null;
+			return values[slot];
+		}
+
+		public void add(String name, int value) {
+			set(slot(name), value);
+		}
+	}
+
+
+	public static class Slot extends ExpressionTree.Variable {
+
+		// A variable that has been resolved to a slot in a frame.  The frame
+		// takes the place of whatever symbol table the tree is evaluated with.
+
+		private final Frame frame;
+		private final int slot;
+
+		public Slot(String name, Frame frame) {
+			super(name);
+			this.frame = frame;
+			this.slot = frame.slot(name);
+		}
+
+		public int slot() {
+			return this.slot;
+		}
+
+		@Override
+		public int evaluate(SymbolTable symbols) throws ExpressionTree.UndefinedVariable {
+			return frame.get(slot);
+		}
+
+		@Override
+		public void update(SymbolTable symbols, int value) {
+			frame.set(slot, value);
+		}
+
+		@Override
+		public int add(SymbolTable symbols, int delta) throws ExpressionTree.UndefinedVariable {
+			int value = frame.get(slot) + delta;
+			frame.set(slot, value);
+			return value;
+		}
+
+		@Override
+		public int update(SymbolTable symbols, ExpressionTree.AssignmentOperator op)
+				throws ExpressionTree.UndefinedVariable {
+			int value = op.combine(frame.get(slot), op.right().evaluate(symbols));
+			frame.set(slot, value);
+			return value;
+		}
+	}
+
+
+	// Rewrites the tree so that every variable is bound to a slot in the
+	// frame.  Numbers are shared with the original tree; everything else
+	// is copied, so the original (unbound) tree is left as it was.
+
+	public static ExpressionTree.Node bind(ExpressionTree.Node node, Frame frame) {
+		try {
+			return rebuild(node, frame);
+		} catch (ExpressionTree.NotAVariable e) {
+			// Can't happen: the tree was already checked when it was built,
+			// and a Slot is still a Variable.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static ExpressionTree.Node rebuild(ExpressionTree.Node node, Frame frame)
+			throws ExpressionTree.NotAVariable {
+
+		if (node instanceof ExpressionTree.Variable) {
+			return new Slot(((ExpressionTree.Variable) node).name(), frame);
+
+		} else if (node instanceof ExpressionTree.UnaryOperator) {
+			ExpressionTree.UnaryOperator op = (ExpressionTree.UnaryOperator) node;
+			return ExpressionTree.unary(op.op(), rebuild(op.operand(), frame));
+
+		} else if (node instanceof ExpressionTree.BinaryOperator) {
+			ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+			ExpressionTree.Node left = rebuild(op.left(), frame);
+			ExpressionTree.Node right = rebuild(op.right(), frame);
+			return ExpressionTree.binary(op.op(), left, right);
+
+		} else {
+			return node;
+		}
+	}
+
+
+	// A main program to compare bound evaluation with the symbol table.
+
+	public static void main(String[] args) throws Exception {
+		ExpressionParser parser = new ExpressionParser();
+		String text = "x += (a + b) * (a - b) + (a * 3 + b * 5) % 7 - c++";
+		ExpressionTree.Node tree = parser.parse(text);
+
+		Frame frame = new Frame();
+		ExpressionTree.Node bound = bind(tree, frame);
+
+		int iterations = 2000000;
+		for (int round = 0; round < 3; round++) {
+			ExpressionTree.symbols = new IntValueHashMap();
+			ExpressionTree.symbols.add("a", 3);
+			ExpressionTree.symbols.add("b", -7);
+			ExpressionTree.symbols.add("c", 0);
+			ExpressionTree.symbols.add("x", 0);
+			frame.add("a", 3);
+			frame.add("b", -7);
+			frame.add("c", 0);
+			frame.add("x", 0);
+
+			long start = System.nanoTime();
+			int expected = 0;
+			for (int i = 0; i < iterations; i++) {
+				expected = tree.evaluate();
+			}
+			long hashed = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			int actual = 0;
+			for (int i = 0; i < iterations; i++) {
+				actual = bound.evaluate();
+			}
+			long slotted = System.nanoTime() - start;
+
+			System.out.printf("%s: %d / %d, symbols %.1f ns/eval, slots %.1f ns/eval%n",
+				expected == actual ? "OK" : "MISMATCH", expected, actual,
+				(double) hashed / iterations, (double) slotted / iterations);
+		}
+
+		try {
+			bind(parser.parse("y + 1"), frame).evaluate();
+		} catch (ExpressionTree.UndefinedVariable e) {
+			System.out.println(e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,739 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+public class Bytecode implements ExpressionCompiler.Code {
+
+	// An expression compiled to a flat postfix program: an int[] holding
+	// opcodes, each followed by its operand if it has one, run by a loop
+	// over a switch with an int[] operand stack.  There are no objects to
+	// chase while evaluating, just two arrays.  Variables are numbered slots
+	// (as in ExpressionCompiler), and the names of the slots are kept with
+	// the code, so a program can be written out with write() and read back
+	// in with read() without parsing the expression again.
+	//
+	//   PUSH n          push the number n
+	//   LOAD s          push the value of slot s
+	//   STORE s         set slot s to the top of the stack (leaving it there)
+	//   NEGATE, ADD, SUBTRACT, MULTIPLY, DIVIDE, MOD
+	//   PRE_INCREMENT s, PRE_DECREMENT s, POST_INCREMENT s, POST_DECREMENT s
+	//   ADD_NUMBER n ... MOD_NUMBER n        the top of the stack op n
+	//   ADD_VARIABLE s ... MOD_VARIABLE s    the top of the stack op slot s
+	//
+	// Most of the time goes in the dispatch of the switch, so an operator
+	// whose right operand is a number or a variable (x * 3, a - b) is one
+	// instruction rather than two, and the value on top of the stack is
+	// kept in a local rather than in the array.
+	//
+	// x = e is e STORE x, and x += e is LOAD x, e, ADD, STORE x (the variable
+	// is read first, as the tree does).  Evaluated against a symbol table,
+	// the slots are loaded from it first, reading a variable that isn't
+	// defined throws UndefinedVariable, and the slots that were assigned are
+	// written back even if the expression then throws, so the results and
+	// the exceptions are the same as for the tree.
+	//
+	// The operand stack and the slots used with a symbol table are allocated
+	// once, with the program, so a Bytecode must not be evaluated by two
+	// threads at once.
+
+	public static final int PUSH = 0;
+	public static final int LOAD = 1;
+	public static final int STORE = 2;
+	public static final int NEGATE = 3;
+	public static final int ADD = 4;
+	public static final int SUBTRACT = 5;
+	public static final int MULTIPLY = 6;
+	public static final int DIVIDE = 7;
+	public static final int MOD = 8;
+	public static final int PRE_INCREMENT = 9;
+	public static final int PRE_DECREMENT = 10;
+	public static final int POST_INCREMENT = 11;
+	public static final int POST_DECREMENT = 12;
+	public static final int ADD_NUMBER = 13;
+	public static final int SUBTRACT_NUMBER = 14;
+	public static final int MULTIPLY_NUMBER = 15;
+	public static final int DIVIDE_NUMBER = 16;
+	public static final int MOD_NUMBER = 17;
+	public static final int ADD_VARIABLE = 18;
+	public static final int SUBTRACT_VARIABLE = 19;
+	public static final int MULTIPLY_VARIABLE = 20;
+	public static final int DIVIDE_VARIABLE = 21;
+	public static final int MOD_VARIABLE = 22;
+
+	private static final int NUMBER_OPERAND = ADD_NUMBER - ADD;
+	private static final int VARIABLE_OPERAND = ADD_VARIABLE - ADD;
+
+	private static final String[] MNEMONICS = {
+		"PUSH", "LOAD", "STORE", "NEGATE", "ADD", "SUBTRACT", "MULTIPLY", "DIVIDE", "MOD",
+		"PRE_INCREMENT", "PRE_DECREMENT", "POST_INCREMENT", "POST_DECREMENT",
+		"ADD_NUMBER", "SUBTRACT_NUMBER", "MULTIPLY_NUMBER", "DIVIDE_NUMBER", "MOD_NUMBER",
+		"ADD_VARIABLE", "SUBTRACT_VARIABLE", "MULTIPLY_VARIABLE", "DIVIDE_VARIABLE", "MOD_VARIABLE",
+	};
+
+	private static final int MAGIC = 0x45585052;	// "EXPR"
+	private static final int VERSION = 1;
+
+	private static final byte UNDEFINED = 0;	// The states of the slots
+	private static final byte LOADED = 1;
+	private static final byte WRITTEN = 2;
+
+	private final int[] code;
+	private final String[] names;	// names[s] is the variable in slot s
+	private final int[] stack;	// The operand stack (as deep as the code needs)
+	private final int[] slots;	// The slots, when evaluating with a symbol table
+	private final byte[] states;	// ... and whether each is defined or written
+
+
+	private Bytecode(int[] code, String[] names, int depth) {
+		this.code = code;
+		this.names = names;
+		this.stack = new int[Math.max(depth, 1)];
+		this.slots = new int[names.length];
+		this.states = new byte[names.length];
+	}
+
+	public int slotCount() {
+		return this.names.length;
+	}
+
+	public String name(int slot) {
+		return this.names[slot];
+	}
+
+	public int length() {
+		// The number of ints in the program.
+		return this.code.length;
+	}
+
+
+	// Compiling a tree.
+
+	private static class Compiler {
+
+		private int[] code = new int[16];
+		private int length = 0;
+		private LinearProbingHashMap<String, Integer> slots = new LinearProbingHashMap<>();
+		private String[] names = new String[8];
+		private int count = 0;
+		private int depth = 0;
+		private int maxDepth = 0;
+
+		private void emit(int opcode, int stackChange) {
+			if (length == code.length) {
+				code = java.util.Arrays.copyOf(code, 2 * length);
+			}
+			code[length++] = opcode;
+			depth += stackChange;
+			if (depth > maxDepth) maxDepth = depth;
+		}
+
+		private void emit(int opcode, int operand, int stackChange) {
+			emit(opcode, stackChange);
+			emit(operand, 0);
+		}
+
+		private int slot(ExpressionTree.Variable variable) {
+			Integer slot = slots.find(variable.name());
+			if (slot != null) return slot;
+
+			if (count == names.length) {
+				names = java.util.Arrays.copyOf(names, 2 * count);
+			}
+			names[count] = variable.name();
+			slots.add(variable.name(), count);
+			return count++;
+		}
+
+		private void compile(ExpressionTree.Node node) {
+
+			if (node instanceof ExpressionTree.Number) {
+				emit(PUSH, ((ExpressionTree.Number) node).value(), 1);
+
+			} else if (node instanceof ExpressionTree.Variable) {
+				emit(LOAD, slot((ExpressionTree.Variable) node), 1);
+
+			} else if (node instanceof ExpressionTree.Negate) {
+				compile(((ExpressionTree.Negate) node).operand());
+				emit(NEGATE, 0);
+
+			} else if (node instanceof ExpressionTree.UnaryAssignmentOperator) {
+				int slot = slot(((ExpressionTree.UnaryAssignmentOperator) node).variable());
+				if (node instanceof ExpressionTree.PreIncrement) {
+					emit(PRE_INCREMENT, slot, 1);
+				} else if (node instanceof ExpressionTree.PreDecrement) {
+					emit(PRE_DECREMENT, slot, 1);
+				} else if (node instanceof ExpressionTree.PostIncrement) {
+					emit(POST_INCREMENT, slot, 1);
+				} else {
+					emit(POST_DECREMENT, slot, 1);
+				}
+
+			} else if (node instanceof ExpressionTree.Assign) {
+				ExpressionTree.Assign assign = (ExpressionTree.Assign) node;
+				compile(assign.right());
+				emit(STORE, slot(assign.variable()), 0);
+
+			} else if (node instanceof ExpressionTree.AssignmentOperator) {
+				ExpressionTree.AssignmentOperator op = (ExpressionTree.AssignmentOperator) node;
+				int slot = slot(op.variable());
+				emit(LOAD, slot, 1);
+				operate(arithmetic(op), op.right());
+				emit(STORE, slot, 0);
+
+			} else if (node instanceof ExpressionTree.BinaryOperator) {
+				ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+				compile(op.left());
+				operate(arithmetic(op), op.right());
+
+			} else if (node instanceof CommonSubexpressions.Dag) {
+				compile(((CommonSubexpressions.Dag) node).root());
+
+			} else if (node instanceof CommonSubexpressions.Shared) {
+				compile(((CommonSubexpressions.Shared) node).node());
+
+			} else {
+				throw new IllegalStateException("Cannot compile: " + node);
+			}
+		}
+
+		private void operate(int opcode, ExpressionTree.Node right) {
+			// Applies the operator to the top of the stack and the right operand.
+			if (right instanceof ExpressionTree.Number) {
+				emit(opcode + NUMBER_OPERAND, ((ExpressionTree.Number) right).value(), 0);
+			} else if (right instanceof ExpressionTree.Variable) {
+				emit(opcode + VARIABLE_OPERAND, slot((ExpressionTree.Variable) right), 0);
+			} else {
+				compile(right);
+				emit(opcode, -1);
+			}
+		}
+
+		private static int arithmetic(ExpressionTree.BinaryOperator op) {
+			if (op instanceof ExpressionTree.Add || op instanceof ExpressionTree.AddTo) return ADD;
+			if (op instanceof ExpressionTree.Subtract || op instanceof ExpressionTree.SubtractFrom) return SUBTRACT;
+			if (op instanceof ExpressionTree.Multiply || op instanceof ExpressionTree.MultiplyBy) return MULTIPLY;
+			if (op instanceof ExpressionTree.Divide || op instanceof ExpressionTree.DivideBy) return DIVIDE;
+			if (op instanceof ExpressionTree.Mod || op instanceof ExpressionTree.ModBy) return MOD;
+			throw new IllegalStateException("Cannot compile: " + op.format());
+		}
+	}
+
+	public static Bytecode compile(ExpressionTree.Node node) {
+		// Throws IllegalStateException if the tree is incomplete (as the
+		// parser leaves it for a unary +).
+		Compiler compiler = new Compiler();
+		compiler.compile(node);
+		return new Bytecode(java.util.Arrays.copyOf(compiler.code, compiler.length),
+			java.util.Arrays.copyOf(compiler.names, compiler.count), compiler.maxDepth);
+	}
+
+
+	// Evaluation.
+
+	private int run(int[] slots) {
+
+		// Runs the program over the slots, every one of which is taken to be
+		// defined.  This is the loop for evaluate(int[]); run(slots, states)
+		// below is the same loop with the checks for a symbol table, kept
+		// apart so that neither tests which one it is on every instruction.
+
+		int[] code = this.code;
+		int[] stack = this.stack;	// The values below the top one
+		int top = 0;
+		int value = 0;			// The value on top of the stack
+		int pc = 0;
+		int slot;
+
+		while (pc < code.length) {
+			switch (code[pc++]) {
+				case PUSH:
+					stack[top++] = value;
+					value = code[pc++];
+					break;
+				case LOAD:
+					slot = code[pc++];
+					stack[top++] = value;
+					value = slots[slot];
+					break;
+				case STORE:
+					slot = code[pc++];
+					slots[slot] = value;
+					break;
+				case NEGATE:
+					value = -value;
+					break;
+				case ADD:
+					value = stack[--top] + value;
+					break;
+				case SUBTRACT:
+					value = stack[--top] - value;
+					break;
+				case MULTIPLY:
+					value = stack[--top] * value;
+					break;
+				case DIVIDE:
+					value = stack[--top] / value;
+					break;
+				case MOD:
+					value = stack[--top] % value;
+					break;
+				case PRE_INCREMENT:
+					slot = code[pc++];
+					stack[top++] = value;
+					value = ++slots[slot];
+					break;
+				case PRE_DECREMENT:
+					slot = code[pc++];
+					stack[top++] = value;
+					value = --slots[slot];
+					break;
+				case POST_INCREMENT:
+					slot = code[pc++];
+					stack[top++] = value;
+					value = slots[slot]++;
+					break;
+				case POST_DECREMENT:
+					slot = code[pc++];
+					stack[top++] = value;
+					value = slots[slot]--;
+					break;
+				case ADD_NUMBER:
+					value += code[pc++];
+					break;
+				case SUBTRACT_NUMBER:
+					value -= code[pc++];
+					break;
+				case MULTIPLY_NUMBER:
+					value *= code[pc++];
+					break;
+				case DIVIDE_NUMBER:
+					value /= code[pc++];
+					break;
+				case MOD_NUMBER:
+					value %= code[pc++];
+					break;
+				case ADD_VARIABLE:
+					value += slots[code[pc++]];
+					break;
+				case SUBTRACT_VARIABLE:
+					value -= slots[code[pc++]];
+					break;
+				case MULTIPLY_VARIABLE:
+					value *= slots[code[pc++]];
+					break;
+				case DIVIDE_VARIABLE:
+					value /= slots[code[pc++]];
+					break;
+				default:
+					value %= slots[code[pc++]];
+					break;
+			}
+		}
+		return value;
+	}
+
+	private int run(int[] slots, byte[] states) throws ExpressionTree.UndefinedVariable {
+
+		// Runs the program over the slots for evaluate(SymbolTable): reading
+		// an UNDEFINED slot throws, and the slots that are assigned are
+		// marked as WRITTEN.
+
+		int[] code = this.code;
+		int[] stack = this.stack;	// The values below the top one
+		int top = 0;
+		int value = 0;			// The value on top of the stack
+		int pc = 0;
+		int slot;
+
+		while (pc < code.length) {
+			switch (code[pc++]) {
+				case PUSH:
+					stack[top++] = value;
+					value = code[pc++];
+					break;
+				case LOAD:
+					slot = load(code[pc++], states);
+					stack[top++] = value;
+					value = slots[slot];
+					break;
+				case STORE:
+					slot = code[pc++];
+					slots[slot] = value;
+					states[slot] = WRITTEN;
+					break;
+				case NEGATE:
+					value = -value;
+					break;
+				case ADD:
+					value = stack[--top] + value;
+					break;
+				case SUBTRACT:
+					value = stack[--top] - value;
+					break;
+				case MULTIPLY:
+					value = stack[--top] * value;
+					break;
+				case DIVIDE:
+					value = stack[--top] / value;
+					break;
+				case MOD:
+					value = stack[--top] % value;
+					break;
+				case PRE_INCREMENT:
+					slot = increment(code[pc++], states);
+					stack[top++] = value;
+					value = ++slots[slot];
+					break;
+				case PRE_DECREMENT:
+					slot = increment(code[pc++], states);
+					stack[top++] = value;
+					value = --slots[slot];
+					break;
+				case POST_INCREMENT:
+					slot = increment(code[pc++], states);
+					stack[top++] = value;
+					value = slots[slot]++;
+					break;
+				case POST_DECREMENT:
+					slot = increment(code[pc++], states);
+					stack[top++] = value;
+					value = slots[slot]--;
+					break;
+				case ADD_NUMBER:
+					value += code[pc++];
+					break;
+				case SUBTRACT_NUMBER:
+					value -= code[pc++];
+					break;
+				case MULTIPLY_NUMBER:
+					value *= code[pc++];
+					break;
+				case DIVIDE_NUMBER:
+					value /= code[pc++];
+					break;
+				case MOD_NUMBER:
+					value %= code[pc++];
+					break;
+				case ADD_VARIABLE:
+					value += slots[load(code[pc++], states)];
+					break;
+				case SUBTRACT_VARIABLE:
+					value -= slots[load(code[pc++], states)];
+					break;
+				case MULTIPLY_VARIABLE:
+					value *= slots[load(code[pc++], states)];
+					break;
+				case DIVIDE_VARIABLE:
+					value /= slots[load(code[pc++], states)];
+					break;
+				default:
+					value %= slots[load(code[pc++], states)];
+					break;
+			}
+		}
+		return value;
+	}
+
+	private int load(int slot, byte[] states) throws ExpressionTree.UndefinedVariable {
+		// Checks that a slot that is read is defined.
+		if (states[slot] == UNDEFINED) {
+			throw new ExpressionTree.UndefinedVariable(names[slot]);
+		}
+		return slot;
+	}
+
+	private int increment(int slot, byte[] states) throws ExpressionTree.UndefinedVariable {
+		// Checks the slot of a ++ or -- and marks it as written.
+		if (states[slot] == UNDEFINED) {
+			throw new ExpressionTree.UndefinedVariable(names[slot]);
+		}
+		states[slot] = WRITTEN;
+		return slot;
+	}
+
+	@Override
+	public int evaluate(int[] slots) {
+		// Evaluate using (and updating) the given slots.  The caller is
+		// responsible for having defined every slot that is read.
+		return run(slots);
+	}
+
+	public int evaluate(SymbolTable symbols) throws ExpressionTree.UndefinedVariable {
+
+		// Evaluate against a symbol table: load the slots, run the code and
+		// store the assigned variables back.  A variable that isn't defined
+		// (usually one the expression assigns) is found without catching
+		// an exception: find() with a default, and contains() only when the
+		// value is the default.
+
+		for (int i = 0; i < names.length; i++) {
+			int value = symbols.find(names[i], Integer.MIN_VALUE);
+			if (value != Integer.MIN_VALUE || symbols.contains(names[i])) {
+				slots[i] = value;
+				states[i] = LOADED;
+			} else {
+				states[i] = UNDEFINED;
+			}
+		}
+
+		try {
+			return run(slots, states);
+		} finally {
+			for (int i = 0; i < names.length; i++) {
+				if (states[i] == WRITTEN) {
+					symbols.add(names[i], slots[i]);
+				}
+			}
+		}
+	}
+
+	public int evaluate() throws ExpressionTree.UndefinedVariable {
+		return evaluate(ExpressionTree.symbols);
+	}
+
+
+	// Serialization.  The format is: magic, version, the number of slots and
+	// their names, the stack depth needed, and the length of the code and
+	// the code.  A program that is read is verified before it can be run, so
+	// bad input can't make the interpreter index outside its arrays.
+
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(names.length);
+		for (String name : names) {
+			out.writeUTF(name);
+		}
+		out.writeInt(stack.length);
+		out.writeInt(code.length);
+		for (int word : code) {
+			out.writeInt(word);
+		}
+	}
+
+	public static Bytecode read(DataInput in) throws IOException {
+		if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+			throw new IOException("Not a compiled expression");
+		}
+		int count = in.readInt();
+		if (count < 0 || count > 65536) {
+			throw new IOException("Bad slot count: " + count);
+		}
+		String[] names = new String[count];
+		for (int i = 0; i < count; i++) {
+			names[i] = in.readUTF();
+		}
+		int depth = in.readInt();
+		int length = in.readInt();
+		if (length < 0 || length > (1 << 24)) {
+			throw new IOException("Bad code length: " + length);
+		}
+		int[] code = new int[length];
+		for (int i = 0; i < length; i++) {
+			code[i] = in.readInt();
+		}
+
+		if (depth != verify(code, count)) {
+			throw new IOException("Bad stack depth: " + depth);
+		}
+		return new Bytecode(code, names, depth);
+	}
+
+	public byte[] toBytes() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			write(new DataOutputStream(bytes));
+		} catch (IOException e) {
+			throw new IllegalStateException(e);	// Not for a byte array
+		}
+		return bytes.toByteArray();
+	}
+
+	public static Bytecode fromBytes(byte[] bytes) throws IOException {
+		return read(new DataInputStream(new ByteArrayInputStream(bytes)));
+	}
+
+	private static int verify(int[] code, int slotCount) throws IOException {
+
+		// Checks that every opcode is known, every slot exists, the stack
+		// never underflows and ends with one value.  Returns the depth needed.
+
+		int depth = 0, maxDepth = 0;
+		for (int pc = 0; pc < code.length; ) {
+			int opcode = code[pc++];
+			if (opcode < PUSH || opcode > MOD_VARIABLE) {
+				throw new IOException("Bad opcode " + opcode + " at " + (pc-1));
+			}
+			if (hasOperand(opcode)) {
+				if (pc == code.length) {
+					throw new IOException("Missing operand at " + pc);
+				}
+				int operand = code[pc++];
+				boolean number = opcode == PUSH || (opcode >= ADD_NUMBER && opcode <= MOD_NUMBER);
+				if (!number && (operand < 0 || operand >= slotCount)) {
+					throw new IOException("Bad slot " + operand + " at " + (pc-1));
+				}
+			}
+			if (opcode == NEGATE || opcode == STORE || opcode >= ADD_NUMBER) {
+				if (depth < 1) throw new IOException("Stack underflow at " + (pc-1));
+			} else if (opcode >= ADD && opcode <= MOD) {
+				if (depth < 2) throw new IOException("Stack underflow at " + (pc-1));
+				depth--;
+			} else {
+				depth++;
+			}
+			maxDepth = Math.max(depth, maxDepth);
+		}
+		if (depth != 1) {
+			throw new IOException("Stack depth " + depth + " at end");
+		}
+		return maxDepth;
+	}
+
+	private static boolean hasOperand(int opcode) {
+		return opcode == PUSH || opcode == LOAD || opcode == STORE || opcode >= PRE_INCREMENT;
+	}
+
+	@Override
+	public String toString() {
+		// A listing of the program.
+		StringBuilder listing = new StringBuilder();
+		for (int pc = 0; pc < code.length; ) {
+			int opcode = code[pc++];
+			listing.append(MNEMONICS[opcode]);
+			if (opcode == PUSH || (opcode >= ADD_NUMBER && opcode <= MOD_NUMBER)) {
+				listing.append(' ').append(code[pc++]);
+			} else if (hasOperand(opcode)) {
+				listing.append(' ').append(names[code[pc++]]);
+			}
+			listing.append(pc < code.length ? "; " : "");
+		}
+		return listing.toString();
+	}
+
+
+	// A main program that checks compiled (and reloaded) programs against the
+	// tree, and compares the speed of the tree, the bytecode with a symbol
+	// table, and the bytecode over slots.
+
+	private static String result(ExpressionTree.Node tree, Bytecode code) {
+		IntValueHashMap symbols = new IntValueHashMap();
+		symbols.add("a", 3);
+		symbols.add("b", -7);
+		symbols.add("c", 100000);
+		String result;
+		try {
+			result = Integer.toString((code != null) ? code.evaluate(symbols) : tree.evaluate(symbols));
+		} catch (ExpressionTree.UndefinedVariable | ArithmeticException e) {
+			result = e.toString();
+		}
+		for (String name : new String[] { "a", "b", "c", "x", "y" }) {
+			result += " " + name + "=" + (symbols.contains(name) ? "" + symbols.find(name) : "-");
+		}
+		return result;
+	}
+
+	private static String overSlots(Bytecode code) {
+		// The result over slots, when every slot starts defined (as result()
+		// defines them), in the same form as result().
+		int[] values = { 3, -7, 100000 };
+		String[] names = { "a", "b", "c", "x", "y" };
+		int[] slots = new int[code.slotCount()];
+		for (int slot = 0; slot < slots.length; slot++) {
+			int i = java.util.Arrays.asList(names).indexOf(code.name(slot));
+			if (i < 0 || i >= values.length) return null;
+			slots[slot] = values[i];
+		}
+		String result;
+		try {
+			result = Integer.toString(code.evaluate(slots));
+		} catch (ArithmeticException e) {
+			result = e.toString();
+		}
+		for (int i = 0; i < names.length; i++) {
+			int slot = java.util.Arrays.asList(code.names).indexOf(names[i]);
+			result += " " + names[i] + "=" + (slot >= 0 ? "" + slots[slot] : i < values.length ? "" + values[i] : "-");
+		}
+		return result;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] expressions = {
+			"1 + 2 * 3",
+			"(a + b) * c % 17",
+			"-a - -b",
+			"x = a * 2",
+			"x = (y = a + 1) * y",
+			"a++ + a++ * a--",
+			"++a + --b",
+			"a += (a = 5)",
+			"a -= (b *= 3)",
+			"c /= (a %= 2)",
+			"c / (b + 7)",
+			"(y = 1) + y++",
+			"x + (x = 1)",
+			"(a = 10) + b / (c - c) + (y = 2)",
+			"x++",
+			"2147483647 + a * 65536 - 40000",
+		};
+
+		ExpressionParser parser = new ExpressionParser();
+		int failures = 0;
+		for (String expression : expressions) {
+			ExpressionTree.Node tree = parser.parse(expression);
+			Bytecode code = compile(tree);
+			Bytecode reloaded = fromBytes(code.toBytes());
+			String expected = result(tree, null);
+			String slots = overSlots(code);
+			if (!expected.equals(result(tree, code)) || !expected.equals(result(tree, reloaded))
+					|| (slots != null && !expected.equals(slots))) {
+				failures++;
+				System.out.println("FAIL " + expression + ": " + expected + " / " + result(tree, code));
+			}
+		}
+		System.out.println(failures == 0 ? "All " + expressions.length + " expressions agree" : failures + " failures");
+		if (failures > 0) {
+			System.exit(1);
+		}
+
+		ExpressionTree.Node tree = parser.parse("x = (a + b) * (a - b) + (a * 3 + b * 5) % 7 - x / 3");
+		Bytecode code = compile(tree);
+		byte[] bytes = code.toBytes();
+		System.out.println(code);
+		System.out.println(code.length() + " ints, " + bytes.length + " bytes serialized");
+
+		int iterations = 2000000;
+		for (int round = 0; round < 3; round++) {
+			long treeTime = time(tree, null, false, iterations);
+			long tableTime = time(tree, code, false, iterations);
+			long slotTime = time(tree, code, true, iterations);
+			System.out.printf("tree %.1f ns/eval, bytecode with symbols %.1f ns/eval, over slots %.1f ns/eval%n",
+				(double) treeTime / iterations, (double) tableTime / iterations, (double) slotTime / iterations);
+		}
+	}
+
+	private static long time(ExpressionTree.Node tree, Bytecode code, boolean overSlots, int iterations)
+			throws ExpressionTree.UndefinedVariable {
+		IntValueHashMap symbols = new IntValueHashMap();
+		symbols.add("a", 3);
+		symbols.add("b", -7);
+		symbols.add("x", 1);
+		int[] slots = { 3, -7, 1 };
+
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			if (code == null) {
+				tree.evaluate(symbols);
+			} else if (overSlots) {
+				code.evaluate(slots);
+			} else {
+				code.evaluate(symbols);
+			}
+		}
+		return System.nanoTime() - start;
+	}
+}
@@ -0,0 +1,411 @@
+public class CommonSubexpressions {
+
+	// A pass that finds the subtrees of an expression that are computed more
+	// than once, as a * b + c is in (a * b + c) * (a * b + c) - a * b, and
+	// turns the tree into a DAG in which each is a single Shared node that
+	// evaluates its subtree the first time it is reached in an evaluation
+	// and then just returns the same value.
+	//
+	// Subtrees are hash-consed: each pure subtree (one without assignments)
+	// gets a number that is the same for all subtrees with the same operator
+	// and the same numbers for its operands.  An assignment is a barrier: the
+	// tree is walked in the order it is evaluated, keeping a generation for
+	// each variable that is bumped whenever it is assigned (by =, += etc.,
+	// ++ or --), and a read of a variable is numbered by its name and its
+	// generation.  So in a * b + (a = 1) + a * b, the two a * b's are
+	// different, and the second is computed again after a is assigned.
+	//
+	// Since a subtree that is shared is first evaluated where the original
+	// tree would first evaluate it, it throws (an undefined variable, say)
+	// at the same point, and everything else happens in the same order.  The
+	// values of the Shared nodes are kept in a Scratch for each evaluation,
+	// not in the nodes, so a DAG (like a tree) can be evaluated by any number
+	// of threads at once, each with its own symbol table.
+
+	public static class Dag extends ExpressionTree.Node {
+
+		// The root of a DAG, which numbers its Shared nodes.
+
+		private ExpressionTree.Node root;
+		private int sharedCount;
+
+		private Dag() {
+			this.sharedCount = 0;
+		}
+
+		public ExpressionTree.Node root() {
+			return this.root;
+		}
+
+		public Scratch scratch() {
+			// Returns a new Scratch for evaluating this DAG.
+			return new Scratch(this);
+		}
+
+		@Override
+		public int evaluate(SymbolTable symbols) throws ExpressionTree.UndefinedVariable {
+			return evaluate(symbols, new Scratch(this));
+		}
+
+		public int evaluate(SymbolTable symbols, Scratch scratch) throws ExpressionTree.UndefinedVariable {
+			// Evaluates the DAG with a Scratch (from scratch()) that is
+			// kept from one evaluation to the next, so nothing is allocated.
+			if (scratch.dag != this) {
+				throw new IllegalArgumentException("Scratch is for another DAG");
+			}
+			scratch.start(symbols);
+			return root.evaluate(scratch);
+		}
+
+		@Override
+		public String format() {
+			return root.format();
+		}
+
+		@Override
+		public boolean hasSideEffects() {
+			return root.hasSideEffects();
+		}
+	}
+
+	public static class Shared extends ExpressionTree.Node {
+
+		// A subtree that is used in more than one place in the DAG.
+
+		private final ExpressionTree.Node node;
+		private final Dag dag;
+		private final int id;		// Its index in a Scratch
+
+		private Shared(ExpressionTree.Node node, Dag dag) {
+			this.node = node;
+			this.dag = dag;
+			this.id = dag.sharedCount++;
+		}
+
+		public ExpressionTree.Node node() {
+			return this.node;
+		}
+
+		@Override
+		public int evaluate(SymbolTable symbols) throws ExpressionTree.UndefinedVariable {
+			// The value from the Scratch, if this evaluation has computed it
+			// already.  Outside an evaluation of its DAG (by a TreeWalker,
+			// say) the subtree is just evaluated.
+			if (!(symbols instanceof Scratch) || ((Scratch) symbols).dag != dag) {
+				return node.evaluate(symbols);
+			}
+			Scratch scratch = (Scratch) symbols;
+			if (scratch.stamps[id] != scratch.evaluation) {
+				scratch.values[id] = node.evaluate(symbols);
+				scratch.stamps[id] = scratch.evaluation;
+			}
+			return scratch.values[id];
+		}
+
+		@Override
+		public String format() {
+			return node.format();
+		}
+	}
+
+
+	public static class Scratch implements SymbolTable {
+
+		// The values of a DAG's Shared nodes in one evaluation, each with
+		// the number of the evaluation that computed it, so they needn't be
+		// cleared for the next.  It stands in for the symbol table while the
+		// DAG is evaluated, passing every operation on to it.  A Scratch is
+		// used by one thread at a time.
+
+		private final Dag dag;
+		private final int[] values;
+		private final int[] stamps;
+		private int evaluation;
+		private SymbolTable symbols;
+
+		private Scratch(Dag dag) {
+			this.dag = dag;
+			this.values = new int[dag.sharedCount];
+			this.stamps = new int[dag.sharedCount];
+			this.evaluation = 0;
+		}
+
+		private void start(SymbolTable symbols) {
+			this.symbols = symbols;
+			if (++evaluation == 0) {
+				// Wrapped around: no stamp may match by accident.
+				java.util.Arrays.fill(stamps, 0);
+				evaluation = 1;
+			}
+		}
+
+		@Override
+		public boolean contains(String name) {
+			return symbols.contains(name);
+		}
+
+		@Override
+		public int find(String name) {
+			return symbols.find(name);
+		}
+
+		@Override
+		public int find(String name, int missing) {
+			return symbols.find(name, missing);
+		}
+
+		@Override
+		public void add(String name, int value) {
+			symbols.add(name, value);
+		}
+
+		@Override
+		public int merge(String name, int operand, java.util.function.IntBinaryOperator function) {
+			return symbols.merge(name, operand, function);
+		}
+	}
+
+
+	public static Dag eliminate(ExpressionTree.Node node) {
+		CommonSubexpressions pass = new CommonSubexpressions();
+		try {
+			pass.visit(node);			// Count the uses of each subtree
+			pass.generations = new IntValueHashMap();
+			pass.building = true;
+			pass.dag.root = pass.visit(node);	// ... and share those used more than once
+		} catch (ExpressionTree.NotAVariable e) {
+			// Can't happen: the variable of an assignment is never replaced.
+			throw new IllegalStateException(e);
+		}
+		return pass.dag;
+	}
+
+	public static int size(ExpressionTree.Node node) {
+		// The number of distinct nodes in the DAG (or tree).
+		return count(node, new java.util.IdentityHashMap<ExpressionTree.Node, Boolean>());
+	}
+
+	private static int count(ExpressionTree.Node node, java.util.IdentityHashMap<ExpressionTree.Node, Boolean> seen) {
+		if (node == null || seen.put(node, Boolean.TRUE) != null) {
+			return 0;
+		} else if (node instanceof Dag) {
+			return count(((Dag) node).root, seen);
+		} else if (node instanceof Shared) {
+			return count(((Shared) node).node, seen);
+		} else if (node instanceof ExpressionTree.UnaryOperator) {
+			return 1 + count(((ExpressionTree.UnaryOperator) node).operand(), seen);
+		} else if (node instanceof ExpressionTree.BinaryOperator) {
+			ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+			return 1 + count(op.left(), seen) + count(op.right(), seen);
+		} else {
+			return 1;
+		}
+	}
+
+
+	private LinearProbingHashMap<String, Integer> numbers;	// Subtree key -> number
+	private int[] uses;			// The number of uses of each subtree
+	private Shared[] shared;		// The Shared node for each (when building)
+	private IntValueHashMap generations;	// Variable -> times assigned so far
+	private boolean building;		// Counting, or building the DAG
+	private int number;			// The number of the last subtree visited (or -1)
+	private Dag dag;
+
+	private CommonSubexpressions() {
+		this.numbers = new LinearProbingHashMap<>();
+		this.uses = new int[16];
+		this.shared = new Shared[16];
+		this.generations = new IntValueHashMap();
+		this.building = false;
+		this.dag = new Dag();
+	}
+
+	private ExpressionTree.Node visit(ExpressionTree.Node node) throws ExpressionTree.NotAVariable {
+
+		// Walks the subtree in the order it is evaluated.  Leaves its number
+		// in this.number (-1 if it makes assignments), and returns it (when
+		// building) with its subtrees shared.
+
+		if (node == null) {
+			number = -1;
+			return null;
+
+		} else if (node instanceof ExpressionTree.Number) {
+			// Not worth sharing, but numbered as the operand of others.
+			number = number("#" + ((ExpressionTree.Number) node).value());
+			return node;
+
+		} else if (node instanceof ExpressionTree.Variable) {
+			String name = ((ExpressionTree.Variable) node).name();
+			return share(number(name + "@" + generations.find(name, 0)), node);
+
+		} else if (node instanceof ExpressionTree.UnaryAssignmentOperator) {
+			assign(((ExpressionTree.UnaryAssignmentOperator) node).variable().name());
+			number = -1;
+			return node;
+
+		} else if (node instanceof ExpressionTree.UnaryOperator) {
+			ExpressionTree.UnaryOperator op = (ExpressionTree.UnaryOperator) node;
+			ExpressionTree.Node operand = visit(op.operand());
+			int n = number;
+			ExpressionTree.Node result = (building && operand != op.operand())
+				? ExpressionTree.unary(op.op(), operand) : node;
+			if (n < 0) return result;
+			return share(number(op.op() + " " + n), result);
+
+		} else if (node instanceof ExpressionTree.AssignmentOperator) {
+			ExpressionTree.AssignmentOperator op = (ExpressionTree.AssignmentOperator) node;
+			ExpressionTree.Node right = visit(op.right());
+			assign(op.variable().name());
+			number = -1;
+			return (building && right != op.right()) ? ExpressionTree.binary(op.op(), op.left(), right) : node;
+
+		} else if (node instanceof ExpressionTree.BinaryOperator) {
+			ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+			ExpressionTree.Node left = visit(op.left());
+			int l = number;
+			ExpressionTree.Node right = visit(op.right());
+			int r = number;
+			ExpressionTree.Node result = (building && (left != op.left() || right != op.right()))
+				? ExpressionTree.binary(op.op(), left, right) : node;
+			if (l < 0 || r < 0) {
+				number = -1;
+				return result;
+			}
+			return share(number(l + " " + op.op() + " " + r), result);
+
+		} else {
+			number = -1;
+			return node;
+		}
+	}
+
+	private void assign(String name) {
+		generations.add(name, generations.find(name, 0) + 1);
+	}
+
+	private int number(String key) {
+		// Returns the number for the key (a new one if it hasn't been seen).
+		Integer n = numbers.find(key);
+		if (n == null) {
+			n = numbers.size();
+			numbers.add(key, n);
+			if (n == uses.length) {
+				uses = java.util.Arrays.copyOf(uses, 2 * n);
+				shared = java.util.Arrays.copyOf(shared, 2 * n);
+			}
+		}
+		return n;
+	}
+
+	private ExpressionTree.Node share(int n, ExpressionTree.Node node) {
+		number = n;
+		if (!building) {
+			uses[n]++;
+			return node;
+		} else if (uses[n] < 2) {
+			return node;
+		} else {
+			if (shared[n] == null) {
+				shared[n] = new Shared(node, dag);
+			}
+			return shared[n];
+		}
+	}
+
+
+	// A main program that compares evaluating some expressions as trees and
+	// as DAGs, then evaluates each DAG from several threads at once, and
+	// exits with status 1 if any result differs from the tree's.
+
+	public static void main(String[] args) throws Exception {
+		String[] expressions = {
+			"(a*b+c)*(a*b+c) - (a*b)",
+			"(x - y) * (x - y) + (x - y) * 2 - (x - y) / 3",
+			"a * b + (a = a + 1) + a * b",
+			"(a + b) * (a + b) * (a + b) * (a + b) + c++ + (a + b)",
+			"((p * p + q * q) % 97 + (p * p + q * q) / 97) * ((p * p + q * q) % 97)",
+			"t += (x * x + y * y) - (x * x + y * y) % 10",
+		};
+
+		ExpressionParser parser = new ExpressionParser();
+		boolean failed = false;
+		for (String text : expressions) {
+			ExpressionTree.Node tree = parser.parse(text);
+			Dag dag = eliminate(tree);
+
+			IntValueHashMap treeSymbols = inputs();
+			IntValueHashMap dagSymbols = inputs();
+			int expected = tree.evaluate(treeSymbols);
+			int actual = dag.evaluate(dagSymbols);
+			boolean same = expected == actual && treeSymbols.find("a") == dagSymbols.find("a")
+				&& treeSymbols.find("c") == dagSymbols.find("c") && treeSymbols.find("t") == dagSymbols.find("t");
+			same &= concurrent(tree, dag);
+			failed |= !same;
+
+			int iterations = 1000000;
+			long treeTime = 0, dagTime = 0;
+			for (int round = 0; round < 3; round++) {
+				treeSymbols = inputs();
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) tree.evaluate(treeSymbols);
+				treeTime = System.nanoTime() - start;
+
+				dagSymbols = inputs();
+				Scratch scratch = dag.scratch();
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) dag.evaluate(dagSymbols, scratch);
+				dagTime = System.nanoTime() - start;
+			}
+
+			System.out.printf("%-75s %s, %2d nodes -> %2d, tree %.1f ns, dag %.1f ns%n", text,
+				same ? "same" : "DIFFERENT", size(tree), size(dag),
+				(double) treeTime / iterations, (double) dagTime / iterations);
+		}
+		if (failed) {
+			System.exit(1);
+		}
+	}
+
+	private static boolean concurrent(ExpressionTree.Node tree, Dag dag) throws Exception {
+		// Evaluates the DAG many times in each of four threads, each with
+		// its own symbol table and Scratch, against the tree evaluated the
+		// same number of times.  If the Shared nodes held any state, the
+		// threads would see each other's values.
+		int iterations = 20000;
+		IntValueHashMap treeSymbols = inputs();
+		int[] expected = new int[iterations];
+		for (int i = 0; i < iterations; i++) expected[i] = tree.evaluate(treeSymbols);
+
+		java.util.concurrent.atomic.AtomicBoolean same = new java.util.concurrent.atomic.AtomicBoolean(true);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(() -> {
+				IntValueHashMap symbols = inputs();
+				Scratch scratch = dag.scratch();
+				try {
+					for (int i = 0; i < iterations; i++) {
+						if (dag.evaluate(symbols, scratch) != expected[i]) {
+							same.set(false);
+							return;
+						}
+					}
+				} catch (ExpressionTree.UndefinedVariable e) {
+					same.set(false);
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) thread.join();
+		return same.get();
+	}
+
+	private static IntValueHashMap inputs() {
+		IntValueHashMap symbols = new IntValueHashMap();
+		String[] names = { "a", "b", "c", "x", "y", "p", "q", "t" };
+		for (int i = 0; i < names.length; i++) {
+			symbols.add(names[i], 3 * i + 2);
+		}
+		return symbols;
+	}
+}
@@ -0,0 +1,160 @@
+import java.util.function.IntBinaryOperator;
+
+public class ConcurrentSymbolTable implements SymbolTable {
+
+	// A symbol table that can be shared by threads evaluating expressions at
+	// the same time.  It uses lock striping: the names are spread over a fixed
+	// number of segments by their hash, and each segment is an IntValueHashMap
+	// guarded by its own lock.  Threads working on names in different segments
+	// don't contend, and merge() holds the segment lock across the read and
+	// the write, so x += 1 from any number of threads never loses an update.
+
+	private IntValueHashMap[] segments;	// The stripes of the table
+	private int shift;			// Hash bits not used to pick a segment
+
+	public ConcurrentSymbolTable(int concurrency) {
+		int count = LinearProbingHashMap.tableSize(concurrency);
+		this.segments = new IntValueHashMap[count];
+		for (int i = 0; i < count; i++) {
+			this.segments[i] = new IntValueHashMap();
+		}
+		this.shift = 32 - Integer.numberOfTrailingZeros(count);
+	}
+
+	public ConcurrentSymbolTable() {
+		this(16);
+	}
+
+
+	private IntValueHashMap segment(String name) {
+		// The segment is picked with the high bits of the mixed hash, since
+		// the low bits pick the slot within the segment.
+		return segments[LinearProbingHashMap.mix(name.hashCode()) >>> shift];
+	}
+
+	public int size() {
+		int size = 0;
+		for (IntValueHashMap segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	@Override
+	public boolean contains(String name) {
+		IntValueHashMap segment = segment(name);
+		synchronized (segment) {
+			return segment.contains(name);
+		}
+	}
+
+	@Override
+	public int find(String name) {
+		IntValueHashMap segment = segment(name);
+		synchronized (segment) {
+			return segment.find(name);
+		}
+	}
+
+	@Override
+	public void add(String name, int value) {
+		IntValueHashMap segment = segment(name);
+		synchronized (segment) {
+			segment.add(name, value);
+		}
+	}
+
+	@Override
+	public int merge(String name, int operand, IntBinaryOperator function) {
+		IntValueHashMap segment = segment(name);
+		synchronized (segment) {
+			return segment.merge(name, operand, function);
+		}
+	}
+
+	public void remove(String name) {
+		IntValueHashMap segment = segment(name);
+		synchronized (segment) {
+			segment.remove(name);
+		}
+	}
+
+
+	// A main program that stress tests concurrent updates and measures how
+	// throughput scales with the number of threads.
+
+	private static long run(int threads, final int iterations, final String[] expressions)
+			throws InterruptedException {
+
+		// Each thread has its own parser (the parser isn't reentrant) and
+		// evaluates its expression repeatedly.
+
+		Thread[] workers = new Thread[threads];
+		final Throwable[] failure = new Throwable[1];
+		for (int t = 0; t < threads; t++) {
+			final String expression = expressions[t % expressions.length];
+			workers[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ExpressionTree.Node node = new ExpressionParser().parse(expression);
+						for (int i = 0; i < iterations; i++) {
+							node.evaluate();
+						}
+					} catch (Exception e) {
+						failure[0] = e;
+					}
+				}
+			});
+		}
+
+		long start = System.nanoTime();
+		for (Thread worker : workers) worker.start();
+		for (Thread worker : workers) worker.join();
+		long elapsed = System.nanoTime() - start;
+
+		if (failure[0] != null) {
+			throw new IllegalStateException(failure[0]);
+		}
+		return elapsed;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = 200000;
+		String[] shared = { "x += 1", "x++", "++x", "x -= -1" };
+		String[] separate = new String[16];
+		for (int t = 0; t < separate.length; t++) {
+			separate[t] = "v" + t + " += w * 2 - 1";
+		}
+
+		System.out.println(Runtime.getRuntime().availableProcessors() + " processor(s)");
+		for (int round = 0; round < 2; round++) {
+			for (int threads = 1; threads <= 16; threads *= 2) {
+
+				// All threads incrementing the same variable: none may be lost.
+
+				ConcurrentSymbolTable table = new ConcurrentSymbolTable();
+				ExpressionTree.symbols = table;
+				table.add("x", 0);
+				long sharedTime = run(threads, iterations, shared);
+				int expected = threads * iterations;
+				String check = (table.find("x") == expected) ? "OK" : "LOST UPDATES (" + table.find("x") + ")";
+
+				// Each thread updating its own variable.
+
+				table = new ConcurrentSymbolTable();
+				ExpressionTree.symbols = table;
+				table.add("w", 1);
+				for (int t = 0; t < threads; t++) table.add("v" + t, 0);
+				long separateTime = run(threads, iterations, separate);
+
+				System.out.printf("%2d threads: shared x %s, %.1f M updates/s; separate variables %.1f M updates/s%n",
+					threads, check,
+					1e3 * expected / sharedTime, 1e3 * expected / separateTime);
+			}
+		}
+		ExpressionTree.symbols = new IntValueHashMap();
+	}
+}
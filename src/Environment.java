@@ -0,0 +1,138 @@
+import java.util.NoSuchElementException;
+import java.util.function.IntBinaryOperator;
+
+public class Environment implements SymbolTable {
+
+	// A scope in which to evaluate expressions, passed to Node.evaluate(env)
+	// instead of using the global ExpressionTree.symbols.
+	//
+	// Scopes can be layered.  A name that isn't found in this scope is looked
+	// up in its parent scope, but assignments always go to this scope, so the
+	// parent is never modified.  A base table of shared inputs can therefore
+	// be used by any number of threads at once, each evaluating in its own
+	// overlay, without locks or copies (as long as nothing else is changing
+	// the base while they do).  An overlay only costs a small hash map.
+
+	private SymbolTable parent;		// The enclosing scope (or null)
+	private IntValueHashMap locals;		// The variables assigned in this scope
+
+	public Environment(SymbolTable parent) {
+		this.parent = parent;
+		this.locals = new IntValueHashMap(4);
+	}
+
+	public Environment() {
+		this(null);
+	}
+
+
+	public SymbolTable parent() {
+		return this.parent;
+	}
+
+	public Environment overlay() {
+		// Returns a new scope layered on top of this one.
+		return new Environment(this);
+	}
+
+	public int size() {
+		// The number of variables assigned in this scope itself.
+		return locals.size();
+	}
+
+
+	@Override
+	public boolean contains(String name) {
+		return locals.contains(name) || (parent != null && parent.contains(name));
+	}
+
+	@Override
+	public int find(String name) {
+		if (locals.contains(name)) {
+			return locals.find(name);
+		} else if (parent != null) {
+			return parent.find(name);
+		} else {
+			throw new NoSuchElementException(name);
+		}
+	}
+
+	@Override
+	public void add(String name, int value) {
+		locals.add(name, value);
+	}
+
+	@Override
+	public int merge(String name, int operand, IntBinaryOperator function) {
+		if (locals.contains(name)) {
+			return locals.merge(name, operand, function);
+		} else if (parent != null) {
+			// Copy the value up into this scope, leaving the parent as it was.
+			int value = function.applyAsInt(parent.find(name), operand);
+			locals.add(name, value);
+			return value;
+		} else {
+			throw new NoSuchElementException(name);
+		}
+	}
+
+
+	// A main program that evaluates many independent requests at once,
+	// each in its own overlay on a shared base scope.
+
+	public static void main(String[] args) throws Exception {
+		final Environment base = new Environment();
+		base.add("rate", 7);
+		base.add("limit", 1000);
+
+		final String[] requests = {
+			"total = rate * 12",
+			"limit -= rate * 100",
+			"count = 0",
+			"rate++ + ++rate",
+		};
+
+		int threads = 8;
+		final int iterations = 100000;
+		final int[] expected = { 84, 300, 0, 16 };
+		final int[] failures = new int[1];
+
+		java.util.concurrent.ExecutorService pool = java.util.concurrent.Executors.newFixedThreadPool(threads);
+		long start = System.nanoTime();
+		for (int t = 0; t < threads; t++) {
+			pool.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						ExpressionParser parser = new ExpressionParser();
+						ExpressionTree.Node[] nodes = new ExpressionTree.Node[requests.length];
+						for (int i = 0; i < requests.length; i++) {
+							nodes[i] = parser.parse(requests[i]);
+						}
+						for (int i = 0; i < iterations; i++) {
+							int r = i % nodes.length;
+							Environment env = base.overlay();
+							if (nodes[r].evaluate(env) != expected[r]) {
+								synchronized (failures) {
+									failures[0]++;
+								}
+							}
+						}
+					} catch (Exception e) {
+						synchronized (failures) {
+							failures[0]++;
+						}
+					}
+				}
+			});
+		}
+		pool.shutdown();
+		pool.awaitTermination(1, java.util.concurrent.TimeUnit.MINUTES);
+		long elapsed = System.nanoTime() - start;
+
+		System.out.printf("%d evaluations on %d threads, %d failures, %.1f ns/evaluation%n",
+			threads * iterations, threads, failures[0], (double) elapsed / (threads * iterations));
+		System.out.println("base unchanged: rate = " + base.find("rate") + ", limit = " + base.find("limit")
+			+ ", total defined = " + base.contains("total"));
+	}
+}
@@ -0,0 +1,725 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+public class ExpressionCompiler {
+
+	// Compiles an expression tree into a generated class with a single
+	// method, int evaluate(int[] slots), so that hot expressions can be
+	// evaluated without walking the tree through virtual dispatch.
+	//
+	// Each distinct variable in the tree is given a slot (an index into the
+	// int[] passed to evaluate).  Reading a variable loads its slot and the
+	// assignment operators store back into it.  The generated code contains
+	// no branches at all, which keeps the class file simple (no stack map
+	// frames) and lets the JIT treat the whole expression as one basic block.
+	//
+	// Compilation is opt-in per expression: callers that want it call
+	// compile() and keep the CompiledExpression around.  If the class cannot
+	// be generated (code too large, class definition refused, ...) the
+	// compiled expression falls back to interpreting the tree over the slots.
+
+	public interface Code {
+		int evaluate(int[] slots);
+	}
+
+
+	public static class CompiledExpression {
+
+		private ExpressionTree.Node node;	// The tree this was compiled from
+		private String[] names;			// names[i] is the variable kept in slots[i]
+		private boolean[] reads;		// reads[i] if slot i is read before it is assigned
+		private boolean[] writes;		// writes[i] if slot i is assigned
+		private Code code;			// Generated (or interpreted) code
+		private boolean generated;		// True if code is a generated class
+
+		private CompiledExpression(ExpressionTree.Node node, String[] names,
+				boolean[] reads, boolean[] writes, Code code, boolean generated) {
+			this.node = node;
+			this.names = names;
+			this.reads = reads;
+			this.writes = writes;
+			this.code = code;
+			this.generated = generated;
+		}
+
+		public ExpressionTree.Node node() {
+			return this.node;
+		}
+
+		public int slotCount() {
+			return this.names.length;
+		}
+
+		public String name(int slot) {
+			return this.names[slot];
+		}
+
+		public int slot(String name) {
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(name)) return i;
+			}
+			return -1;
+		}
+
+		public boolean isGenerated() {
+			return this.generated;
+		}
+
+		public int evaluate(int[] slots) {
+			// Evaluate using (and updating) the given slots.  The caller is
+			// responsible for having defined every slot that is read.
+			return code.evaluate(slots);
+		}
+
+		public int evaluate() throws ExpressionTree.UndefinedVariable {
+			return evaluate(ExpressionTree.symbols);
+		}
+
+		public int evaluate(SymbolTable symbols) throws ExpressionTree.UndefinedVariable {
+
+			// Evaluate against a symbol table: load the slots, run the
+			// code and store the assigned variables back.
+
+			int[] slots = new int[names.length];
+			for (int i = 0; i < names.length; i++) {
+				if (reads[i]) {
+					if (!symbols.contains(names[i])) {
+						// Let the interpreter report the error, so that any
+						// side effects before it happen exactly as before.
+						return node.evaluate(symbols);
+					}
+					slots[i] = symbols.find(names[i]);
+				}
+			}
+
+			int value;
+			try {
+				value = code.evaluate(slots);
+			} catch (ArithmeticException e) {
+				// The generated code doesn't track which slots it got to
+				// before the error, and nothing has been stored yet, so run
+				// the interpreter to leave exactly its side effects.
+				return node.evaluate(symbols);
+			}
+			for (int i = 0; i < names.length; i++) {
+				if (writes[i]) {
+					symbols.add(names[i], slots[i]);
+				}
+			}
+			return value;
+		}
+	}
+
+
+	public static CompiledExpression compile(ExpressionTree.Node node) {
+		return compile(node, true);
+	}
+
+	public static CompiledExpression compile(ExpressionTree.Node node, boolean generate) {
+
+		// Assign slots to the variables in evaluation order, noting which
+		// ones are read before they are assigned.
+
+		Slots slots = new Slots();
+		slots.scan(node);
+
+		String[] names = new String[slots.count];
+		boolean[] reads = new boolean[slots.count];
+		boolean[] writes = new boolean[slots.count];
+		System.arraycopy(slots.names, 0, names, 0, slots.count);
+		System.arraycopy(slots.reads, 0, reads, 0, slots.count);
+		System.arraycopy(slots.writes, 0, writes, 0, slots.count);
+
+		if (generate) {
+			try {
+				Code code = generate(node, slots);
+				return new CompiledExpression(node, names, reads, writes, code, true);
+			} catch (IOException | ReflectiveOperationException | LinkageError
+					| SecurityException | IllegalStateException e) {
+				// Fall through to the interpreter.
+			}
+		}
+
+		Code code = new Interpreter(node, slots.map);
+		return new CompiledExpression(node, names, reads, writes, code, false);
+	}
+
+
+	// Slot assignment.
+
+	private static class Slots {
+
+		private LinearProbingHashMap<String, Integer> map = new LinearProbingHashMap<>();
+		private String[] names = new String[8];
+		private boolean[] reads = new boolean[8];
+		private boolean[] writes = new boolean[8];
+		private int count = 0;
+
+		private int slot(String name) {
+			Integer slot = map.find(name);
+			if (slot != null) return slot;
+
+			if (count == names.length) {
+				names = java.util.Arrays.copyOf(names, 2 * count);
+				reads = java.util.Arrays.copyOf(reads, 2 * count);
+				writes = java.util.Arrays.copyOf(writes, 2 * count);
+			}
+			names[count] = name;
+			map.add(name, count);
+			return count++;
+		}
+
+		private void read(ExpressionTree.Variable variable) {
+			// A read counts only if nothing has assigned the variable yet.
+			int slot = slot(variable.name());
+			if (!writes[slot]) reads[slot] = true;
+		}
+
+		private void write(ExpressionTree.Variable variable) {
+			writes[slot(variable.name())] = true;
+		}
+
+		private void scan(ExpressionTree.Node node) {
+
+			// Visits the tree in the same order that evaluate() does.
+
+			if (node instanceof ExpressionTree.Variable) {
+				read((ExpressionTree.Variable) node);
+
+			} else if (node instanceof ExpressionTree.UnaryAssignmentOperator) {
+				ExpressionTree.Variable variable = ((ExpressionTree.UnaryAssignmentOperator) node).variable();
+				read(variable);
+				write(variable);
+
+			} else if (node instanceof ExpressionTree.UnaryOperator) {
+				scan(((ExpressionTree.UnaryOperator) node).operand());
+
+			} else if (node instanceof ExpressionTree.Assign) {
+				ExpressionTree.Assign assign = (ExpressionTree.Assign) node;
+				scan(assign.right());
+				write(assign.variable());
+
+			} else if (node instanceof ExpressionTree.AssignmentOperator) {
+				ExpressionTree.AssignmentOperator op = (ExpressionTree.AssignmentOperator) node;
+				read(op.variable());
+				scan(op.right());
+				write(op.variable());
+
+			} else if (node instanceof ExpressionTree.BinaryOperator) {
+				ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+				scan(op.left());
+				scan(op.right());
+			}
+		}
+	}
+
+
+	// Bytecode generation.
+
+	private static final int ICONST_M1 = 0x02;
+	private static final int ICONST_1  = 0x04;
+	private static final int BIPUSH   = 0x10;
+	private static final int SIPUSH   = 0x11;
+	private static final int LDC      = 0x12;
+	private static final int LDC_W    = 0x13;
+	private static final int ALOAD_0  = 0x2a;
+	private static final int ALOAD_1  = 0x2b;
+	private static final int IALOAD   = 0x2e;
+	private static final int IASTORE  = 0x4f;
+	private static final int DUP_X2   = 0x5b;
+	private static final int IADD     = 0x60;
+	private static final int ISUB     = 0x64;
+	private static final int IMUL     = 0x68;
+	private static final int IDIV     = 0x6c;
+	private static final int IREM     = 0x70;
+	private static final int INEG     = 0x74;
+	private static final int IRETURN  = 0xac;
+	private static final int RETURN   = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+
+	private static final int MAX_CODE_LENGTH = 65535;
+
+	private static int classCount = 0;
+
+	private static class Emitter {
+
+		// The constant pool entries 1..13 are fixed (see writeClass); integer
+		// constants that don't fit in a sipush are appended after them.
+
+		private static final int FIRST_CONSTANT = 14;
+
+		private ByteArrayOutputStream code = new ByteArrayOutputStream();
+		private LinearProbingHashMap<Integer, Integer> constants = new LinearProbingHashMap<>();
+		private int[] constantValues = new int[8];
+		private int constantCount = 0;
+		private Slots slots;
+		private int depth = 0;
+		private int maxDepth = 0;
+
+		private Emitter(Slots slots) {
+			this.slots = slots;
+		}
+
+		private void op(int opcode, int stackChange) {
+			code.write(opcode);
+			depth += stackChange;
+			if (depth > maxDepth) maxDepth = depth;
+		}
+
+		private void u1(int value) {
+			code.write(value);
+		}
+
+		private void u2(int value) {
+			code.write(value >>> 8);
+			code.write(value);
+		}
+
+		private void pushInt(int value) {
+			if (value >= -1 && value <= 5) {
+				op(ICONST_M1 + value + 1, 1);
+			} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				op(BIPUSH, 1);
+				u1(value);
+			} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				op(SIPUSH, 1);
+				u2(value);
+			} else {
+				int index = constant(value);
+				if (index < 256) {
+					op(LDC, 1);
+					u1(index);
+				} else {
+					op(LDC_W, 1);
+					u2(index);
+				}
+			}
+		}
+
+		private int constant(int value) {
+			Integer index = constants.find(value);
+			if (index != null) return index;
+
+			if (constantCount == constantValues.length) {
+				constantValues = java.util.Arrays.copyOf(constantValues, 2 * constantCount);
+			}
+			constantValues[constantCount] = value;
+			index = FIRST_CONSTANT + constantCount++;
+			constants.add(value, index);
+			return index;
+		}
+
+		private void slotAddress(ExpressionTree.Variable variable) {
+			// Pushes slots, index
+			op(ALOAD_1, 1);
+			pushInt(slots.map.find(variable.name()));
+		}
+
+		private void load(ExpressionTree.Variable variable) {
+			slotAddress(variable);
+			op(IALOAD, -1);
+		}
+
+		private void emit(ExpressionTree.Node node) {
+
+			if (node instanceof ExpressionTree.Number) {
+				pushInt(((ExpressionTree.Number) node).value());
+
+			} else if (node instanceof ExpressionTree.Variable) {
+				load((ExpressionTree.Variable) node);
+
+			} else if (node instanceof ExpressionTree.Negate) {
+				emit(((ExpressionTree.Negate) node).operand());
+				op(INEG, 0);
+
+			} else if (node instanceof ExpressionTree.UnaryAssignmentOperator) {
+				emitUnaryAssignment((ExpressionTree.UnaryAssignmentOperator) node);
+
+			} else if (node instanceof ExpressionTree.AssignmentOperator) {
+				emitAssignment((ExpressionTree.AssignmentOperator) node);
+
+			} else if (node instanceof ExpressionTree.BinaryOperator) {
+				ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+				emit(op.left());
+				emit(op.right());
+				op(arithmetic(op), -1);
+
+			} else {
+				throw new IllegalStateException("Cannot compile: " + node.format());
+			}
+
+			if (code.size() > MAX_CODE_LENGTH) {
+				throw new IllegalStateException("Code too large");
+			}
+		}
+
+		private void emitUnaryAssignment(ExpressionTree.UnaryAssignmentOperator node) {
+			ExpressionTree.Variable variable = node.variable();
+			boolean increment = node instanceof ExpressionTree.PreIncrement
+				|| node instanceof ExpressionTree.PostIncrement;
+			boolean post = node instanceof ExpressionTree.PostIncrement
+				|| node instanceof ExpressionTree.PostDecrement;
+
+			slotAddress(variable);			// slots, i
+			load(variable);				// slots, i, old
+			if (post) {
+				op(DUP_X2, 1);			// old, slots, i, old
+			}
+			op(ICONST_1, 1);
+			op(increment ? IADD : ISUB, -1);	// ..., slots, i, new
+			if (!post) {
+				op(DUP_X2, 1);			// new, slots, i, new
+			}
+			op(IASTORE, -3);
+		}
+
+		private void emitAssignment(ExpressionTree.AssignmentOperator node) {
+			ExpressionTree.Variable variable = node.variable();
+
+			slotAddress(variable);			// slots, i
+			if (node instanceof ExpressionTree.Assign) {
+				emit(node.right());		// slots, i, value
+			} else {
+				load(variable);			// slots, i, old
+				emit(node.right());		// slots, i, old, right
+				op(arithmetic(node), -1);	// slots, i, value
+			}
+			op(DUP_X2, 1);				// value, slots, i, value
+			op(IASTORE, -3);
+		}
+
+		private static int arithmetic(ExpressionTree.BinaryOperator node) {
+			if (node instanceof ExpressionTree.Add || node instanceof ExpressionTree.AddTo) return IADD;
+			if (node instanceof ExpressionTree.Subtract || node instanceof ExpressionTree.SubtractFrom) return ISUB;
+			if (node instanceof ExpressionTree.Multiply || node instanceof ExpressionTree.MultiplyBy) return IMUL;
+			if (node instanceof ExpressionTree.Divide || node instanceof ExpressionTree.DivideBy) return IDIV;
+			if (node instanceof ExpressionTree.Mod || node instanceof ExpressionTree.ModBy) return IREM;
+			throw new IllegalStateException("Cannot compile: " + node.format());
+		}
+
+		private byte[] writeClass(String className) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			out.writeInt(0xCAFEBABE);
+			out.writeShort(0);			// minor version
+			out.writeShort(52);			// major version (Java 8)
+
+			// Constant pool
+
+			out.writeShort(FIRST_CONSTANT + constantCount);
+			utf8(out, className);			// 1
+			classRef(out, 1);			// 2
+			utf8(out, "java/lang/Object");		// 3
+			classRef(out, 3);			// 4
+			utf8(out, Code.class.getName().replace('.', '/'));	// 5
+			classRef(out, 5);			// 6
+			utf8(out, "<init>");			// 7
+			utf8(out, "()V");			// 8
+			out.writeByte(12);			// 9: NameAndType <init> ()V
+			out.writeShort(7);
+			out.writeShort(8);
+			out.writeByte(10);			// 10: Methodref Object.<init>
+			out.writeShort(4);
+			out.writeShort(9);
+			utf8(out, "evaluate");			// 11
+			utf8(out, "([I)I");			// 12
+			utf8(out, "Code");			// 13
+			for (int i = 0; i < constantCount; i++) {
+				out.writeByte(3);		// Integer
+				out.writeInt(constantValues[i]);
+			}
+
+			out.writeShort(0x0031);			// public final super
+			out.writeShort(2);			// this class
+			out.writeShort(4);			// super class
+			out.writeShort(1);			// interfaces
+			out.writeShort(6);
+			out.writeShort(0);			// fields
+			out.writeShort(2);			// methods
+
+			// public <init>() { super(); }
+
+			byte[] init = { ALOAD_0, (byte) INVOKESPECIAL, 0, 10, (byte) RETURN };
+			method(out, 7, 8, 1, 1, init);
+
+			// public int evaluate(int[] slots) { ... }
+
+			method(out, 11, 12, Math.max(maxDepth, 1), 2, code.toByteArray());
+
+			out.writeShort(0);			// class attributes
+			out.flush();
+			return bytes.toByteArray();
+		}
+
+		private static void utf8(DataOutputStream out, String s) throws IOException {
+			out.writeByte(1);
+			out.writeUTF(s);
+		}
+
+		private static void classRef(DataOutputStream out, int name) throws IOException {
+			out.writeByte(7);
+			out.writeShort(name);
+		}
+
+		private static void method(DataOutputStream out, int name, int descriptor,
+				int maxStack, int maxLocals, byte[] code) throws IOException {
+			out.writeShort(0x0001);			// public
+			out.writeShort(name);
+			out.writeShort(descriptor);
+			out.writeShort(1);			// attributes
+			out.writeShort(13);			// Code
+			out.writeInt(12 + code.length);
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(code.length);
+			out.write(code);
+			out.writeShort(0);			// exception table
+			out.writeShort(0);			// attributes
+		}
+	}
+
+	private static class Loader extends ClassLoader {
+
+		// Each compiled expression gets its own loader so that the class
+		// can be unloaded once the expression is no longer referenced.
+
+		private Loader() {
+			super(ExpressionCompiler.class.getClassLoader());
+		}
+
+		private Class<?> define(String name, byte[] bytes) {
+			return defineClass(name, bytes, 0, bytes.length);
+		}
+	}
+
+	private static Code generate(ExpressionTree.Node node, Slots slots)
+			throws IOException, ReflectiveOperationException {
+		Emitter emitter = new Emitter(slots);
+		emitter.emit(node);
+		emitter.op(IRETURN, -1);
+
+		String name;
+		synchronized (ExpressionCompiler.class) {
+			name = "CompiledExpression$" + (++classCount);
+		}
+		byte[] bytes = emitter.writeClass(name);
+		Class<?> generated = new Loader().define(name, bytes);
+		return (Code) generated.getDeclaredConstructor().newInstance();
+	}
+
+
+	// The fallback: interpret the tree directly over the slots.
+
+	private static class Interpreter implements Code {
+
+		private ExpressionTree.Node node;
+		private LinearProbingHashMap<String, Integer> map;
+
+		private Interpreter(ExpressionTree.Node node, LinearProbingHashMap<String, Integer> map) {
+			this.node = node;
+			this.map = map;
+		}
+
+		@Override
+		public int evaluate(int[] slots) {
+			return evaluate(node, slots);
+		}
+
+		private int slot(ExpressionTree.Variable variable) {
+			return map.find(variable.name());
+		}
+
+		private int evaluate(ExpressionTree.Node node, int[] slots) {
+
+			if (node instanceof ExpressionTree.Number) {
+				return ((ExpressionTree.Number) node).value();
+
+			} else if (node instanceof ExpressionTree.Variable) {
+				return slots[slot((ExpressionTree.Variable) node)];
+
+			} else if (node instanceof ExpressionTree.Negate) {
+				return -evaluate(((ExpressionTree.Negate) node).operand(), slots);
+
+			} else if (node instanceof ExpressionTree.UnaryAssignmentOperator) {
+				int slot = slot(((ExpressionTree.UnaryAssignmentOperator) node).variable());
+				if (node instanceof ExpressionTree.PreIncrement) return ++slots[slot];
+				if (node instanceof ExpressionTree.PreDecrement) return --slots[slot];
+				if (node instanceof ExpressionTree.PostIncrement) return slots[slot]++;
+				return slots[slot]--;
+
+			} else if (node instanceof ExpressionTree.Assign) {
+				ExpressionTree.Assign assign = (ExpressionTree.Assign) node;
+				int value = evaluate(assign.right(), slots);
+				slots[slot(assign.variable())] = value;
+				return value;
+
+			} else if (node instanceof ExpressionTree.AssignmentOperator) {
+				ExpressionTree.AssignmentOperator op = (ExpressionTree.AssignmentOperator) node;
+				int slot = slot(op.variable());
+				int value = apply(op, slots[slot], evaluate(op.right(), slots));
+				slots[slot] = value;
+				return value;
+
+			} else {
+				ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+				int left = evaluate(op.left(), slots);
+				return apply(op, left, evaluate(op.right(), slots));
+			}
+		}
+
+		private static int apply(ExpressionTree.BinaryOperator op, int left, int right) {
+			switch (Emitter.arithmetic(op)) {
+				case IADD: return left + right;
+				case ISUB: return left - right;
+				case IMUL: return left * right;
+				case IDIV: return left / right;
+				default:   return left % right;
+			}
+		}
+	}
+
+
+	// A main program to check that compiled expressions agree with the
+	// tree interpreter and to compare their speed.
+
+	private static void reset() {
+		ExpressionTree.symbols = new IntValueHashMap();
+		ExpressionTree.symbols.add("a", 3);
+		ExpressionTree.symbols.add("b", -7);
+		ExpressionTree.symbols.add("c", 100000);
+	}
+
+	private static String result(ExpressionTree.Node node, CompiledExpression compiled) {
+		// The value or error, followed by the variables, which have to match
+		// even when the expression fails part way through.
+		String value;
+		try {
+			value = "" + ((compiled != null) ? compiled.evaluate() : node.evaluate());
+		} catch (ExpressionTree.UndefinedVariable | ArithmeticException e) {
+			value = e.toString();
+		}
+		for (String name : new String[] { "a", "b", "c", "x", "y" }) {
+			value += " " + name + "=" + (ExpressionTree.symbols.contains(name)
+				? "" + ExpressionTree.symbols.find(name) : "null");
+		}
+		return value;
+	}
+
+	private static String random(Random random, int depth) {
+		// A random expression over a, b, c, x and y.
+		String[] names = { "a", "b", "c", "x", "y" };
+		String name = names[random.nextInt(names.length)];
+		if (depth == 0 || random.nextInt(4) == 0) {
+			return random.nextBoolean() ? name : Integer.toString(random.nextInt(4));
+		}
+		switch (random.nextInt(5)) {
+			case 0:
+			case 1:
+				String[] ops = { "+", "-", "*", "/", "%" };
+				return "(" + random(random, depth - 1) + " " + ops[random.nextInt(ops.length)]
+					+ " " + random(random, depth - 1) + ")";
+			case 2:
+				String[] assigns = { "=", "+=", "-=", "*=", "/=", "%=" };
+				return "(" + name + " " + assigns[random.nextInt(assigns.length)]
+					+ " " + random(random, depth - 1) + ")";
+			case 3:
+				String[] steps = { "++" + name, "--" + name, name + "++", name + "--" };
+				return steps[random.nextInt(steps.length)];
+			default:
+				return "-" + random(random, depth - 1);
+		}
+	}
+
+	private static int check(String expression, ExpressionTree.Node node) {
+		// Returns the number of ways of compiling the tree that don't agree
+		// with the interpreter.
+		int failures = 0;
+		reset();
+		String expected = result(node, null);
+		for (boolean generate : new boolean[] { true, false }) {
+			reset();
+			CompiledExpression compiled = compile(node, generate);
+			String actual = result(node, compiled);
+			if (!actual.equals(expected)) {
+				failures++;
+				System.out.println("FAIL " + expression + " (generated=" + compiled.isGenerated()
+					+ "): expected " + expected + ", got " + actual);
+			}
+		}
+		return failures;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] expressions = {
+			"1 + 2 * 3",
+			"(a + b) * c % 17",
+			"-a - -b",
+			"x = a * 2",
+			"x = (y = a + 1) * y",
+			"a++ + a++ * a--",
+			"++a + --b",
+			"a += (a = 5)",
+			"a -= (b *= 3)",
+			"c /= (a %= 2)",
+			"c / (b + 7)",
+			"(y = 1) + y++",
+			"x + (x = 1)",
+			"2147483647 + a * 65536 - 40000",
+			"(y = 1) + a / 0",
+			"a / 0 + (y = 1)",
+			"(x = a) * (b %= 0)",
+		};
+
+		ExpressionParser parser = new ExpressionParser();
+		int failures = 0;
+		for (String expression : expressions) {
+			failures += check(expression, parser.parse(expression));
+		}
+		Random random = new Random(1);
+		int checked = expressions.length;
+		for (int i = 0; i < 5000; i++) {
+			String expression = random(random, 4);
+			ExpressionTree.Node node;
+			try {
+				node = parser.parse(expression);
+			} catch (ExpressionParser.SyntaxError | ExpressionTree.NotAVariable e) {
+				continue;
+			}
+			checked++;
+			failures += check(expression, node);
+		}
+		System.out.println(failures == 0 ? "All " + checked + " expressions agree" : failures + " failures");
+		if (failures != 0) System.exit(1);
+
+		// Timing: interpreted tree vs. compiled code over int[] slots.
+
+		ExpressionTree.Node node = parser.parse("x = (a + b) * (a - b) + (a * 3 + b * 5) % 7 - x / 3");
+		CompiledExpression compiled = compile(node);
+		int iterations = 2000000;
+		for (int round = 0; round < 3; round++) {
+			reset();
+			ExpressionTree.symbols.add("x", 1);
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				node.evaluate();
+			}
+			long interpreted = System.nanoTime() - start;
+
+			int[] slots = new int[compiled.slotCount()];
+			slots[compiled.slot("a")] = 3;
+			slots[compiled.slot("b")] = -7;
+			slots[compiled.slot("x")] = 1;
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				compiled.evaluate(slots);
+			}
+			long generated = System.nanoTime() - start;
+
+			System.out.printf("interpreted %.1f ns/eval, compiled %.1f ns/eval%n",
+				(double) interpreted / iterations, (double) generated / iterations);
+		}
+	}
+}
@@ -0,0 +1,305 @@
+public class ExpressionOptimizer {
+
+	// A pass that runs after ExpressionParser.parse and rewrites the tree so
+	// that it does less work each time it is evaluated:
+	//
+	//   operators on numbers are folded:       (3 * 4 + x) * (2 - 2 + 1)  =>  x + 12
+	//   identities are applied:                 x * 1, x + 0, x - 0, x / 1  =>  x
+	//                                           0 - x, x * -1, x / -1       =>  -x
+	//                                           -(-x)                       =>  x
+	//   constants in chains of + and - or of * are combined:
+	//                                           (x + 3) - 5  =>  x - 2,  2 * (x * 3)  =>  x * 6
+	//
+	// The rewritten tree evaluates to the same value, makes the same
+	// assignments in the same order, and throws the same exceptions as the
+	// original, for any symbol table.  (Since int arithmetic wraps, + and *
+	// are associative and commutative, and -(-x) is x even for MIN_VALUE.)
+	// So a division or mod by zero is never folded, and a subtree is only
+	// dropped (as x is in x * 0) if evaluating it can't assign a variable
+	// and can't throw ... a variable can't be dropped, since it might not be
+	// defined.
+	//
+	// The original tree is left as it was; subtrees that don't change are
+	// shared with it.
+
+	public static ExpressionTree.Node optimize(ExpressionTree.Node node) {
+		try {
+			return rewrite(node);
+		} catch (ExpressionTree.NotAVariable e) {
+			// Can't happen: the variable of an assignment is never rewritten.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public static int size(ExpressionTree.Node node) {
+		// The number of nodes in the tree.
+		if (node instanceof ExpressionTree.UnaryOperator) {
+			return 1 + size(((ExpressionTree.UnaryOperator) node).operand());
+		} else if (node instanceof ExpressionTree.BinaryOperator) {
+			ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+			return 1 + size(op.left()) + size(op.right());
+		} else {
+			return (node == null) ? 0 : 1;
+		}
+	}
+
+	public static boolean canFail(ExpressionTree.Node node) {
+
+		// True if evaluating the tree might throw: by reading a variable that
+		// isn't defined, or dividing by zero.
+
+		if (node instanceof ExpressionTree.Number) {
+			return false;
+		} else if (node instanceof ExpressionTree.Negate) {
+			return canFail(((ExpressionTree.Negate) node).operand());
+		} else if (node instanceof ExpressionTree.Assign) {
+			return canFail(((ExpressionTree.Assign) node).right());
+		} else if (node instanceof ExpressionTree.Add
+				|| node instanceof ExpressionTree.Subtract
+				|| node instanceof ExpressionTree.Multiply) {
+			ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+			return canFail(op.left()) || canFail(op.right());
+		} else if (node instanceof ExpressionTree.Divide || node instanceof ExpressionTree.Mod) {
+			ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+			return canFail(op.left()) || constant(op.right(), 0) || !(op.right() instanceof ExpressionTree.Number);
+		} else {
+			// Variables, ++ and --, compound assignments (which read their
+			// variable) and anything the parser left incomplete.
+			return true;
+		}
+	}
+
+	private static boolean pure(ExpressionTree.Node node) {
+		// True if the tree can be dropped without changing anything.
+		return !node.hasSideEffects() && !canFail(node);
+	}
+
+	private static boolean constant(ExpressionTree.Node node, int value) {
+		return node instanceof ExpressionTree.Number && ((ExpressionTree.Number) node).value() == value;
+	}
+
+
+	private static ExpressionTree.Node rewrite(ExpressionTree.Node node) throws ExpressionTree.NotAVariable {
+
+		if (node instanceof ExpressionTree.Negate) {
+			ExpressionTree.Node operand = ((ExpressionTree.Negate) node).operand();
+			if (operand == null) return node;
+			return negate(rewrite(operand), node);
+
+		} else if (node instanceof ExpressionTree.AssignmentOperator) {
+			// Only the right side: the left is the variable assigned.
+			ExpressionTree.AssignmentOperator op = (ExpressionTree.AssignmentOperator) node;
+			if (op.right() == null) return node;
+			ExpressionTree.Node right = rewrite(op.right());
+			return (right == op.right()) ? node : ExpressionTree.binary(op.op(), op.left(), right);
+
+		} else if (node instanceof ExpressionTree.BinaryOperator) {
+			ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+			if (op.left() == null || op.right() == null) return node;
+			return simplify(op, rewrite(op.left()), rewrite(op.right()));
+
+		} else {
+			// Numbers, variables, and ++ and -- (whose operand is a variable).
+			return node;
+		}
+	}
+
+	private static ExpressionTree.Node negate(ExpressionTree.Node operand, ExpressionTree.Node original) {
+
+		// Returns -operand (reusing the original Negate if it's unchanged).
+
+		if (operand instanceof ExpressionTree.Number) {
+			return new ExpressionTree.Number(-((ExpressionTree.Number) operand).value());
+		} else if (operand instanceof ExpressionTree.Negate) {
+			return ((ExpressionTree.Negate) operand).operand();
+		} else if (original instanceof ExpressionTree.Negate && ((ExpressionTree.Negate) original).operand() == operand) {
+			return original;
+		} else {
+			return new ExpressionTree.Negate(operand);
+		}
+	}
+
+	private static ExpressionTree.Node simplify(ExpressionTree.BinaryOperator op,
+			ExpressionTree.Node left, ExpressionTree.Node right) throws ExpressionTree.NotAVariable {
+
+		// Returns left op right, simplified (the operands already are).
+
+		boolean leftNumber = left instanceof ExpressionTree.Number;
+		boolean rightNumber = right instanceof ExpressionTree.Number;
+		int l = leftNumber ? ((ExpressionTree.Number) left).value() : 0;
+		int r = rightNumber ? ((ExpressionTree.Number) right).value() : 0;
+
+		if (op instanceof ExpressionTree.Add || op instanceof ExpressionTree.Subtract) {
+			// As x + c, if that is what it is.
+			boolean subtract = op instanceof ExpressionTree.Subtract;
+			if (leftNumber && rightNumber) {
+				return new ExpressionTree.Number(subtract ? l - r : l + r);
+			} else if (rightNumber) {
+				return offset(left, subtract ? -r : r);
+			} else if (leftNumber && !subtract) {
+				return offset(right, l);
+			} else if (leftNumber && l == 0) {
+				return negate(right, null);
+			}
+
+		} else if (op instanceof ExpressionTree.Multiply) {
+			if (leftNumber && rightNumber) {
+				return new ExpressionTree.Number(l * r);
+			} else if (rightNumber) {
+				return scale(left, r);
+			} else if (leftNumber) {
+				return scale(right, l);
+			}
+
+		} else if (op instanceof ExpressionTree.Divide || op instanceof ExpressionTree.Mod) {
+			boolean divide = op instanceof ExpressionTree.Divide;
+			if (leftNumber && rightNumber && r != 0) {
+				return new ExpressionTree.Number(divide ? l / r : l % r);
+			} else if (rightNumber && (r == 1 || r == -1)) {
+				if (divide) {
+					return (r == 1) ? left : negate(left, null);
+				} else if (pure(left)) {
+					return new ExpressionTree.Number(0);
+				}
+			}
+		}
+
+		if (left == op.left() && right == op.right()) {
+			return op;
+		}
+		return ExpressionTree.binary(op.op(), left, right);
+	}
+
+	private static ExpressionTree.Node offset(ExpressionTree.Node node, int c) {
+
+		// Returns node + c, merging c into node if it is itself x + d or x - d.
+
+		if (node instanceof ExpressionTree.Add || node instanceof ExpressionTree.Subtract) {
+			ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+			if (op.right() instanceof ExpressionTree.Number) {
+				int d = ((ExpressionTree.Number) op.right()).value();
+				return offset(op.left(), (op instanceof ExpressionTree.Subtract) ? c - d : c + d);
+			}
+		}
+
+		if (c == 0) {
+			return node;
+		} else if (c < 0 && c != Integer.MIN_VALUE) {
+			return new ExpressionTree.Subtract(node, new ExpressionTree.Number(-c));
+		} else {
+			return new ExpressionTree.Add(node, new ExpressionTree.Number(c));
+		}
+	}
+
+	private static ExpressionTree.Node scale(ExpressionTree.Node node, int c) {
+
+		// Returns node * c, merging c into node if it is itself x * d.
+
+		if (node instanceof ExpressionTree.Multiply) {
+			ExpressionTree.Multiply op = (ExpressionTree.Multiply) node;
+			if (op.right() instanceof ExpressionTree.Number) {
+				return scale(op.left(), c * ((ExpressionTree.Number) op.right()).value());
+			}
+		}
+
+		if (c == 1) {
+			return node;
+		} else if (c == -1) {
+			return negate(node, null);
+		} else if (c == 0 && pure(node)) {
+			return new ExpressionTree.Number(0);
+		} else {
+			return new ExpressionTree.Multiply(node, new ExpressionTree.Number(c));
+		}
+	}
+
+
+	// A main program that optimizes a corpus of expressions, checks that each
+	// gives the same result as before, and compares the node counts and the
+	// evaluation times.
+
+	public static void main(String[] args) throws Exception {
+		String[] corpus = {
+			"(3*4+x)*(2-2+1)",
+			"x * 1 + 0 - y / 1",
+			"-(-x) * 1",
+			"-(-(x + 2 * 3))",
+			"(x + 3) - 5 + (y - 0) * (4 - 3)",
+			"2 * (x * 3) * (10 / 5)",
+			"total += (60 * 60 * 24) * days + 0",
+			"(x - x) * 0 + y * 0 + 3 * 0",
+			"((1 + 2) * (3 + 4) - 5) % 7 + x",
+			"x / (2 - 2) + 1",
+			"0 - y % 1 + (z = 3 * 3) * 1",
+			"x++ * 0 + (y -= 0 * 5)",
+			"(x * 2 + y * 3) * 1 - (0 + 100 / 7 % 3)",
+		};
+
+		ExpressionParser parser = new ExpressionParser();
+		int before = 0, after = 0;
+		ExpressionTree.Node[] original = new ExpressionTree.Node[corpus.length];
+		ExpressionTree.Node[] optimized = new ExpressionTree.Node[corpus.length];
+		for (int i = 0; i < corpus.length; i++) {
+			original[i] = parser.parse(corpus[i]);
+			optimized[i] = optimize(original[i]);
+			before += size(original[i]);
+			after += size(optimized[i]);
+
+			String expected = result(original[i]);
+			String actual = result(optimized[i]);
+			System.out.printf("%-45s %-30s %s%n", corpus[i], optimized[i].format(),
+				expected.equals(actual) ? "OK" : "MISMATCH " + expected + " / " + actual);
+		}
+		System.out.printf("%d nodes before, %d after (%.0f%% fewer)%n",
+			before, after, 100.0 * (before - after) / before);
+
+		int iterations = 200000;
+		for (int round = 0; round < 3; round++) {
+			long originalTime = time(original, iterations);
+			long optimizedTime = time(optimized, iterations);
+			System.out.printf("original %.1f ns/expression, optimized %.1f ns/expression, speedup %.2f%n",
+				(double) originalTime / (iterations * corpus.length),
+				(double) optimizedTime / (iterations * corpus.length),
+				(double) originalTime / optimizedTime);
+		}
+	}
+
+	private static IntValueHashMap inputs() {
+		IntValueHashMap symbols = new IntValueHashMap();
+		symbols.add("x", 5);
+		symbols.add("y", -7);
+		symbols.add("total", 0);
+		symbols.add("days", 2);
+		return symbols;
+	}
+
+	private static String result(ExpressionTree.Node node) {
+		// The value (or exception) and the variables afterwards.
+		IntValueHashMap symbols = inputs();
+		String result;
+		try {
+			result = Integer.toString(node.evaluate(symbols));
+		} catch (ExpressionTree.UndefinedVariable | ArithmeticException e) {
+			result = e.getClass().getSimpleName();
+		}
+		for (String name : new String[] { "x", "y", "z", "total" }) {
+			result += " " + name + "=" + symbols.find(name, 0);
+		}
+		return result;
+	}
+
+	private static long time(ExpressionTree.Node[] nodes, int iterations) {
+		IntValueHashMap symbols = inputs();
+		long start = System.nanoTime();
+		for (int i = 0; i < iterations; i++) {
+			for (ExpressionTree.Node node : nodes) {
+				try {
+					node.evaluate(symbols);
+				} catch (ExpressionTree.UndefinedVariable | ArithmeticException e) {
+				}
+			}
+			symbols.add("total", 0);
+		}
+		return System.nanoTime() - start;
+	}
+}
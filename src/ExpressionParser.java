@@ -1,5 +1,7 @@
 
 import java.io.Console;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Scanner;
 
 public class ExpressionParser {
@@ -46,8 +48,17 @@ public class ExpressionParser {
     //
     // PostOp -> '++'
     // PostOp -> '--'
-    private ExpressionScanner scanner;		// The tokenizer for the terminal symbols
-    private Token currentToken;		// The current input token being examined
+    private TokenCursor scanner;			// The tokenizer for the terminal symbols
+    private Token.Kind currentKind;	// The kind of the current input token being examined
+    private Cache cache;		// Previously parsed expressions (or null)
+
+    public ExpressionParser(Cache cache) {
+        this.cache = cache;
+    }
+
+    public ExpressionParser() {
+        this(null);
+    }
 
     public static class SyntaxError extends Exception {
 
@@ -67,29 +78,102 @@ public class ExpressionParser {
         }
     }
 
-    // Utility method to advance to the next token.
-    private Token getNextToken() {
-        if (scanner.hasNext()) {
-            currentToken = scanner.next();
-        } else {
-            currentToken = Token.End;
+    public static class Cache {
+
+        // A bounded cache of parsed expressions, keyed by their source text,
+        // that evicts the least recently used entry when it is full.  It can
+        // be shared by parsers in different threads: the expression trees
+        // are immutable and evaluating one keeps no state in its nodes, so a
+        // cached tree can be evaluated by any number of threads at once.
+
+        private final int maximumSize;
+        private final LinkedHashMap<String, ExpressionTree.Node> entries;
+        private long hits;
+        private long misses;
+        private long evictions;
+
+        public Cache(int maximumSize) {
+            if (maximumSize <= 0) {
+                throw new IllegalArgumentException("Cache size must be positive: " + maximumSize);
+            }
+            this.maximumSize = maximumSize;
+            this.entries = new LinkedHashMap<String, ExpressionTree.Node>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, ExpressionTree.Node> eldest) {
+                    if (size() > Cache.this.maximumSize) {
+                        evictions++;
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        public synchronized ExpressionTree.Node get(String source) {
+            ExpressionTree.Node node = entries.get(source);
+            if (node != null) {
+                hits++;
+            } else {
+                misses++;
+            }
+            return node;
+        }
+
+        public synchronized void put(String source, ExpressionTree.Node node) {
+            entries.put(source, node);
+        }
+
+        public synchronized void clear() {
+            entries.clear();
+        }
+
+        public int maximumSize() {
+            return this.maximumSize;
+        }
+
+        public synchronized int size() {
+            return entries.size();
+        }
+
+        public synchronized long hits() {
+            return this.hits;
+        }
+
+        public synchronized long misses() {
+            return this.misses;
         }
-        return currentToken;
+
+        public synchronized long evictions() {
+            return this.evictions;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "size " + entries.size() + "/" + maximumSize + ", hits " + hits
+                + ", misses " + misses + ", evictions " + evictions;
+        }
+    }
+
+    // Utility method to advance to the next token.  The scanner is used as a
+    // cursor (see ExpressionScanner.advance), so no Token objects are made.
+    private Token.Kind getNextToken() {
+        currentKind = scanner.advance();
+        return currentKind;
     }
 
     // Utility method to check to see if the current token is
     // a specified token (and advance to the next token if so)
     // and throw a SyntaxError exception if no.
     private void checkToken(Token.Kind kind) throws SyntaxError {
-        if (currentToken.kind() == kind) {
+        if (currentKind == kind) {
             getNextToken();
         } else {
             throw new SyntaxError(scanner.position());
         }
     }
 
-    private boolean isAssignOp(Token token) {
-        switch (token.kind()) {
+    private boolean isAssignOp(Token.Kind kind) {
+        switch (kind) {
             case ASSIGN:
                 return true;
             case PLUS_ASSIGN:
@@ -107,8 +191,8 @@ public class ExpressionParser {
         }
     }
 
-    private boolean isAddOp(Token token) {
-        switch (token.kind()) {
+    private boolean isAddOp(Token.Kind kind) {
+        switch (kind) {
             case PLUS:
                 return true;
             case MINUS:
@@ -118,8 +202,8 @@ public class ExpressionParser {
         }
     }
 
-    private boolean isMulOp(Token token) {
-        switch (token.kind()) {
+    private boolean isMulOp(Token.Kind kind) {
+        switch (kind) {
             case TIMES:
                 return true;
             case DIVIDE:
@@ -131,8 +215,8 @@ public class ExpressionParser {
         }
     }
 
-    private boolean isPreOp(Token token) {
-        switch (token.kind()) {
+    private boolean isPreOp(Token.Kind kind) {
+        switch (kind) {
             case PLUS:
                 return true;
             case MINUS:
@@ -146,8 +230,8 @@ public class ExpressionParser {
         }
     }
 
-    private boolean isPostOp(Token token) {
-        switch (token.kind()) {
+    private boolean isPostOp(Token.Kind kind) {
+        switch (kind) {
             case PLUS_PLUS:
                 return true;
             case MINUS_MINUS:
@@ -167,18 +251,16 @@ public class ExpressionParser {
         // Atom -> '(' Expression ')'
         
         ExpressionTree.Node ret = null;
-        switch (currentToken.kind()) {
+        switch (currentKind) {
             case NUMBER:
-                Token.NumberToken num = (Token.NumberToken) currentToken;
-                ret = new ExpressionTree.Number(num.value());
+                ret = new ExpressionTree.Number(scanner.intValue());
                 getNextToken();
                 break;
                 
             case IDENTIFIER:
                 //To be quite honest, It was a miracle that this worked for me bc I didnt entirely understand
                 //how the Variable Nodes worked in ExpressionTree, but this works, so I guess I dont need to change it.
-                Token.IdentifierToken iden = (Token.IdentifierToken) currentToken;
-                String ident = iden.name();
+                String ident = scanner.text();
                 ret = new ExpressionTree.Variable(ident);
                 getNextToken();
                 break;
@@ -203,12 +285,12 @@ public class ExpressionParser {
         
         Token.Kind k = null;
         ExpressionTree.Node ret = null;
-        while (isPreOp(currentToken)) {
-            k = currentToken.kind();
+        while (isPreOp(currentKind)) {
+            k = currentKind;
             getNextToken();
         }
-//        Token temp = currentToken;
-        //Doesnt need a temp variable to hold the current token, because currentToken serves as a proper rover when navigating post and preops
+//        Token.Kind temp = currentKind;
+        //Doesnt need a temp variable to hold the current token, because currentKind serves as a proper rover when navigating post and preops
         ExpressionTree.Node left = parseAtom();
         
         if (k != null) {
@@ -231,11 +313,11 @@ public class ExpressionParser {
             ret = left;
         }
         
-        while (isPostOp(currentToken)) {
-            if(currentToken.kind().equals(Token.Kind.PLUS_PLUS)){
+        while (isPostOp(currentKind)) {
+            if(currentKind.equals(Token.Kind.PLUS_PLUS)){
                 ret = new ExpressionTree.PostIncrement(ret);
             }
-            else if(currentToken.kind().equals(Token.Kind.MINUS_MINUS)){
+            else if(currentKind.equals(Token.Kind.MINUS_MINUS)){
                 ret = new ExpressionTree.PostDecrement(ret);
             }
             getNextToken();
@@ -250,12 +332,12 @@ public class ExpressionParser {
         
         ExpressionTree.Node ret = parseFactor();
         
-        while (isMulOp(currentToken)) {
-            Token temp = currentToken; ////Needs temp because currentToken changes when parsing the Factor 3 lines down
+        while (isMulOp(currentKind)) {
+            Token.Kind temp = currentKind; ////Needs temp because currentKind changes when parsing the Factor 3 lines down
             getNextToken();
             ExpressionTree.Node left = ret;
             ExpressionTree.Node right = parseFactor();
-            switch (temp.kind()) {
+            switch (temp) {
                 case TIMES:
                     ret = new ExpressionTree.Multiply(left, right);
                     break;
@@ -278,14 +360,14 @@ public class ExpressionParser {
         
         ExpressionTree.Node ret = parseTerm();
         
-        while (isAddOp(currentToken)) {
-            Token temp = currentToken; //Needs temp because currentToken changes when parsing the Term 3 lines down
+        while (isAddOp(currentKind)) {
+            Token.Kind temp = currentKind; //Needs temp because currentKind changes when parsing the Term 3 lines down
             getNextToken();
             ExpressionTree.Node left = ret;
             ExpressionTree.Node right = parseTerm();
-            if (temp.kind().equals(Token.Kind.PLUS)) {
+            if (temp.equals(Token.Kind.PLUS)) {
                 ret = new ExpressionTree.Add(left, right);
-            } else if (temp.kind().equals(Token.Kind.MINUS)) {
+            } else if (temp.equals(Token.Kind.MINUS)) {
                 ret = new ExpressionTree.Subtract(left, right);
             }
         }
@@ -299,12 +381,12 @@ public class ExpressionParser {
         
         ExpressionTree.Node ret = parseSimpleExpression();
         
-        while (isAssignOp(currentToken)) {
-            Token temp = currentToken; //Needs temp because currentToken changes when parsing the SimpleExpression 3 lines down
+        while (isAssignOp(currentKind)) {
+            Token.Kind temp = currentKind; //Needs temp because currentKind changes when parsing the SimpleExpression 3 lines down
             getNextToken();
             ExpressionTree.Node left = ret;
             ExpressionTree.Node right = parseSimpleExpression();
-            switch (temp.kind()) {
+            switch (temp) {
                 case ASSIGN:
                     ret = new ExpressionTree.Assign(left, right);
                     break;
@@ -330,16 +412,42 @@ public class ExpressionParser {
 
     public ExpressionTree.Node parse(String s) throws SyntaxError, ExpressionTree.NotAVariable, ExpressionTree.UndefinedVariable {
         //Parse returns a node which is the head of the expression tree. All other parse methods return a node aswell.
+        //If there is a cache, the tree may have been parsed before (and may be shared with other callers).
         
-        scanner = new ExpressionScanner(s);
+        if (cache != null) {
+            ExpressionTree.Node cached = cache.get(s);
+            if (cached != null) {
+                return cached;
+            }
+        }
+
+        ExpressionTree.Node parseExpression = parse(new ExpressionScanner(s));
+
+        if (cache != null) {
+            cache.put(s, parseExpression);
+        }
+        return parseExpression;
+    }
+
+    public ExpressionTree.Node parse(TokenCursor tokens) throws SyntaxError, ExpressionTree.NotAVariable, ExpressionTree.UndefinedVariable {
+        //Parses the tokens from the cursor up to the END token, e.g. one line of an
+        //ExpressionStreamScanner.  This never uses the cache, since there is no string.
+
+        scanner = tokens;
         getNextToken();
         ExpressionTree.Node parseExpression = parseExpression();
-        if (currentToken.kind() != Token.Kind.END) {
+        if (currentKind != Token.Kind.END) {
             throw new SyntaxError(scanner.position());
         }
         return parseExpression;
     }
 
+    public ExpressionTree.Node parse(String s, Binder.Frame frame) throws SyntaxError, ExpressionTree.NotAVariable, ExpressionTree.UndefinedVariable {
+        //Parses and then binds each variable to a slot in the frame (see Binder).
+
+        return Binder.bind(parse(s), frame);
+    }
+
     // A main program to test your parser:
     public static void main(String[] args) throws ExpressionTree.NotAVariable, ExpressionTree.UndefinedVariable {
         ExpressionParser parser = new ExpressionParser();
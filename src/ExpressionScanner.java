@@ -1,6 +1,6 @@
 import java.io.Console;
 
-public class ExpressionScanner {
+public class ExpressionScanner implements TokenCursor {
 
 	public static enum State {
 		START() {
@@ -144,23 +144,109 @@ public class ExpressionScanner {
 	}
 
 
-	private String line;
-	private State state;
+	// The State enum above defines the scanner, but calling next(c) for every
+	// character means a virtual call, a switch and calls to Character.isLetter
+	// and friends.  So the scanner actually runs from a transition table that
+	// is built from the enum when the class is loaded.  ASCII characters are
+	// first mapped to a character class (characters that every state treats
+	// the same way share a class), and the table, indexed by state ordinal and
+	// character class, gives the ordinal of the next state.  Other (Unicode)
+	// characters are rare, so they just go through State.next.
+
+	static final State[]   STATES = State.values();
+	static final int       START = State.START.ordinal();
+	static final int       ERROR = State.ERROR.ordinal();
+	static final boolean[] ACCEPTING = new boolean[STATES.length];
+	private static final byte[]    CHAR_CLASS = new byte[128];	// ASCII character -> class
+	private static final int       CLASSES;			// Number of character classes
+	private static final byte[]    TRANSITIONS;			// [state * CLASSES + class] -> state
+
+	static {
+		for (State state : STATES) {
+			ACCEPTING[state.ordinal()] = state.accepting();
+		}
+
+		// Give each ASCII character the class of the first character with
+		// the same transitions from every state (or a new class if none).
+
+		char[] representative = new char[128];
+		int classes = 0;
+		for (char c = 0; c < 128; c++) {
+			int match = -1;
+			for (int k = 0; k < classes && match < 0; k++) {
+				match = k;
+				for (State state : STATES) {
+					if (state.next(c) != state.next(representative[k])) {
+						match = -1;
+						break;
+					}
+				}
+			}
+			if (match < 0) {
+				match = classes++;
+				representative[match] = c;
+			}
+			CHAR_CLASS[c] = (byte) match;
+		}
+
+		CLASSES = classes;
+		TRANSITIONS = new byte[STATES.length * classes];
+		for (State state : STATES) {
+			for (int k = 0; k < classes; k++) {
+				TRANSITIONS[state.ordinal() * classes + k] = (byte) state.next(representative[k]).ordinal();
+			}
+		}
+	}
+
+	static int transition(int state, char c) {
+		// The ordinal of the state after c (shared with ExpressionStreamScanner).
+		if (c < 128) {
+			return TRANSITIONS[state * CLASSES + CHAR_CLASS[c]];
+		} else {
+			return STATES[state].next(c).ordinal();
+		}
+	}
+
+
+	// The scanner can be used in two ways.  next() returns each token as a
+	// Token object.  Alternatively, advance() moves a cursor to the next token
+	// and returns its kind, after which start(), end() and intValue() describe
+	// it in terms of the original text.  The cursor doesn't allocate anything
+	// per token, so the parser uses it and only makes a String for the names
+	// of identifiers, which the expression tree needs anyway.
+
+	private CharSequence line;
 	private State lastAcceptingState;
 	private int startingIndex;
 	private int endingIndex;
 	private int position;
+	private int lookedAt;		// The character that ended the token at the cursor
+	private Token.Kind kind;	// The kind of the token at the cursor
 
 
-	public ExpressionScanner(String line) {
-		State state = State.START;
+	public ExpressionScanner(CharSequence line) {
+		reset(line);
+	}
+
+	public void reset(CharSequence line) {
+		// Starts scanning another line with this scanner.
 		this.line = line;
 		this.startingIndex = 0;
 		this.endingIndex = -1;
 		this.position = 0;
 		this.lastAcceptingState = State.ERROR;
+		this.kind = null;
 	}
 
+	public void reset(CharSequence line, int start) {
+		// Starts scanning the line from an index where a token (or the
+		// whitespace before one) starts, as when only the text from there
+		// on has changed.
+		reset(line);
+		this.startingIndex = start;
+	}
+
+	@Override
 	public int position() {
 		return this.position;
 	}
@@ -170,53 +256,174 @@ public class ExpressionScanner {
 	}
 
 
-	public Token next() {
-		State state = State.START;
-		lastAcceptingState = State.START;
-		Token token;
+	@Override
+	public Token.Kind advance() {
+
+		// Moves the cursor to the next token and returns its kind (END if
+		// there are no more).
+
+		if (!hasNext()) {
+			kind = Token.Kind.END;
+			lookedAt = line.length();
+			return kind;
+		}
+
+		CharSequence line = this.line;
+		int length = line.length();
+		int state = START;
+		int lastAccepting = START;
 
 		endingIndex = startingIndex;
-		for (int i = startingIndex; i < line.length(); i++) {
-			state = state.next(line.charAt(i));
-			if (state == State.ERROR) {
+		lookedAt = length;
+		for (int i = startingIndex; i < length; i++) {
+			state = transition(state, line.charAt(i));
+
+			if (state == ERROR) {
+				lookedAt = i;
 				break;
-			} else if (state == State.START) {
+			} else if (state == START) {
 				startingIndex = i+1;
-			} else if (state.accepting()) {
-				lastAcceptingState = state;
+			} else if (ACCEPTING[state]) {
+				lastAccepting = state;
 				endingIndex = i;
 			}
 		}
 
-		switch(lastAcceptingState.kind()) {
+		lastAcceptingState = STATES[lastAccepting];
+		kind = lastAcceptingState.kind();
+		if (kind == Token.Kind.ERROR) {
+			// The rest of the line is in error.
+			endingIndex = line.length();
+			lookedAt = line.length();
+		} else {
+			endingIndex++;
+		}
+
+		position = startingIndex;
+		startingIndex = endingIndex;
+		return kind;
+	}
+
+	public Token.Kind kind() {
+		// The kind of the token at the cursor.
+		return this.kind;
+	}
+
+	public int start() {
+		// The index of the first character of the token at the cursor.
+		return this.position;
+	}
+
+	public int end() {
+		// The index just past the last character of the token at the cursor.
+		return (kind == Token.Kind.END) ? this.position : this.endingIndex;
+	}
+
+	public int lookedAt() {
+		// The index of the character that showed where the token at the
+		// cursor ends (the scanner had to look at it), or the length of the
+		// line if the token ran to the end.  This is usually end(), but an
+		// identifier followed by '_' needs the character after the '_' too.
+		// A change to the line at or before this index can change the token.
+		return this.lookedAt;
+	}
+
+	@Override
+	public int intValue() {
+
+		// The value of the number at the cursor, computed straight from the
+		// digits.  Like Integer.parseInt, this rejects values that overflow.
+
+		int value = 0;
+		for (int i = start(); i < end(); i++) {
+			int digit = Character.digit(line.charAt(i), 10);
+			if (value > (Integer.MAX_VALUE - digit) / 10) {
+				throw new NumberFormatException("For input string: \"" + text() + "\"");
+			}
+			value = 10 * value + digit;
+		}
+		return value;
+	}
+
+	@Override
+	public String text() {
+		// The text of the token at the cursor (this one allocates).
+		return line.subSequence(start(), end()).toString();
+	}
+
+
+	public Token next() {
+		advance();
+		switch(kind) {
 			case IDENTIFIER:
-				String name = line.substring(startingIndex, endingIndex+1);
-				token = new Token.IdentifierToken(name);
-				break;
+				return new Token.IdentifierToken(text());
 
 			case NUMBER:
-				String value = line.substring(startingIndex, endingIndex+1);
-				token = new Token.NumberToken(Integer.parseInt(value));
-				break;
+				return new Token.NumberToken(intValue());
 
 			case ERROR:
-				String text = line.substring(startingIndex);
-				token = new Token.ErrorToken(text);
-				endingIndex = line.length();
-				break;
+				return new Token.ErrorToken(text());
 
 			default:
-				token = lastAcceptingState.token();
-				break;
+				return lastAcceptingState.token();
+		}
+	}
+
+
+	// A benchmark comparing next() with the cursor on a long input.
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = java.lang.management.ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	private static void benchmark() {
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < 1000000; i++) {
+			text.append("(total").append(i % 97).append(" += price * ").append(i).append(") % rate_").append(i % 13).append(" - ");
+		}
+		text.append("0");
+		String line = text.toString();
+
+		for (int round = 0; round < 5; round++) {
+			long before = allocatedBytes();
+			long start = System.nanoTime();
+			int tokens = 0;
+			ExpressionScanner scanner = new ExpressionScanner(line);
+			while (scanner.hasNext()) {
+				scanner.next();
+				tokens++;
+			}
+			long objectTime = System.nanoTime() - start;
+			long objectBytes = allocatedBytes() - before;
+
+			before = allocatedBytes();
+			start = System.nanoTime();
+			scanner = new ExpressionScanner(line);
+			long checksum = 0;
+			while (scanner.advance() != Token.Kind.END) {
+				checksum += scanner.end() - scanner.start();
+			}
+			long cursorTime = System.nanoTime() - start;
+			long cursorBytes = allocatedBytes() - before;
+
+			System.out.printf("%d tokens: next() %.1f ns/token %.1f bytes/token, cursor %.1f ns/token %.1f bytes/token%n",
+				tokens, (double) objectTime / tokens, (double) objectBytes / tokens,
+				(double) cursorTime / tokens, (double) cursorBytes / tokens);
 		}
-		
-		position = startingIndex;
-		startingIndex = endingIndex + 1;
-		return token;
 	}
 
 
     public static void main(String[] args){
+		if (args.length > 0 && args[0].equals("bench")) {
+			benchmark();
+			return;
+		}
+
         Console console = System.console();
 		String prompt = "Expression: ";
 
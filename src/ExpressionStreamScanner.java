@@ -0,0 +1,428 @@
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+public class ExpressionStreamScanner implements TokenCursor {
+
+	// A scanner for a stream of expressions, one per line, that is too big to
+	// hold in memory (a multi-gigabyte log, say).  Characters are pulled from
+	// a Reader into a fixed-size buffer, which is refilled as the scanner
+	// reaches its end; the part of the buffer before the token being scanned
+	// is no longer needed, so the rest is first moved down to the front.  A
+	// token that spans two fills is therefore still contiguous in the buffer.
+	// The buffer only grows if a single token is longer than it is.
+	//
+	// The scanner runs the same transition table as ExpressionScanner.  It
+	// works a line at a time: nextLine() moves to the start of the next line,
+	// and advance() then returns the tokens in that line, followed by END at
+	// the newline (so a parser can be run on each line).  The \r of a \r\n
+	// line ending is dropped, as BatchRunner does, but other whitespace at
+	// the end of a line is an ERROR, as it is for ExpressionScanner, so a
+	// line parses the same whichever cursor it comes from.
+	//
+	// start() and end() are absolute offsets (in chars) from the start of the
+	// stream, so they are longs.  position() is the offset within the line, for
+	// SyntaxErrors, and line() is the (1-based) line number.
+
+	private Reader reader;
+	private char[] buffer;
+	private long   base;		// The offset in the stream of buffer[0]
+	private int    limit;		// buffer[0 .. limit) holds valid characters
+	private int    index;		// The next character to scan
+	private boolean eof;		// The reader has no more characters
+
+	private long   line;		// The current line number (0 before the first)
+	private long   lineStart;	// The offset in the stream of the current line
+	private boolean lineEnded;	// The cursor has reached the end of the line
+
+	private Token.Kind kind;	// The kind of the token at the cursor
+	private int    tokenStart;	// buffer[tokenStart .. tokenEnd) is its text
+	private int    tokenEnd;
+	private long   start;		// Its offsets in the stream
+	private long   end;
+	private long   previous;	// The start of the last token in the line
+
+
+	public ExpressionStreamScanner(Reader reader, int bufferSize) {
+		this.reader = reader;
+		this.buffer = new char[Math.max(bufferSize, 16)];
+		this.base = 0;
+		this.limit = 0;
+		this.index = 0;
+		this.eof = false;
+		this.line = 0;
+		this.lineStart = 0;
+		this.lineEnded = true;
+		this.kind = null;
+	}
+
+	public ExpressionStreamScanner(Reader reader) {
+		this(reader, 8192);
+	}
+
+	public ExpressionStreamScanner(ReadableByteChannel channel, Charset charset) {
+		// Decodes the bytes read from the channel straight into the buffer.
+		this(Channels.newReader(channel, charset.newDecoder(), -1));
+	}
+
+
+	private int fill(int keep) {
+
+		// Reads more characters into the buffer, keeping buffer[keep ..]
+		// (and moving it down to the front).  Returns how far it was moved,
+		// so the caller can adjust its indexes, or -1 at the end of the stream.
+
+		if (eof) return -1;
+
+		int count = limit - keep;
+		if (count == buffer.length) {
+			// A single token fills the whole buffer.
+			buffer = java.util.Arrays.copyOf(buffer, 2 * buffer.length);
+		}
+		System.arraycopy(buffer, keep, buffer, 0, count);
+		base += keep;
+		limit = count;
+		index -= keep;
+		tokenStart -= keep;
+		tokenEnd -= keep;
+
+		try {
+			int n;
+			do {
+				n = reader.read(buffer, limit, buffer.length - limit);
+			} while (n == 0);
+			if (n < 0) {
+				eof = true;
+				return -1;
+			}
+			limit += n;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return keep;
+	}
+
+	private int peek() {
+		// The character at index (or -1 at the end of the stream).  Nothing
+		// before index needs to be kept.
+		if (index == limit && fill(index) < 0) return -1;
+		return buffer[index];
+	}
+
+
+	public boolean nextLine() {
+
+		// Skips whatever is left of the current line and moves to the start
+		// of the next one.  Returns false if there are no more lines.
+
+		if (line > 0) {
+			int c;
+			while ((c = peek()) >= 0 && c != '\n') index++;
+			if (c < 0) return false;
+			index++;
+		}
+		if (peek() < 0) return false;
+
+		line++;
+		lineStart = base + index;
+		previous = lineStart;
+		lineEnded = false;
+		kind = null;
+		return true;
+	}
+
+	public long line() {
+		return this.line;
+	}
+
+	public long lineStart() {
+		// The offset in the stream of the start of the current line.
+		return this.lineStart;
+	}
+
+
+	@Override
+	public Token.Kind advance() {
+
+		// Moves the cursor to the next token in the line and returns its kind
+		// (END if there are no more).  As in ExpressionScanner, the END is
+		// at the start of the last token (or of the line, if it is empty),
+		// so that a SyntaxError there has the same position.
+
+		if (lineEnded) {
+			kind = Token.Kind.END;
+			tokenStart = tokenEnd = index;
+			start = end = previous;
+			return kind;
+		}
+
+		int state = ExpressionScanner.START;
+		int lastAccepting = ExpressionScanner.START;
+		tokenStart = index;
+		tokenEnd = index;
+		long scanStart = base + index;	// Where the whitespace before the token starts
+		boolean afterReturn = false;	// The last whitespace character was a \r
+
+		int i = index;
+		while (true) {
+			if (i == limit) {
+				// Only the characters from the start of the token on are kept.
+				// They may be moved down even if the stream has ended.
+				long before = base;
+				boolean more = fill(tokenStart) >= 0;
+				i -= (int) (base - before);
+				if (!more) break;
+			}
+
+			char c = buffer[i];
+			if (state == ExpressionScanner.START && c == '\n') break;
+
+			state = ExpressionScanner.transition(state, c);
+			if (state == ExpressionScanner.ERROR) {
+				break;
+			} else if (state == ExpressionScanner.START) {
+				tokenStart = i+1;
+				afterReturn = (c == '\r');
+			} else if (ExpressionScanner.ACCEPTING[state]) {
+				lastAccepting = state;
+				tokenEnd = i+1;
+			}
+			i++;
+		}
+
+		kind = ExpressionScanner.STATES[lastAccepting].kind();
+		if (kind != Token.Kind.ERROR) {
+			index = tokenEnd;
+
+		} else if (i == tokenStart && (i == limit || buffer[i] == '\n')
+				&& (base + tokenStart == scanStart || (base + tokenStart == scanStart + 1 && afterReturn))) {
+			// The end of the line, perhaps after the \r of a \r\n.
+			kind = Token.Kind.END;
+			index = tokenEnd = tokenStart;
+			lineEnded = true;
+			start = end = previous;
+			return kind;
+
+		} else {
+			// The rest of the line is in error (which it also is if there is
+			// only whitespace left, as in ExpressionScanner).  It is skipped
+			// without being kept, however long it is, so it has no text.
+			boolean trailing = (i == tokenStart && (i == limit || buffer[i] == '\n'));
+			index = tokenStart;
+			start = base + tokenStart - ((trailing && afterReturn) ? 1 : 0);
+			previous = start;
+			int c;
+			while ((c = peek()) >= 0 && c != '\n') index++;
+			tokenStart = tokenEnd = index;
+			end = base + index;
+			lineEnded = true;
+			return kind;
+		}
+
+		start = base + tokenStart;
+		end = base + tokenEnd;
+		previous = start;
+		return kind;
+	}
+
+	public Token.Kind kind() {
+		// The kind of the token at the cursor.
+		return this.kind;
+	}
+
+	public long start() {
+		// The offset in the stream of the first character of the token.
+		return this.start;
+	}
+
+	public long end() {
+		// The offset in the stream just past the last character of the token.
+		return this.end;
+	}
+
+	@Override
+	public int position() {
+		return (int) (this.start - this.lineStart);
+	}
+
+	@Override
+	public int intValue() {
+
+		// The value of the number at the cursor, computed straight from the
+		// digits in the buffer, as in ExpressionScanner.
+
+		int value = 0;
+		for (int i = tokenStart; i < tokenEnd; i++) {
+			int digit = Character.digit(buffer[i], 10);
+			if (value > (Integer.MAX_VALUE - digit) / 10) {
+				throw new NumberFormatException("For input string: \"" + text() + "\"");
+			}
+			value = 10 * value + digit;
+		}
+		return value;
+	}
+
+	@Override
+	public String text() {
+		// The text of the token at the cursor (empty for an ERROR, which
+		// isn't kept).
+		return new String(buffer, tokenStart, tokenEnd - tokenStart);
+	}
+
+
+	// A main program that checks that random lines parse (or fail at the
+	// same position) as they do from ExpressionScanner, and then parses and
+	// evaluates a generated stream of lines, far bigger than the scanner's
+	// buffer, in constant memory.  With an argument, the lines are read from
+	// that file instead, with no check.
+
+	private static class Generator extends Reader {
+
+		// Produces count lines of expressions without ever holding them all.
+
+		private long remaining;
+		private long number;
+		private String pending = "";
+		private int offset;
+
+		Generator(long count) {
+			this.remaining = count;
+		}
+
+		@Override
+		public int read(char[] into, int off, int len) {
+			int n = 0;
+			while (n < len) {
+				if (offset == pending.length()) {
+					if (remaining == 0) break;
+					remaining--;
+					number++;
+					switch ((int) (number % 4)) {
+						case 0:  pending = "total += (x" + (number % 10) + " * 3 + " + number % 1000 + ") % 7\n"; break;
+						case 1:  pending = "x" + (number % 10) + " = " + number % 100000 + "\r\n"; break;
+						case 2:  pending = "count++   +   a_really_long_identifier_name_" + (number % 3) + "\n"; break;
+						default: pending = "total - $" + number + "\n"; break;
+					}
+					offset = 0;
+				}
+				int k = Math.min(len - n, pending.length() - offset);
+				pending.getChars(offset, offset + k, into, off + n);
+				offset += k;
+				n += k;
+			}
+			return (n == 0 && len > 0) ? -1 : n;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private static String outcome(ExpressionParser parser, TokenCursor tokens) {
+		try {
+			ExpressionTree.Node node = parser.parse(tokens);
+			return (node == null) ? "null" : node.format();
+		} catch (ExpressionParser.SyntaxError e) {
+			return "SyntaxError at " + e.position();
+		} catch (Exception e) {
+			return e.toString();
+		}
+	}
+
+	private static int check() {
+
+		// Parses random lines, ending in \n or \r\n, from a stream and from
+		// ExpressionScanner (without the \r, as BatchRunner drops it), and
+		// returns the number of lines whose trees or SyntaxError positions
+		// differ.
+
+		String alphabet = "ab1_ +-*=()$\r";
+		java.util.Random random = new java.util.Random(1);
+		ExpressionParser parser = new ExpressionParser();
+		int failures = 0;
+		for (int trial = 0; trial < 3000; trial++) {
+			StringBuilder text = new StringBuilder();
+			String[] lines = new String[1 + random.nextInt(8)];
+			for (int k = 0; k < lines.length; k++) {
+				StringBuilder line = new StringBuilder();
+				for (int i = random.nextInt(10); i > 0; i--) {
+					line.append(alphabet.charAt(random.nextInt(alphabet.length())));
+				}
+				text.append(line);
+				boolean last = (k == lines.length - 1);
+				if (random.nextBoolean()) {
+					text.append('\r');
+					line.append('\r');
+				}
+				if (!last || random.nextBoolean()) text.append('\n');
+				int end = line.length();
+				if (end > 0 && line.charAt(end-1) == '\r') end--;
+				lines[k] = line.substring(0, end);
+			}
+
+			ExpressionStreamScanner scanner = new ExpressionStreamScanner(new java.io.StringReader(text.toString()), 16);
+			for (String line : lines) {
+				if (!scanner.nextLine()) {
+					// An empty last line isn't a line.
+					if (line.length() > 0) failures++;
+					break;
+				}
+				String actual = outcome(parser, scanner);
+				String expected = outcome(parser, new ExpressionScanner(line));
+				if (!actual.equals(expected)) {
+					failures++;
+					System.out.println("Line " + scanner.line() + " of \"" + text.toString().replace("\r", "\\r").replace("\n", "\\n")
+						+ "\": " + actual + ", expected " + expected);
+				}
+			}
+		}
+		return failures;
+	}
+
+	public static void main(String[] args) throws Exception {
+		if (args.length == 0) {
+			int failures = check();
+			System.out.println(failures == 0 ? "Streamed lines parse as ExpressionScanner parses them" : failures + " differences");
+			if (failures != 0) System.exit(1);
+		}
+
+		// A small buffer for the generated lines, so that many tokens span two
+		// fills.  A file is decoded from its channel.
+		ExpressionStreamScanner scanner = (args.length > 0)
+			? new ExpressionStreamScanner(java.nio.channels.FileChannel.open(java.nio.file.Paths.get(args[0])),
+				java.nio.charset.StandardCharsets.UTF_8)
+			: new ExpressionStreamScanner(new Generator(2000000), 64);
+		ExpressionParser parser = new ExpressionParser();
+		IntValueHashMap symbols = new IntValueHashMap();
+		symbols.add("count", 0);
+		symbols.add("total", 0);
+		for (int i = 0; i < 3; i++) symbols.add("a_really_long_identifier_name_" + i, i);
+		for (int i = 0; i < 10; i++) symbols.add("x" + i, 0);
+
+		long lines = 0, errors = 0, sum = 0;
+		String firstError = null;
+		long start = System.nanoTime();
+		while (scanner.nextLine()) {
+			lines++;
+			try {
+				sum += parser.parse(scanner).evaluate(symbols);
+			} catch (ExpressionParser.SyntaxError e) {
+				if (firstError == null) {
+					firstError = "line " + scanner.line() + ", column " + (e.position() + 1)
+						+ " (offset " + (scanner.lineStart() + e.position()) + ")";
+				}
+				errors++;
+			} catch (ExpressionTree.UndefinedVariable | ExpressionTree.NotAVariable | ArithmeticException e) {
+				errors++;
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.printf("%d lines, %d errors, sum %d, %.1f ns/line, buffer %d chars%n",
+			lines, errors, sum, (double) elapsed / Math.max(lines, 1), scanner.buffer.length);
+		if (firstError != null) System.out.println("first syntax error at " + firstError);
+	}
+}
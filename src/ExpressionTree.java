@@ -1,10 +1,11 @@
 import java.io.Console;
+import java.util.NoSuchElementException;
+import java.util.function.IntBinaryOperator;
 import java.util.Scanner;
 
 public class ExpressionTree {
 
-	public static LinearProbingHashMap<String, Integer> symbols =
-		new LinearProbingHashMap();
+	public static SymbolTable symbols = new IntValueHashMap();
 
 	public static class UndefinedVariable extends Exception {
 		public UndefinedVariable(String name) {
@@ -23,10 +24,18 @@ public class ExpressionTree {
 
 		// An abstract class for the nodes in an expression tree.
 
-		public abstract int evaluate()
+		public abstract int evaluate(SymbolTable symbols)
 			throws UndefinedVariable;     // Evaluate the sub-tree rooted at this node
 
+		public int evaluate() throws UndefinedVariable {
+			return evaluate(symbols);     // ... using the global symbol table
+		}
+
 		public abstract String format();  // Format (RPN) the sub-tree rooted at this node
+
+		public boolean hasSideEffects() { // True if evaluating this sub-tree assigns a variable
+			return false;
+		}
 	}
 
 
@@ -34,14 +43,18 @@ public class ExpressionTree {
 
 		// A (sub)class to hold literals (integers) in an expression tree.
 
-		private int value;
+		private final int value;
 
 		public Number (int value) {
 			this.value = value;
 		}
 
+		public int value() {
+			return this.value;
+		}
+
 		@Override
-		public int evaluate() throws UndefinedVariable {
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
 			return this.value;
 		}
 
@@ -62,26 +75,68 @@ public class ExpressionTree {
 		// We will add a symbol table later to keep track of the
 		// current value of each variable.
 
-		private String name;
+		private final String name;
 
 		public Variable(String name) {
 			this.name = name;
 		}
 
+		public String name() {
+			return this.name;
+		}
+
 		@Override
-		public int evaluate() throws UndefinedVariable {
-			Integer value = symbols.find(this.name);
-			if (value == null) {
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
+			try {
+				return symbols.find(this.name);
+			} catch (NoSuchElementException e) {
 				throw new UndefinedVariable(this.name);
-			} else {
-				return value;
 			}
 		}
 
-		public void update(int value) {
+		public void update(SymbolTable symbols, int value) {
 			symbols.add(this.name, value);
 		}
 
+		public void update(int value) {
+			update(symbols, value);
+		}
+
+		public int add(SymbolTable symbols, int delta) throws UndefinedVariable {
+			// Adds delta to the variable (for ++ and --) as a single update
+			// of the symbol table, and returns its new value.
+			try {
+				return symbols.merge(this.name, delta, Integer::sum);
+			} catch (NoSuchElementException e) {
+				throw new UndefinedVariable(this.name);
+			}
+		}
+
+		public int update(SymbolTable symbols, AssignmentOperator op) throws UndefinedVariable {
+
+			// Evaluates a compound assignment (x op= right) as a single update
+			// of the symbol table.  Only valid if the right side has no side
+			// effects: since it can't change the variable, evaluating it before
+			// reading the variable gives the same result.
+
+			int operand;
+			try {
+				operand = op.right().evaluate(symbols);
+			} catch (UndefinedVariable | ArithmeticException e) {
+				// The variable itself is checked first when done in order.
+				if (!symbols.contains(this.name)) {
+					throw new UndefinedVariable(this.name);
+				}
+				throw e;
+			}
+
+			try {
+				return symbols.merge(this.name, operand, op);
+			} catch (NoSuchElementException e) {
+				throw new UndefinedVariable(this.name);
+			}
+		}
+
 		@Override
 		public String format() {
 			return name;
@@ -93,16 +148,23 @@ public class ExpressionTree {
 
 		// An abstract subclass for unary operator nodes.
 
-		private Node operand;
+		private final Node operand;
+		private final boolean sideEffects;
 
 		public UnaryOperator(Node operand) {
 			this.operand = operand;
+			this.sideEffects = operand != null && operand.hasSideEffects();
 		}
 
 		public Node operand() {
 			return this.operand;
 		}
 
+		@Override
+		public boolean hasSideEffects() {
+			return this.sideEffects;
+		}
+
 		public String format() {
 			return operand.format() + " " + this.op();
 		}
@@ -122,8 +184,8 @@ public class ExpressionTree {
 		}
 
 		@Override
-		public int evaluate() throws UndefinedVariable {
-			return -operand().evaluate();
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
+			return -operand().evaluate(symbols);
 		}
 
 		@Override
@@ -146,6 +208,11 @@ public class ExpressionTree {
 			Node operand = this.operand();
 			return (Variable) operand;
 		}
+
+		@Override
+		public boolean hasSideEffects() {
+			return true;
+		}
 	}
 
 
@@ -156,11 +223,8 @@ public class ExpressionTree {
 		}
 
 		@Override
-		public int evaluate() throws UndefinedVariable {
-			Variable variable = this.variable();
-			int value = variable.evaluate() + 1;
-			variable.update(value);
-			return value;
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
+			return variable().add(symbols, 1);
 		}
 
 		@Override
@@ -177,11 +241,8 @@ public class ExpressionTree {
 		}
 
 		@Override
-		public int evaluate() throws UndefinedVariable {
-			Variable variable = this.variable();
-			int value = variable.evaluate() - 1;
-			variable.update(value);
-			return value;
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
+			return variable().add(symbols, -1);
 		}
 
 		@Override
@@ -198,11 +259,8 @@ public class ExpressionTree {
 		}
 
 		@Override
-		public int evaluate() throws UndefinedVariable {
-			Variable variable = this.variable();
-			int value = variable.evaluate();
-			variable.update(value + 1);
-			return value;
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
+			return variable().add(symbols, 1) - 1;
 		}
 
 		@Override
@@ -219,11 +277,8 @@ public class ExpressionTree {
 		}
 
 		@Override
-		public int evaluate() throws UndefinedVariable {
-			Variable variable = this.variable();
-			int value = variable.evaluate();
-			variable.update(value - 1);
-			return value;
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
+			return variable().add(symbols, -1) + 1;
 		}
 
 		@Override
@@ -235,12 +290,20 @@ public class ExpressionTree {
 
 	public abstract static class BinaryOperator extends Node {
 
-		private Node left;
-		private Node right;
+		private final Node left;
+		private final Node right;
+		private final boolean sideEffects;
 
 		private BinaryOperator(Node left, Node right) {
 			this.left = left;
 			this.right = right;
+			this.sideEffects = (left != null && left.hasSideEffects())
+				|| (right != null && right.hasSideEffects());
+		}
+
+		@Override
+		public boolean hasSideEffects() {
+			return this.sideEffects;
 		}
 
 		public Node left() {
@@ -267,8 +330,8 @@ public class ExpressionTree {
 		}
 
 		@Override
-		public int evaluate() throws UndefinedVariable {
-			return left().evaluate() + right().evaluate();
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
+			return left().evaluate(symbols) + right().evaluate(symbols);
 		}
 
 		@Override
@@ -285,8 +348,8 @@ public class ExpressionTree {
 		}
 
 		@Override
-		public int evaluate() throws UndefinedVariable {
-			return left().evaluate() - right().evaluate();
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
+			return left().evaluate(symbols) - right().evaluate(symbols);
 		}
 
 		@Override
@@ -303,8 +366,8 @@ public class ExpressionTree {
 		}
 
 		@Override
-		public int evaluate() throws UndefinedVariable {
-			return left().evaluate() * right().evaluate();
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
+			return left().evaluate(symbols) * right().evaluate(symbols);
 		}
 
 		@Override
@@ -321,8 +384,8 @@ public class ExpressionTree {
 		}
 
 		@Override
-		public int evaluate() throws UndefinedVariable {
-			return left().evaluate() / right().evaluate();
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
+			return left().evaluate(symbols) / right().evaluate(symbols);
 		}
 
 		@Override
@@ -339,8 +402,8 @@ public class ExpressionTree {
 		}
 
 		@Override
-		public int evaluate() throws UndefinedVariable {
-			return left().evaluate() % right().evaluate();
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
+			return left().evaluate(symbols) % right().evaluate(symbols);
 		}
 
 		@Override
@@ -350,7 +413,8 @@ public class ExpressionTree {
 	}
 
 
-	public static abstract class AssignmentOperator extends BinaryOperator {
+	public static abstract class AssignmentOperator extends BinaryOperator
+			implements IntBinaryOperator {
 	
 		public AssignmentOperator(Node left, Node right) throws NotAVariable {
 			super(left, right);
@@ -362,6 +426,33 @@ public class ExpressionTree {
 		public Variable variable() {
 			return (Variable) (left());
 		}
+
+		@Override
+		public boolean hasSideEffects() {
+			return true;
+		}
+
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
+
+			// Compound assignment: if the right side can't touch the symbol
+			// table, the variable is read and written in one update.
+
+			Variable variable = this.variable();
+			if (!right().hasSideEffects()) {
+				return variable.update(symbols, this);
+			}
+			int value = combine(variable.evaluate(symbols), right().evaluate(symbols));
+			variable.update(symbols, value);
+			return value;
+		}
+
+		public abstract int combine(int value, int operand);
+		// Combines the variable's current value with the right operand
+
+		@Override
+		public int applyAsInt(int value, int operand) {
+			return combine(value, operand);
+		}
 	}
 
 
@@ -371,13 +462,19 @@ public class ExpressionTree {
 			super(left, right);
 		}
 
-		public int evaluate() throws UndefinedVariable {
+		@Override
+		public int evaluate(SymbolTable symbols) throws UndefinedVariable {
 			Variable variable = this.variable();
-			int value = this.right().evaluate();
-			variable.update(value);
+			int value = this.right().evaluate(symbols);
+			variable.update(symbols, value);
 			return value;
 		}
 
+		@Override
+		public int combine(int value, int operand) {
+			return operand;
+		}
+
 		@Override
 		public String op() {
 			return "=";
@@ -390,12 +487,9 @@ public class ExpressionTree {
 			super(left, right);
 		}
 
-		public int evaluate() throws UndefinedVariable {
-			Variable variable = this.variable();
-			int value = variable.evaluate();
-			value += right().evaluate();
-			variable.update(value);
-			return value;
+		@Override
+		public int combine(int value, int operand) {
+			return value + operand;
 		}
 
 		@Override
@@ -410,12 +504,9 @@ public class ExpressionTree {
 			super(left, right);
 		}
 
-		public int evaluate() throws UndefinedVariable {
-			Variable variable = this.variable();
-			int value = variable.evaluate();
-			value -= right().evaluate();
-			variable.update(value);
-			return value;
+		@Override
+		public int combine(int value, int operand) {
+			return value - operand;
 		}
 
 		@Override
@@ -430,12 +521,9 @@ public class ExpressionTree {
 			super(left, right);
 		}
 
-		public int evaluate() throws UndefinedVariable {
-			Variable variable = this.variable();
-			int value = variable.evaluate();
-			value *= right().evaluate();
-			variable.update(value);
-			return value;
+		@Override
+		public int combine(int value, int operand) {
+			return value * operand;
 		}
 
 		@Override
@@ -450,12 +538,9 @@ public class ExpressionTree {
 			super(left, right);
 		}
 
-		public int evaluate() throws UndefinedVariable {
-			Variable variable = this.variable();
-			int value = variable.evaluate();
-			value /= right().evaluate();
-			variable.update(value);
-			return value;
+		@Override
+		public int combine(int value, int operand) {
+			return value / operand;
 		}
 
 		@Override
@@ -470,12 +555,9 @@ public class ExpressionTree {
 			super(left, right);
 		}
 
-		public int evaluate() throws UndefinedVariable {
-			Variable variable = this.variable();
-			int value = variable.evaluate();
-			value %= right().evaluate();
-			variable.update(value);
-			return value;
+		@Override
+		public int combine(int value, int operand) {
+			return value % operand;
 		}
 
 		@Override
@@ -485,126 +567,52 @@ public class ExpressionTree {
 	}
 
 
-	// The main program to test your class hierachy implementation.
-
-	private static Node[] stack;
-	private static int top = 0;
+	// Factory methods to build the node for an operator given its
+	// symbol (as returned by op()) and its operand(s).
 
-	private static Node pop() {
-		return stack[--top];
+	public static Node unary(String op, Node operand) throws NotAVariable {
+		switch(op) {
+			case "~":   return new Negate(operand);
+			case "++":  return new PreIncrement(operand);
+			case "--":  return new PreDecrement(operand);
+			case "+++": return new PostIncrement(operand);
+			case "---": return new PostDecrement(operand);
+			default:    return null;
+		}
 	}
 
-	private static void push(Node node) {
-		stack[top++] = node;
+	public static Node binary(String op, Node left, Node right) throws NotAVariable {
+		switch(op) {
+			case "+":  return new Add(left, right);
+			case "-":  return new Subtract(left, right);
+			case "*":  return new Multiply(left, right);
+			case "/":  return new Divide(left, right);
+			case "%":  return new Mod(left, right);
+			case "=":  return new Assign(left, right);
+			case "+=": return new AddTo(left, right);
+			case "-=": return new SubtractFrom(left, right);
+			case "*=": return new MultiplyBy(left, right);
+			case "/=": return new DivideBy(left, right);
+			case "%=": return new ModBy(left, right);
+			default:   return null;
+		}
 	}
 
-	public static int evaluate(String expression) throws NotAVariable, UndefinedVariable {
-		String[] args = expression.split(" ");
-		stack = new Node[args.length];
-		Node left, right;
-
-		for (String arg : args) {
-			switch(arg) {
-				case "~": // For disambiguation
-					push(new Negate(pop()));
-					break;
-
-				case "++":
-					push(new PreIncrement(pop()));
-					break;
-
-				case "--":
-					push(new PreDecrement(pop()));
-					break;
-
-				case "+++": // For disambiguation
-					push(new PostIncrement(pop()));
-					break;
-
-				case "---": // For disambiguation
-					push(new PostDecrement(pop()));
-					break;
-
-				case "+":
-					right = pop();
-					left = pop();
-					push(new Add(left, right));
-					break;
-
-				case "-":
-					right = pop();
-					left = pop();
-					push(new Subtract(left, right));
-					break;
-
-				case "*":
-					right = pop();
-					left = pop();
-					push(new Multiply(left, right));
-					break;
-
-				case "/":
-					right = pop();
-					left = pop();
-					push(new Divide(left, right));
-					break;
-
-				case "%":
-					right = pop();
-					left = pop();
-					push(new Mod(left, right));
-					break;
-
-				case "=":
-					right = pop();
-					left = pop();
-					push(new Assign(left, right));
-					break;
-
-				case "+=":
-					right = pop();
-					left = pop();
-					push(new AddTo(left, right));
-					break;
-
-				case "-=":
-					right = pop();
-					left = pop();
-					push(new SubtractFrom(left, right));
-					break;
-
-				case "*=":
-					right = pop();
-					left = pop();
-					push(new MultiplyBy(left, right));
-					break;
-
-				case "/=":
-					right = pop();
-					left = pop();
-					push(new DivideBy(left, right));
-					break;
-
-				case "%=":
-					right = pop();
-					left = pop();
-					push(new ModBy(left, right));
-					break;
-
-				default:
-					try {
-						int value = Integer.parseInt(arg);
-						push(new Number(value));
-					} catch (NumberFormatException e) {
-						push(new Variable(arg));
-					}
-			}
-		}
 
-		Node node = pop();
-		return node.evaluate();
+	// Evaluate an expression in RPN (as format() writes it), with an
+	// RpnEvaluator for each thread: it reads the tokens in place and keeps
+	// its stack from one call to the next, rather than splitting the string
+	// and building a tree each time.
+
+	private static final ThreadLocal<RpnEvaluator> evaluators = ThreadLocal.withInitial(RpnEvaluator::new);
+
+	public static int evaluate(String expression) throws NotAVariable, UndefinedVariable {
+		return evaluators.get().evaluate(expression);
 	}
 
+
+	// The main program to test your class hierachy implementation.
+
 	public static void main(String[] args) {
 		Scanner console = new Scanner(System.in);
 		System.out.println("Expression:");
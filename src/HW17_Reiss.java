@@ -14,7 +14,7 @@ import java.util.Scanner;
 public class HW17_Reiss {
 
     public static void main(String[] args) throws ExpressionTree.NotAVariable, ExpressionTree.UndefinedVariable {
-        ExpressionParser parser = new ExpressionParser();
+        ExpressionParser parser = new ExpressionParser(new ExpressionParser.Cache(1000));
         Scanner console = new Scanner(System.in);
         String prompt = "Expression: ";
         String line;
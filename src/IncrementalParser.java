@@ -0,0 +1,522 @@
+import java.util.Arrays;
+import java.util.Random;
+
+public class IncrementalParser {
+
+	// A parser for a line that is edited a little at a time, as in an
+	// editor that wants the tree after every keystroke.  It keeps the line,
+	// its tokens (with where each starts and ends) and what it learned from
+	// the last parse, and after an edit it does only the work that the edit
+	// can change:
+	//
+	//   - It scans again from the first token that could have changed, the
+	//     first one whose scan looked at a character at or after the edit
+	//     (or at the end of the line).  The scanner looks at the character
+	//     after a token to see where it ends, and after an identifier and a
+	//     '_' at the one after that ("a_b" is one identifier, "a_$" is "a"
+	//     and an error), so that is ExpressionScanner.lookedAt(), which is
+	//     kept for each token.  It stops as soon as a token starts where an
+	//     old token after the edit started, since from there on the tokens
+	//     are the old ones, moved.
+	//
+	//   - It parses (with PrecedenceParser) from the last state it saved
+	//     before the first token that changed: the parser's stacks at the
+	//     start of an operand depend only on the tokens before it, so the
+	//     trees already on them are used as they are.
+	//
+	//   - After that, a '(' ... ')' whose tokens haven't changed is not
+	//     parsed again: the tree inside it is used in place of its tokens.
+	//
+	// So the trees for everything before the edit, and for the parenthesized
+	// expressions after it, are shared with the previous tree.  A long run
+	// of operators with no parentheses after the edit is parsed again (from
+	// the tokens, without scanning), since how it groups depends on what
+	// came before.  The result, or the exception, is the same as for a full
+	// parse of the edited line: the tokens are the same, and PrecedenceParser
+	// builds the same trees as ExpressionParser and fails in the same way.
+	// Like the parsers, it isn't reentrant.
+
+	private static final int SPACING = 16;		// Tokens between saved states ...
+	private static final int SAVED_DEPTH = 64;	// ... if the stacks are no deeper than this
+
+	private String line = "";
+
+	// The tokens of the line: the kind, where it starts (the position a
+	// SyntaxError reports), where it ends, the last character the scanner
+	// looked at for it, the name of an identifier, and the value of a number
+	// (-1, with its text, if it is too large).  The last is always END.  The
+	// scanner never looks less far for a token than for the one before, so
+	// looks is in order.
+
+	private Token.Kind[] kinds = new Token.Kind[64];
+	private int[] starts = new int[64];
+	private int[] ends = new int[64];
+	private int[] looks = new int[64];
+	private String[] texts = new String[64];
+	private int[] values = new int[64];
+	private int count;
+
+	// For the '(' at each token, the token of its ')' and the tree between
+	// them, if the last parse got that far (-1 and null otherwise).
+
+	private int[] closes = new int[64];
+	private ExpressionTree.Node[] inners = new ExpressionTree.Node[64];
+
+	// The states saved by the parses so far, at increasing tokens, with the
+	// tokens of the '('s not yet closed.
+
+	private int[] savedAt = new int[16];
+	private PrecedenceParser.State[] saved = new PrecedenceParser.State[16];
+	private int[][] savedOpens = new int[16][];
+	private int savedCount;
+
+	// The tokens scanned for an edit, before they go in place.
+
+	private Token.Kind[] newKinds = new Token.Kind[64];
+	private int[] newStarts = new int[64];
+	private int[] newEnds = new int[64];
+	private int[] newLooks = new int[64];
+	private String[] newTexts = new String[64];
+	private int[] newValues = new int[64];
+	private int newCount;
+
+	private final ExpressionScanner scanner = new ExpressionScanner("");
+	private final Parser parser = new Parser();
+	private final Cursor cursor = new Cursor();
+	private int at;				// The token at the cursor
+	private int[] opens = new int[16];	// The tokens of the '('s being parsed
+	private int openCount;
+
+
+	public IncrementalParser() {
+		kinds[0] = Token.Kind.END;
+		closes[0] = -1;
+		count = 1;
+	}
+
+	public String line() {
+		return this.line;
+	}
+
+	public ExpressionTree.Node parse(String text) throws ExpressionParser.SyntaxError, ExpressionTree.NotAVariable {
+		// Parses a new line (which is an edit replacing all of the last).
+		return edit(0, line.length(), text);
+	}
+
+	public ExpressionTree.Node edit(int offset, int deletedLength, String insertedText)
+			throws ExpressionParser.SyntaxError, ExpressionTree.NotAVariable {
+
+		// Replaces deletedLength characters at offset with the inserted text,
+		// and parses the line that results.
+
+		if (offset < 0 || deletedLength < 0 || offset > line.length() - deletedLength) {
+			throw new IndexOutOfBoundsException("Can't delete " + deletedLength + " characters at " + offset
+				+ " from a line of " + line.length());
+		}
+		int editEnd = offset + deletedLength;
+		int delta = insertedText.length() - deletedLength;
+		line = line.substring(0, offset) + insertedText + line.substring(editEnd);
+
+		int first = firstChanged(offset);
+		int old = rescan(first, editEnd, delta);
+		replace(first, old, delta);
+
+		// Parse from the last state saved at or before the first new token.
+
+		while (savedCount > 0 && savedAt[savedCount-1] > first) {
+			saved[--savedCount] = null;
+		}
+		PrecedenceParser.State state = null;
+		if (savedCount > 0) {
+			state = saved[savedCount-1];
+			int[] open = savedOpens[savedCount-1];
+			System.arraycopy(open, 0, opens(open.length), 0, open.length);
+			openCount = open.length;
+			at = savedAt[savedCount-1] - 1;
+		} else {
+			openCount = 0;
+			at = -1;
+		}
+		return parser.parse(cursor, state);
+	}
+
+	private int firstChanged(int offset) {
+		// The first token whose scan looked at the offset or beyond (or the
+		// END).
+		int low = 0, high = count - 1;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (looks[middle] >= offset) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+		return low;
+	}
+
+	private int scanStart(int token) {
+		// Where the scanner started for the token (the end of the one before).
+		return (token == 0) ? 0 : ends[token-1];
+	}
+
+	private int rescan(int first, int editEnd, int delta) {
+
+		// Scans the new line from the start of the first token that changed
+		// until a token starts (in its whitespace) where an old token after
+		// the edit did, or to the END.  Leaves the tokens in new..., and
+		// returns the old token it stopped at (count if none).
+
+		scanner.reset(line, scanStart(first));
+		int boundary = scanStart(first);
+		int old = first;
+		newCount = 0;
+		while (true) {
+			while (old < count - 1 && (scanStart(old) < editEnd || scanStart(old) + delta < boundary)) {
+				old++;
+			}
+			if (old < count - 1 && scanStart(old) + delta == boundary) {
+				return old;
+			}
+
+			Token.Kind kind = scanner.advance();
+			if (newCount == newKinds.length) {
+				int length = 2 * newCount;
+				newKinds = Arrays.copyOf(newKinds, length);
+				newStarts = Arrays.copyOf(newStarts, length);
+				newEnds = Arrays.copyOf(newEnds, length);
+				newLooks = Arrays.copyOf(newLooks, length);
+				newTexts = Arrays.copyOf(newTexts, length);
+				newValues = Arrays.copyOf(newValues, length);
+			}
+			newKinds[newCount] = kind;
+			newStarts[newCount] = scanner.start();
+			newEnds[newCount] = scanner.end();
+			newLooks[newCount] = scanner.lookedAt();
+			newTexts[newCount] = null;
+			newValues[newCount] = 0;
+			if (kind == Token.Kind.IDENTIFIER) {
+				newTexts[newCount] = scanner.text();
+			} else if (kind == Token.Kind.NUMBER) {
+				try {
+					newValues[newCount] = scanner.intValue();
+				} catch (NumberFormatException e) {
+					newValues[newCount] = -1;
+					newTexts[newCount] = scanner.text();
+				}
+			}
+			newCount++;
+			if (kind == Token.Kind.END) {
+				return count;
+			}
+			boundary = scanner.end();
+		}
+	}
+
+	private void replace(int first, int old, int delta) {
+
+		// Puts the new tokens in place of the old ones from first up to old,
+		// and moves the rest (and the parentheses among them) along.
+
+		int moved = first + newCount;
+		int total = moved + (count - old);
+		if (total > kinds.length) {
+			int length = Math.max(total, 2 * kinds.length);
+			kinds = Arrays.copyOf(kinds, length);
+			starts = Arrays.copyOf(starts, length);
+			ends = Arrays.copyOf(ends, length);
+			looks = Arrays.copyOf(looks, length);
+			texts = Arrays.copyOf(texts, length);
+			values = Arrays.copyOf(values, length);
+			closes = Arrays.copyOf(closes, length);
+			inners = Arrays.copyOf(inners, length);
+		}
+
+		int rest = count - old;
+		System.arraycopy(kinds, old, kinds, moved, rest);
+		System.arraycopy(starts, old, starts, moved, rest);
+		System.arraycopy(ends, old, ends, moved, rest);
+		System.arraycopy(looks, old, looks, moved, rest);
+		System.arraycopy(texts, old, texts, moved, rest);
+		System.arraycopy(values, old, values, moved, rest);
+		System.arraycopy(closes, old, closes, moved, rest);
+		System.arraycopy(inners, old, inners, moved, rest);
+		for (int i = moved; i < total; i++) {
+			starts[i] += delta;
+			ends[i] += delta;
+			looks[i] += delta;
+			if (closes[i] >= 0) {
+				closes[i] += moved - old;
+			}
+		}
+
+		System.arraycopy(newKinds, 0, kinds, first, newCount);
+		System.arraycopy(newStarts, 0, starts, first, newCount);
+		System.arraycopy(newEnds, 0, ends, first, newCount);
+		System.arraycopy(newLooks, 0, looks, first, newCount);
+		System.arraycopy(newTexts, 0, texts, first, newCount);
+		System.arraycopy(newValues, 0, values, first, newCount);
+		Arrays.fill(closes, first, moved, -1);
+		Arrays.fill(inners, first, moved, null);
+		if (total < count) {
+			Arrays.fill(texts, total, count, null);
+			Arrays.fill(inners, total, count, null);
+		}
+		count = total;
+
+		// A '(' before the change whose ')' is after it no longer holds the
+		// same tree.  The END is where the scanner leaves it: at the start
+		// of the last token (and it looks at the end of the line).
+
+		for (int i = 0; i < first; i++) {
+			if (closes[i] >= first) {
+				closes[i] = -1;
+				inners[i] = null;
+			}
+		}
+		starts[count-1] = ends[count-1] = (count > 1) ? starts[count-2] : 0;
+		looks[count-1] = line.length();
+	}
+
+	private int[] opens(int length) {
+		if (length > opens.length) {
+			opens = Arrays.copyOf(opens, Math.max(length, 2 * opens.length));
+		}
+		return opens;
+	}
+
+
+	private class Cursor implements TokenCursor {
+
+		// The tokens of the line, for the parser.
+
+		@Override
+		public Token.Kind advance() {
+			if (at < count - 1) {
+				at++;
+			}
+			return kinds[at];
+		}
+
+		@Override
+		public int intValue() {
+			if (values[at] < 0) {
+				throw new NumberFormatException("For input string: \"" + texts[at] + "\"");
+			}
+			return values[at];
+		}
+
+		@Override
+		public String text() {
+			return (texts[at] != null) ? texts[at] : line.substring(starts[at], ends[at]);
+		}
+
+		@Override
+		public int position() {
+			return starts[at];
+		}
+	}
+
+
+	private class Parser extends PrecedenceParser {
+
+		// A PrecedenceParser that saves its state now and then, and keeps
+		// (and uses again) the trees inside parentheses.
+
+		@Override
+		void operand() {
+			if ((savedCount == 0 || at >= savedAt[savedCount-1] + SPACING) && depth() <= SAVED_DEPTH) {
+				if (savedCount == saved.length) {
+					savedAt = Arrays.copyOf(savedAt, 2 * savedCount);
+					saved = Arrays.copyOf(saved, 2 * savedCount);
+					savedOpens = Arrays.copyOf(savedOpens, 2 * savedCount);
+				}
+				savedAt[savedCount] = at;
+				saved[savedCount] = save();
+				savedOpens[savedCount++] = Arrays.copyOf(opens, openCount);
+			}
+		}
+
+		@Override
+		ExpressionTree.Node kept() {
+			ExpressionTree.Node inner = inners[at];
+			if (inner != null) {
+				at = closes[at];
+			}
+			return inner;
+		}
+
+		@Override
+		void opened() {
+			opens(openCount + 1)[openCount++] = at;
+		}
+
+		@Override
+		void closed(ExpressionTree.Node inner) {
+			// (A null tree, from (+x), isn't kept: null means none.)
+			int open = opens[--openCount];
+			if (inner != null) {
+				closes[open] = at;
+				inners[open] = inner;
+			}
+		}
+	}
+
+
+	// A main program that makes some edits, and then many random ones,
+	// checking each against a full parse (and exiting with status 1 if any
+	// differ), and then times edits to a line of 10,000 characters.
+
+	private static String outcome(IncrementalParser parser, int offset, int deletedLength, String insertedText) {
+		try {
+			ExpressionTree.Node node = parser.edit(offset, deletedLength, insertedText);
+			return (node == null) ? "null" : node.format();
+		} catch (ExpressionParser.SyntaxError e) {
+			return "SyntaxError at " + e.position();
+		} catch (Exception e) {
+			return e.toString();
+		}
+	}
+
+	private static String outcome(String line) {
+		try {
+			ExpressionTree.Node node = new PrecedenceParser().parse(line);
+			return (node == null) ? "null" : node.format();
+		} catch (ExpressionParser.SyntaxError e) {
+			return "SyntaxError at " + e.position();
+		} catch (Exception e) {
+			return e.toString();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		Object[][] edits = {
+			{ 0, 0, "a + b * (c - d)" },
+			{ 15, 0, " + 1" },		// Typing at the end
+			{ 2, 1, "-" },			// + to -
+			{ 0, 1, "alpha" },		// a to alpha
+			{ 12, 0, "(" },			// Unbalanced ...
+			{ 24, 0, ")" },			// ... and balanced again
+			{ 0, 6, "" },			// Delete "alpha "
+			{ 0, 0, "x = " },
+			{ 4, 0, "y = " },		// x = y = ..., not a variable
+			{ 4, 4, "99999999999 + " },	// A number that is too large
+			{ 4, 11, "9" },
+			{ 0, 0, "$" },			// An error token
+			{ 0, 1, "" },
+		};
+
+		IncrementalParser parser = new IncrementalParser();
+		int failures = 0;
+		for (Object[] edit : edits) {
+			String actual = outcome(parser, (Integer) edit[0], (Integer) edit[1], (String) edit[2]);
+			String expected = outcome(parser.line());
+			if (!expected.equals(actual)) {
+				failures++;
+			}
+			System.out.printf("%-28s %-45s %s%n", parser.line(), actual, expected.equals(actual) ? "" : "EXPECTED " + expected);
+		}
+
+		// Edits just after a '_', where the scanner looks two characters
+		// past an identifier: each line is parsed, then edited.
+
+		Object[][] underscores = {
+			{ "a_", 2, 0, "b" },
+			{ "a_$b", 2, 1, "" },
+			{ "a_%b/b*a", 2, 0, "b" },
+			{ "a_b", 2, 1, "" },
+			{ "x = a_ + 1", 6, 0, "1" },
+			{ "x1_y_ * 2", 5, 0, "z" },
+		};
+		for (Object[] edit : underscores) {
+			outcome(parser, 0, parser.line().length(), (String) edit[0]);
+			String actual = outcome(parser, (Integer) edit[1], (Integer) edit[2], (String) edit[3]);
+			String expected = outcome(parser.line());
+			if (!expected.equals(actual)) {
+				failures++;
+			}
+			System.out.printf("%-28s %-45s %s%n", parser.line(), actual, expected.equals(actual) ? "" : "EXPECTED " + expected);
+		}
+
+		// Random edits of random lines made of characters that matter to
+		// the scanner and the parser.
+
+		String alphabet = "ab1_ +-*/%=()$";
+		Random random = new Random(1);
+		int randomEdits = 0;
+		for (int trial = 0; trial < 2000; trial++) {
+			StringBuilder start = new StringBuilder();
+			for (int i = random.nextInt(12); i > 0; i--) {
+				start.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			}
+			outcome(parser, 0, parser.line().length(), start.toString());
+			for (int step = 0; step < 20; step++) {
+				String line = parser.line();
+				int offset = random.nextInt(line.length() + 1);
+				int deleted = random.nextInt(Math.min(3, line.length() - offset) + 1);
+				StringBuilder inserted = new StringBuilder();
+				for (int i = random.nextInt(3); i > 0; i--) {
+					inserted.append(alphabet.charAt(random.nextInt(alphabet.length())));
+				}
+				String actual = outcome(parser, offset, deleted, inserted.toString());
+				String expected = outcome(parser.line());
+				randomEdits++;
+				if (!expected.equals(actual)) {
+					failures++;
+					System.out.println("Editing \"" + line + "\" at " + offset + " (deleting " + deleted
+						+ ", inserting \"" + inserted + "\") gives " + actual + ", expected " + expected);
+				}
+			}
+		}
+		System.out.println(failures == 0 ? "Every edit (and " + randomEdits + " random ones) gives what a full parse does"
+			: failures + " differences");
+		if (failures != 0) System.exit(1);
+
+		// A line of 10,000 characters, edited by adding to its end, by
+		// changing a number somewhere in it, and by typing near its start.
+
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; text.length() < 10000; i++) {
+			text.append("(v").append(i % 97).append(" * ").append(i % 1000).append(" + w").append(i % 13).append(") % 97 - ");
+		}
+		text.append("0");
+		PrecedenceParser full = new PrecedenceParser();
+		String[] kinds = { "add to the end", "change a number", "type near the start" };
+		for (int round = 0; round < 3; round++) {
+			for (int kind = 0; kind < kinds.length; kind++) {
+				parser.parse(text.toString());
+				int times = 2000;
+				long incrementalTime = 0, fullTime = 0;
+				for (int i = 0; i < times; i++) {
+					String line = parser.line();
+					int offset, deleted;
+					String inserted;
+					if (kind == 0) {
+						offset = line.length();
+						deleted = 0;
+						inserted = " + x";
+					} else if (kind == 1) {
+						offset = line.indexOf(" * ", random.nextInt(line.length() - 20)) + 3;
+						deleted = 1;
+						inserted = "" + random.nextInt(10);
+					} else {
+						offset = 2;
+						deleted = (i % 2 == 0) ? 0 : 1;
+						inserted = (i % 2 == 0) ? "7" : "";
+					}
+					long start = System.nanoTime();
+					ExpressionTree.Node incremental = parser.edit(offset, deleted, inserted);
+					incrementalTime += System.nanoTime() - start;
+					start = System.nanoTime();
+					ExpressionTree.Node expected = full.parse(parser.line());
+					fullTime += System.nanoTime() - start;
+					if (!PrecedenceParser.same(expected, incremental)) {
+						throw new IllegalStateException("Different trees for " + parser.line());
+					}
+				}
+				System.out.printf("%-20s %d characters: incremental %.1f us/edit, full parse %.1f us/edit%n",
+					kinds[kind], parser.line().length(), incrementalTime / 1e3 / times, fullTime / 1e3 / times);
+			}
+		}
+	}
+}
@@ -0,0 +1,257 @@
+import java.lang.management.ManagementFactory;
+import java.util.NoSuchElementException;
+import java.util.function.IntBinaryOperator;
+
+public class IntValueHashMap implements SymbolTable {
+
+	// A specialization of LinearProbingHashMap for String keys and int values,
+	// so that the symbol table can store values without boxing them as Integers.
+
+	// As in LinearProbingHashMap the table is two parallel arrays, but the
+	// values are a primitive int[].  Since an int has no null, an empty slot
+	// is marked only by its key being null; values[i] is meaningless unless
+	// keys[i] != null.
+
+	// Capacity is a power of two (see LinearProbingHashMap) and is doubled
+	// when the load factor exceeds 50%.  Items are removed by backward-shift
+	// deletion: the entries following the removed one in its cluster are moved
+	// back into the gap when that brings them closer to their home slot, so
+	// nothing needs to be rehashed.
+
+	private String[] keys;		// The keys for the items in the hash map.
+	private int[]    values;	// values[i] is the value associated with keys[i].
+	private int      capacity;	// Current size of the arrays (keys & values).
+	private int      mask;		// capacity - 1
+	private int      size;		// Number of keys in the hash table
+
+
+	public IntValueHashMap(int capacity) {
+		capacity = LinearProbingHashMap.tableSize(capacity);
+		this.keys     = new String[capacity];
+		this.values   = new int[capacity];
+		this.capacity = capacity;
+		this.mask     = capacity - 1;
+		this.size     = 0;
+	}
+
+	public IntValueHashMap() {
+		this(16);
+	}
+
+
+	public int capacity() {
+		return this.capacity;
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+
+	public int hash(String key) {
+		// Returns the hash of this key wrt the table size.
+		return LinearProbingHashMap.mix(key.hashCode()) & this.mask;
+	}
+
+	private int increment(int index) {
+		// Increments the index mod the capacity of the map.
+		return (index + 1) & this.mask;
+	}
+
+	private int locate(String key) {
+		// Returns the slot in which this key is to be found.
+		int index = hash(key);
+		while(this.keys[index] != null && !this.keys[index].equals(key)) {
+			index = increment(index);
+		}
+		return index;
+	}
+
+
+	public boolean contains(String key) {
+		int index = locate(key);
+		return this.keys[index] != null;
+	}
+
+
+	public int find(String key) {
+		// Returns the value associated with the key; throws
+		// NoSuchElementException if the key is not in the map.
+		int index = locate(key);
+		if (this.keys[index] != null) {
+			return this.values[index];
+		} else {
+			throw new NoSuchElementException(key);
+		}
+	}
+
+	@Override
+	public int find(String key, int missing) {
+		// Returns the value associated with the key, or missing if none.
+		int index = locate(key);
+		return (this.keys[index] != null) ? this.values[index] : missing;
+	}
+
+
+	public int merge(String key, int operand, IntBinaryOperator function) {
+		// Replaces the value v associated with the key by function(v, operand),
+		// with a single probe (for x += 1, say); throws NoSuchElementException
+		// if the key is not in the map.
+		int index = locate(key);
+		if (this.keys[index] == null) {
+			throw new NoSuchElementException(key);
+		}
+		int value = function.applyAsInt(this.values[index], operand);
+		this.values[index] = value;
+		return value;
+	}
+
+
+	public void add(String key, int value) {
+
+		// Overwriting the value of a key already in the map does not
+		// change its size.
+
+		int index = locate(key);
+		if (this.keys[index] != null) {
+			this.values[index] = value;
+			return;
+		}
+
+		// Resize the hash table if the load factor exceeds 50%.
+
+		if (2 * (this.size + 1) > this.capacity) {
+			resize(2 * this.capacity);
+			index = locate(key);
+		}
+
+		// Add this item to the hash table in the expected location.
+
+		this.keys[index] = key;
+		this.values[index] = value;
+		this.size++;
+	}
+
+
+	public void remove(String key) {
+
+		// Locate the item and remove it.
+
+		int index = locate(key);
+		if (this.keys[index] == null) return;
+		this.size--;
+
+		// Shift back any following items in the cluster whose home slot
+		// doesn't lie (cyclically) between the gap and where they are now.
+
+		int gap = index;
+		int i = increment(gap);
+		while (keys[i] != null) {
+			int home = hash(keys[i]);
+			boolean stays = (gap <= i) ? (gap < home && home <= i)
+						   : (gap < home || home <= i);
+			if (!stays) {
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				gap = i;
+			}
+			i = increment(i);
+		}
+		keys[gap] = null;
+	}
+
+
+	private void resize(int capacity) {
+
+		// To resize the hash table, we simply allocate a new table of
+		// the appropriate size and rehash/reinsert all of the items.
+
+		String[] oldKeys = keys;
+		int[] oldValues = values;
+		int oldCapacity = this.capacity;
+
+		this.keys = new String[capacity];
+		this.values = new int[capacity];
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+
+		for (int i = 0;  i < oldCapacity; i++) {
+			String key = oldKeys[i];
+			if (key != null) {
+				int index = locate(key);
+				this.keys[index] = key;
+				this.values[index] = oldValues[i];
+			}
+		}
+	}
+
+
+	public void print() {
+		for (int i = 0; i < this.capacity; i++) {
+			System.out.print(i + ": ");
+			if (keys[i] != null) {
+				System.out.print(keys[i] + " = " + values[i]);
+			}
+			System.out.println();
+		}
+	}
+
+
+	// A main program that measures the garbage produced by a steady-state
+	// assignment loop, with the symbol table boxing its values
+	// (LinearProbingHashMap<String, Integer>) and without (IntValueHashMap).
+
+	private static long allocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(
+				Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	public static void main(String[] args) throws Exception {
+		int iterations = 1000000;
+		ExpressionParser parser = new ExpressionParser();
+		ExpressionTree.Node node = parser.parse("x += y * 1000 + x % 7");
+
+		for (int round = 0; round < 3; round++) {
+			LinearProbingHashMap<String, Integer> boxed = new LinearProbingHashMap<>();
+			boxed.add("x", 0);
+			boxed.add("y", 1);
+			long before = allocatedBytes();
+			for (int i = 0; i < iterations; i++) {
+				boxed.add("x", boxed.find("x") + boxed.find("y") * 1000 + boxed.find("x") % 7);
+			}
+			long boxedBytes = allocatedBytes() - before;
+
+			ExpressionTree.symbols = new IntValueHashMap();
+			ExpressionTree.symbols.add("x", 0);
+			ExpressionTree.symbols.add("y", 1);
+			before = allocatedBytes();
+			for (int i = 0; i < iterations; i++) {
+				node.evaluate();
+			}
+			long primitiveBytes = allocatedBytes() - before;
+
+			System.out.printf("Integer values: %.2f bytes/assignment, int values: %.2f bytes/assignment%n",
+				(double) boxedBytes / iterations, (double) primitiveBytes / iterations);
+		}
+
+		// Check backward-shift removal.
+
+		IntValueHashMap map = new IntValueHashMap(1024);
+		for (int i = 0; i < 500; i++) map.add("v" + i, i);
+		for (int i = 0; i < 500; i += 3) map.remove("v" + i);
+		boolean ok = true;
+		for (int i = 0; i < 500; i++) {
+			boolean expected = (i % 3 != 0);
+			if (map.contains("v" + i) != expected || (expected && map.find("v" + i) != i)) ok = false;
+		}
+		System.out.println(ok && map.size() == 333 ? "Removal OK" : "Removal FAILED");
+	}
+}
@@ -14,17 +14,72 @@ public class LinearProbingHashMap<Key, Value> {
 	// when the load factor exceeds 50%.  The size of the map is the number of keys
 	// currently containined in the map.
 
+	// Capacity is always a power of two, so a hash can be reduced to an index
+	// with a bit mask instead of a (much slower) integer division.  Because a
+	// mask only keeps the low bits, the hash code is first put through a mixing
+	// function.  Otherwise keys with nearby hash codes (identifiers like
+	// x1, x2, x3 have consecutive hash codes) land in adjacent slots and form
+	// one long cluster.
+
+	// In the ROBIN_HOOD probing mode, insertion keeps each cluster ordered by
+	// how far its items are from their home slots: an item being inserted
+	// takes the place of any item it passes that is closer to home than it is,
+	// and that item moves on instead.  This evens out probe lengths so the
+	// table can be run at a much higher load factor (87.5% by default), and a
+	// search can give up as soon as it passes an item closer to home than the
+	// key it is looking for.  Removal shifts the rest of the cluster back one
+	// slot rather than reinserting it.
+
+	// Removal in the LINEAR mode also shifts items back: each item after the
+	// removed one in its cluster is moved into the hole unless its home slot
+	// lies (cyclically) between the hole and where it is now.  Alternatively,
+	// the LINEAR_TOMBSTONES mode just marks the removed slot with a tombstone,
+	// which searches skip over and insertions reuse.  The tombstones are
+	// cleared out by rehashing the table when they and the items together
+	// exceed the load factor.
+
+	public static enum Probing {
+		LINEAR,
+		LINEAR_TOMBSTONES,
+		ROBIN_HOOD
+	}
+
+	private static final Object TOMBSTONE = new Object();	// Marks a removed key
+
 	private Key[]   keys;		// The keys for the items in the hash map.
 	private Value[] values;		// values[i] is the Value associated with Key[i].
 	private int     capacity;	// Current size of the arrays (Keys & Values).
+	private int     mask;		// capacity - 1
 	private int     size;		// Number of keys in the hash table
+	private Probing probing;	// How collisions are resolved.
+	private int[]   distances;	// ROBIN_HOOD only: how far keys[i] is from its home slot.
+	private double  loadFactor;	// The table is doubled when the load exceeds this.
+	private int     threshold;	// The largest size allowed before doubling.
+	private int     tombstones;	// LINEAR_TOMBSTONES only: number of removed slots.
+
 
+	public LinearProbingHashMap(int capacity, Probing probing, double loadFactor) {
+		if (!(loadFactor > 0 && loadFactor < 1)) {
+			throw new IllegalArgumentException("Load factor must be between 0 and 1: " + loadFactor);
+		}
+		capacity = tableSize(capacity);
+		this.keys       = (Key[]) new Object[capacity];
+		this.values     = (Value[]) new Object[capacity];
+		this.capacity   = capacity;
+		this.mask       = capacity - 1;
+		this.size       = 0;
+		this.probing    = probing;
+		this.distances  = (probing == Probing.ROBIN_HOOD) ? new int[capacity] : null;
+		this.loadFactor = loadFactor;
+		this.threshold  = threshold(capacity);
+	}
+
+	public LinearProbingHashMap(int capacity, Probing probing) {
+		this(capacity, probing, (probing == Probing.ROBIN_HOOD) ? 0.875 : 0.5);
+	}
 
 	public LinearProbingHashMap(int capacity) {
-		this.keys     = (Key[]) new Object[capacity];
-		this.values   = (Value[]) new Object[capacity];
-		this.capacity = capacity;
-		this.size     = 0;
+		this(capacity, Probing.LINEAR);
 	}
 
 	public LinearProbingHashMap() {
@@ -44,15 +99,47 @@ public class LinearProbingHashMap<Key, Value> {
 		return this.size == 0;
 	}
 
+	public Probing probing() {
+		return this.probing;
+	}
+
+
+	static int tableSize(int capacity) {
+		// Rounds the requested capacity up to a power of two (at least 4, so
+		// that the table can never fill up before it is resized).
+		int size = 4;
+		while (size < capacity && size < (1 << 30)) {
+			size <<= 1;
+		}
+		return size;
+	}
+
+	private int threshold(int capacity) {
+		// The table is resized only once size passes this, so it can hold
+		// capacity - 1 items: at least one slot is always empty, so a search
+		// always ends.
+		return Math.min((int) (capacity * this.loadFactor), capacity - 2);
+	}
+
+	static int mix(int h) {
+		// The MurmurHash3 finalizer: every bit of the hash code affects
+		// the low bits used to index the table.
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h;
+	}
 
 	public int hash(Key key) {
 		// Returns the hash of this key wrt the table size.
-		return (key.hashCode() & 0x7FFFFFFF) % this.capacity;
+		return mix(key.hashCode()) & this.mask;
 	}
 
 	private int increment(int index) {
 		// Increments the index mod the capacity of the map.
-		return (++index < this.capacity) ? index : 0;
+		return (index + 1) & this.mask;
 	}
 
 	private int locate(Key key) {
@@ -64,16 +151,33 @@ public class LinearProbingHashMap<Key, Value> {
 		return index;
 	}
 
+	private int search(Key key) {
+		// Returns the slot in which this key is found, or -1 if it isn't.
+		if (this.probing != Probing.ROBIN_HOOD) {
+			int index = locate(key);
+			return (this.keys[index] != null) ? index : -1;
+		}
+
+		// Robin Hood: stop at the first item closer to its home than the key
+		// would be, since the key would have displaced it if it were present.
+
+		int index = hash(key);
+		for (int distance = 0; this.keys[index] != null && this.distances[index] >= distance; distance++) {
+			if (this.keys[index].equals(key)) return index;
+			index = increment(index);
+		}
+		return -1;
+	}
+
 
 	public boolean contains(Key key) {
-		int index = locate(key);
-		return this.keys[index] != null;
+		return search(key) >= 0;
 	}
 
 
 	public Value find(Key key) {
-		int index = locate(key);
-		if (this.keys[index] != null) {
+		int index = search(key);
+		if (index >= 0) {
 			return this.values[index];
 		} else {
 			return null;
@@ -82,58 +186,194 @@ public class LinearProbingHashMap<Key, Value> {
 
 
 	public void add(Key key, Value value) {
+		put(key, value);
+	}
+
+
+	public Value put(Key key, Value value) {
 
-		// Resize the hash table if the load factor exceeds 50%.
+		// Associates the value with the key, returning the value previously
+		// associated with it (or null if there was none).  Replacing the
+		// value of a key already in the map doesn't change its size.
 
-		if (2 * this.size > this.capacity) {
+		if (this.probing == Probing.ROBIN_HOOD) {
+			return putRobinHood(key, value);
+		} else if (this.probing == Probing.LINEAR_TOMBSTONES) {
+			return putTombstones(key, value);
+		}
+
+		int index = locate(key);
+		if (this.keys[index] != null) {
+			Value previous = this.values[index];
+			this.values[index] = value;
+			return previous;
+		}
+
+		// Resize the hash table if the load factor is exceeded.
+
+		if (this.size > this.threshold) {
 			resize(2 * this.capacity);
+			index = locate(key);
 		}
 
 		// Add this item to the hash table in the expected location.
 
-		int index = locate(key);
 		this.keys[index] = key;
 		this.values[index] = value;
 		this.size++;
+		return null;
+	}
+
+
+	private Value putTombstones(Key key, Value value) {
+
+		// Find the key, noting the first tombstone passed on the way.
+
+		int index = hash(key);
+		int tombstone = -1;
+		while (this.keys[index] != null) {
+			if (this.keys[index] == TOMBSTONE) {
+				if (tombstone < 0) tombstone = index;
+			} else if (this.keys[index].equals(key)) {
+				Value previous = this.values[index];
+				this.values[index] = value;
+				return previous;
+			}
+			index = increment(index);
+		}
+
+		// Reuse the tombstone if there was one.  Otherwise a slot is being
+		// used up, so grow the table, or just rehash it to get rid of the
+		// tombstones, if that exceeds the load factor.
+
+		if (tombstone >= 0) {
+			index = tombstone;
+			this.tombstones--;
+		} else if (this.size + this.tombstones > this.threshold) {
+			resize((this.size >= this.threshold - this.threshold / 4) ? 2 * this.capacity : this.capacity);
+			index = locate(key);
+		}
+		this.keys[index] = key;
+		this.values[index] = value;
+		this.size++;
+		return null;
+	}
+
+
+	private Value putRobinHood(Key key, Value value) {
+
+		// If the key is already present, just replace its value.
+
+		int index = search(key);
+		if (index >= 0) {
+			Value previous = this.values[index];
+			this.values[index] = value;
+			return previous;
+		}
+
+		if (this.size > this.threshold) {
+			resize(2 * this.capacity);
+		}
+		insert(key, value);
+		this.size++;
+		return null;
+	}
+
+	private void insert(Key key, Value value) {
+
+		// Robin Hood insertion of a key that isn't in the map.  Whenever the
+		// item being placed is further from home than the one in the slot,
+		// they trade places and the displaced item carries on probing.
+
+		int index = hash(key);
+		int distance = 0;
+		while (this.keys[index] != null) {
+			if (this.distances[index] < distance) {
+				Key displacedKey = this.keys[index];
+				Value displacedValue = this.values[index];
+				int displacedDistance = this.distances[index];
+
+				this.keys[index] = key;
+				this.values[index] = value;
+				this.distances[index] = distance;
+
+				key = displacedKey;
+				value = displacedValue;
+				distance = displacedDistance;
+			}
+			index = increment(index);
+			distance++;
+		}
+		this.keys[index] = key;
+		this.values[index] = value;
+		this.distances[index] = distance;
 	}
 
 
 	public void remove(Key key) {
 
+		if (this.probing == Probing.ROBIN_HOOD) {
+			removeRobinHood(key);
+			return;
+		}
+
 		// Locate the item and remove it.
 
-		if (!contains(key)) return;
 		int index = locate(key);
-		keys[index] = null;
+		if (keys[index] == null) return;
 		values[index] = null;
 		this.size--;
 
-		// Check to see if any of the items in the table that follow
-		// this one had collided with the key that was just removed.
-		// If so, we need to rehash/reinsert them.
-
-		int i = increment(index);
-		while (keys[i] != null) {
-
-			// Save the key/value pair at this location.
+		if (this.probing == Probing.LINEAR_TOMBSTONES) {
+			@SuppressWarnings("unchecked")
+			Key tombstone = (Key) TOMBSTONE;	// Only ever compared by identity
+			keys[index] = tombstone;
+			this.tombstones++;
+			return;
+		}
 
-			Key savedKey = keys[i];
-			Value savedValue = values[i];
+		// Check to see if any of the items in the table that follow this
+		// one had collided with the key that was just removed.  If so, move
+		// them back into the hole, which then moves to where they were.
 
-			// And temporarily remove it from the hash map.
+		int hole = index;
+		int i = increment(hole);
+		while (keys[i] != null) {
+			int home = hash(keys[i]);
+			boolean stays = (hole <= i) ? (hole < home && home <= i)
+						    : (hole < home || home <= i);
+			if (!stays) {
+				keys[hole] = keys[i];
+				values[hole] = values[i];
+				values[i] = null;
+				hole = i;
+			}
+			i = increment(i);
+		}
+		keys[hole] = null;
+	}
 
-			keys[i] = null;
-			values[i] = null;
 
-			// Figure out where it should go now and reinsert it.
+	private void removeRobinHood(Key key) {
 
-			index = locate(savedKey);
-			keys[index] = savedKey;
-			values[index] = savedValue;
+		int index = search(key);
+		if (index < 0) return;
+		this.size--;
 
-			// Advance to the next item.
-			i = increment(i);
+		// Shift the rest of the cluster back one slot (each item moving one
+		// closer to its home), stopping at an empty slot or an item that is
+		// already in its home slot.
+
+		int next = increment(index);
+		while (this.keys[next] != null && this.distances[next] > 0) {
+			this.keys[index] = this.keys[next];
+			this.values[index] = this.values[next];
+			this.distances[index] = this.distances[next] - 1;
+			index = next;
+			next = increment(next);
 		}
+		this.keys[index] = null;
+		this.values[index] = null;
 	}
 
 
@@ -153,6 +393,12 @@ public class LinearProbingHashMap<Key, Value> {
 		this.keys = (Key[]) new Object[capacity];
 		this.values = (Value[]) new Object[capacity];
 		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.threshold = threshold(capacity);
+		this.tombstones = 0;
+		if (this.probing == Probing.ROBIN_HOOD) {
+			this.distances = new int[capacity];
+		}
 
 		// For each item in the old map, rehash and then 
 		// insert it into the newly allocated tables.
@@ -160,7 +406,9 @@ public class LinearProbingHashMap<Key, Value> {
 		for (int i = 0;  i < oldCapacity; i++) {
 			Key key = oldKeys[i];
 			Value value = oldValues[i];
-			if (key != null) {
+			if (key != null && this.probing == Probing.ROBIN_HOOD) {
+				insert(key, value);
+			} else if (key != null && key != TOMBSTONE) {
 				int index = locate(key);
 				this.keys[index] = key;
 				this.values[index] = value;
@@ -169,10 +417,36 @@ public class LinearProbingHashMap<Key, Value> {
 	}
 
 
+	public int probeLength(Key key) {
+		// Returns the number of slots examined to find this key.
+		return ((locate(key) - hash(key)) & this.mask) + 1;
+	}
+
+	public double averageProbeLength() {
+		// Average number of slots examined by a successful find.
+		long total = 0;
+		for (int i = 0; i < this.capacity; i++) {
+			if (keys[i] != null && keys[i] != TOMBSTONE) total += ((i - hash(keys[i])) & this.mask) + 1;
+		}
+		return (this.size > 0) ? (double) total / this.size : 0;
+	}
+
+	public int maxProbeLength() {
+		// Longest number of slots examined by a successful find.
+		int max = 0;
+		for (int i = 0; i < this.capacity; i++) {
+			if (keys[i] != null && keys[i] != TOMBSTONE) max = Math.max(max, ((i - hash(keys[i])) & this.mask) + 1);
+		}
+		return max;
+	}
+
+
 	public void print() {
 		for (int i = 0; i < this.capacity; i++) {
 			System.out.print(i + ": ");
-			if (keys[i] != null) {
+			if (keys[i] == TOMBSTONE) {
+				System.out.print("(removed)");
+			} else if (keys[i] != null) {
 				System.out.print(keys[i]);
 				if (values[i] != null) {
 					System.out.print(" = " + values[i]);
@@ -193,8 +467,50 @@ public class LinearProbingHashMap<Key, Value> {
 	}
 
 
+	private static void churn() {
+
+		// Measures the cost of adds and removes at a steady size: each step
+		// removes the oldest key and adds a new one.
+
+		int size = 10000;
+		int steps = 2000000;
+		String[] pool = new String[2 * size];
+		for (int i = 0; i < pool.length; i++) {
+			pool[i] = "tmp" + i;
+		}
+
+		for (int round = 0; round < 3; round++) {
+			for (Probing probing : Probing.values()) {
+				LinearProbingHashMap<String, Integer> map = new LinearProbingHashMap<>(16, probing);
+				for (int i = 0; i < size; i++) {
+					map.add(pool[i], i);
+				}
+				long start = System.nanoTime();
+				for (int i = 0; i < steps; i++) {
+					map.remove(pool[i % pool.length]);
+					map.add(pool[(i + size) % pool.length], i);
+				}
+				long elapsed = System.nanoTime() - start;
+				System.out.printf("%-17s %6.1f ns per remove+add (size %d, capacity %d)%n",
+					probing, (double) elapsed / steps, map.size(), map.capacity());
+			}
+		}
+	}
+
+
     public static void main(String[] args) {
-		LinearProbingHashMap<String, String> map = new LinearProbingHashMap<>();
+		// Run with the argument "robin" to use Robin Hood probing, or
+		// "tombstones" to remove with tombstones; "churn" runs a benchmark.
+
+		if (args.length > 0 && args[0].equals("churn")) {
+			churn();
+			return;
+		}
+
+		Probing probing = Probing.LINEAR;
+		if (args.length > 0 && args[0].equals("robin")) probing = Probing.ROBIN_HOOD;
+		if (args.length > 0 && args[0].equals("tombstones")) probing = Probing.LINEAR_TOMBSTONES;
+		LinearProbingHashMap<String, String> map = new LinearProbingHashMap<>(16, probing);
 		Console console = System.console();
 
 		if (console == null) {
@@ -235,6 +551,11 @@ public class LinearProbingHashMap<Key, Value> {
 					System.out.println(map.capacity());
 					break;
 
+				case "probes":
+					System.out.println("average " + map.averageProbeLength()
+						+ ", max " + map.maxProbeLength());
+					break;
+
 				case "contains":
                     System.out.println(map.contains(arg));
                     break;
@@ -248,6 +569,10 @@ public class LinearProbingHashMap<Key, Value> {
                     map.add(arg, getArgument(line, 2));
                     break;
 
+				case "put":
+					System.out.println(map.put(arg, getArgument(line, 2)));
+					break;
+
 				case "delete":
 				case "remove":
 					map.remove(arg);
@@ -258,7 +583,7 @@ public class LinearProbingHashMap<Key, Value> {
                     break;
 
 				case "clear":
-					map = new LinearProbingHashMap<>();
+					map = new LinearProbingHashMap<>(16, probing);
 					break;
 
                 case "end":
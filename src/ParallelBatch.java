@@ -0,0 +1,141 @@
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class ParallelBatch {
+
+	// Evaluates a batch of independent lines on all the cores of a ForkJoinPool.
+	// Each line reads from a shared table of inputs, and is evaluated in its
+	// own Environment on top of it, so whatever a line assigns is only seen
+	// by that line and the inputs are never written (so they can be read by
+	// every worker without locks).  The lines are split in halves until the
+	// pieces are small, and each worker scans, parses and evaluates the lines
+	// of a piece with its own ExpressionParser, since a parser isn't reentrant.
+	// The result of line i goes in element i of the array, so the results are
+	// in the order of the lines whichever worker ran them.
+
+	private static final int PIECE = 256;	// Lines run by a worker at a time
+
+	private SymbolTable inputs;
+	private ForkJoinPool pool;
+	private ThreadLocal<ExpressionParser> parsers;	// The parser of each worker
+
+
+	public ParallelBatch(SymbolTable inputs, ForkJoinPool pool) {
+		this.inputs = inputs;
+		this.pool = pool;
+		this.parsers = ThreadLocal.withInitial(ExpressionParser::new);
+	}
+
+	public ParallelBatch(SymbolTable inputs) {
+		this(inputs, ForkJoinPool.commonPool());
+	}
+
+
+	public String[] evaluate(String[] lines) {
+		// Returns the value of each line, or the error it gave, as BatchRunner
+		// would write it.
+		String[] results = new String[lines.length];
+		pool.invoke(new Piece(lines, results, 0, lines.length));
+		return results;
+	}
+
+	private class Piece extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private String[] lines;
+		private String[] results;
+		private int from;		// The piece is lines[from .. to)
+		private int to;
+
+		Piece(String[] lines, String[] results, int from, int to) {
+			this.lines = lines;
+			this.results = results;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > PIECE) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new Piece(lines, results, from, middle), new Piece(lines, results, middle, to));
+			} else {
+				ExpressionParser parser = parsers.get();
+				for (int i = from; i < to; i++) {
+					results[i] = evaluate(parser, lines[i], i + 1);
+				}
+			}
+		}
+	}
+
+	private String evaluate(ExpressionParser parser, String line, long number) {
+		ExpressionScanner scanner = new ExpressionScanner(line);
+		try {
+			ExpressionTree.Node tree = parser.parse(scanner);
+			if (!BatchRunner.complete(tree)) {
+				return BatchRunner.error(number, BatchRunner.firstColumn(line), "Syntax error");
+			}
+			return Integer.toString(tree.evaluate(new Environment(inputs)));
+		} catch (ExpressionParser.SyntaxError e) {
+			return BatchRunner.error(number, e.position(), "Syntax error");
+		} catch (NumberFormatException e) {
+			return BatchRunner.error(number, scanner.position(), "Number too large");
+		} catch (ExpressionTree.NotAVariable | ExpressionTree.UndefinedVariable e) {
+			return BatchRunner.error(number, BatchRunner.firstColumn(line), e.getMessage());
+		} catch (ArithmeticException e) {
+			return BatchRunner.error(number, BatchRunner.firstColumn(line), "Division by zero");
+		}
+	}
+
+
+	// A main program that measures how evaluating a batch scales with the
+	// number of workers, and checks the results against running the lines
+	// one after another on this thread.
+
+	public static void main(String[] args) throws Exception {
+		int count = 1000000;
+		String[] lines = new String[count];
+		for (int i = 0; i < count; i++) {
+			switch (i % 4) {
+				case 0:  lines[i] = "(rate * " + i % 1000 + " + base) % limit"; break;
+				case 1:  lines[i] = "(t = rate * " + i % 97 + ") * t - base"; break;
+				case 2:  lines[i] = "(t = base) + (t += rate * " + i % 89 + " / (limit - " + i % 2000 + "))"; break;
+				default: lines[i] = "++base + limit-- - rate"; break;
+			}
+		}
+
+		IntValueHashMap inputs = new IntValueHashMap();
+		inputs.add("rate", 7);
+		inputs.add("base", 1000);
+		inputs.add("limit", 1000);
+
+		ParallelBatch sequential = new ParallelBatch(inputs);
+		ExpressionParser parser = new ExpressionParser();
+		String[] expected = new String[count];
+		System.out.println(Runtime.getRuntime().availableProcessors() + " processor(s)");
+
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < count; i++) {
+				expected[i] = sequential.evaluate(parser, lines[i], i + 1);
+			}
+			long baseline = System.nanoTime() - start;
+			System.out.printf("sequential: %.2f M lines/s%n", 1e3 * count / baseline);
+
+			for (int workers = 1; workers <= 16; workers *= 2) {
+				ForkJoinPool pool = new ForkJoinPool(workers);
+				ParallelBatch batch = new ParallelBatch(inputs, pool);
+				start = System.nanoTime();
+				String[] results = batch.evaluate(lines);
+				long elapsed = System.nanoTime() - start;
+				pool.shutdown();
+
+				boolean same = java.util.Arrays.equals(expected, results);
+				System.out.printf("%2d workers: %s, %.2f M lines/s, speedup %.2f%n", workers,
+					same ? "same results" : "DIFFERENT RESULTS", 1e3 * count / elapsed, (double) baseline / elapsed);
+			}
+		}
+		System.out.println("inputs unchanged: base = " + inputs.find("base") + ", limit = " + inputs.find("limit"));
+	}
+}
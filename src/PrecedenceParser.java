@@ -0,0 +1,432 @@
+public class PrecedenceParser {
+
+	// A parser for the grammar of ExpressionParser that doesn't recurse: an
+	// operator-precedence (shunting-yard) parser with its stacks of operands
+	// and operators in arrays, so parentheses can be nested as deep as
+	// memory allows, and an operand doesn't go through a method for each
+	// level of the grammar.
+	//
+	// It builds the same trees as ExpressionParser, and fails in the same
+	// way, since it builds each node at the point where ExpressionParser
+	// would: a binary operator when the next operator is of the same or a
+	// lower precedence (they all group to the left), or when an expression
+	// ends (at a ')' or the end), and the operators of a Factor as soon as
+	// its Atom has been parsed.  So, as in ExpressionParser,
+	//
+	//   - only the last of a run of prefix operators is applied (- - x is
+	//     -x), and a unary + gives a null operand;
+	//   - a = b = c is (a = b) = c, which throws NotAVariable;
+	//   - -x++ is (-x)++, which throws NotAVariable;
+	//
+	// and a syntax error, a NotAVariable or a number that is too large is
+	// reported for the same token.  Like ExpressionParser, it isn't
+	// reentrant.
+	//
+	//   operand position:    PreOp* (number | identifier | '(')
+	//   operator position:   AssignOp | AddOp | MulOp | ')' | END
+
+	private static final int ASSIGNMENT = 1;	// Precedences
+	private static final int ADDITIVE = 2;
+	private static final int MULTIPLICATIVE = 3;
+
+	private TokenCursor scanner;
+	private Token.Kind currentKind;
+
+	private ExpressionTree.Node[] operands = new ExpressionTree.Node[16];
+	private int operandCount;
+	private Token.Kind[] operators = new Token.Kind[16];	// Binary operators, and '('s ...
+	private Token.Kind[] prefixes = new Token.Kind[16];	// ... with the PreOp before each '('
+	private int operatorCount;
+
+
+	public ExpressionTree.Node parse(String s) throws ExpressionParser.SyntaxError, ExpressionTree.NotAVariable {
+		return parse(new ExpressionScanner(s));
+	}
+
+	public ExpressionTree.Node parse(TokenCursor tokens) throws ExpressionParser.SyntaxError, ExpressionTree.NotAVariable {
+
+		// Parses the tokens from the cursor up to the END token.
+
+		return parse(tokens, null);
+	}
+
+	ExpressionTree.Node parse(TokenCursor tokens, State state) throws ExpressionParser.SyntaxError, ExpressionTree.NotAVariable {
+
+		// Parses from a state saved at the start of an operand, with the
+		// cursor on the token before it (or from the start, if null).
+
+		scanner = tokens;
+		if (state == null) {
+			operandCount = 0;
+			operatorCount = 0;
+		} else {
+			restore(state);
+		}
+		try {
+			return parseExpression();
+		} finally {
+			// Don't keep the trees (or the cursor) alive.
+			java.util.Arrays.fill(operands, 0, operandCount, null);
+			scanner = null;
+		}
+	}
+
+	private ExpressionTree.Node parseExpression() throws ExpressionParser.SyntaxError, ExpressionTree.NotAVariable {
+		getNextToken();
+		while (true) {
+
+			// An operand: PreOp* then an Atom, or a '(' (which leaves the
+			// PreOp for when its ')' is found).
+
+			operand();
+			Token.Kind prefix = null;
+			while (isPreOp(currentKind)) {
+				prefix = currentKind;
+				getNextToken();
+			}
+
+			ExpressionTree.Node atom;
+			switch (currentKind) {
+				case NUMBER:
+					atom = new ExpressionTree.Number(scanner.intValue());
+					getNextToken();
+					break;
+				case IDENTIFIER:
+					atom = new ExpressionTree.Variable(scanner.text());
+					getNextToken();
+					break;
+				case OPEN_PARENTHESIS:
+					atom = kept();
+					if (atom != null) {
+						getNextToken();
+						break;
+					}
+					pushOperator(Token.Kind.OPEN_PARENTHESIS, prefix);
+					opened();
+					getNextToken();
+					continue;
+				default:
+					throw new ExpressionParser.SyntaxError(scanner.position());
+			}
+			pushOperand(factor(prefix, atom));
+
+			// Then an operator, or the end of the (or a parenthesized)
+			// expression, which may be followed by one.
+
+			while (true) {
+				int precedence = precedence(currentKind);
+				if (precedence > 0) {
+					while (operatorCount > 0 && precedence(operators[operatorCount-1]) >= precedence) {
+						reduce();
+					}
+					pushOperator(currentKind, null);
+					getNextToken();
+					break;
+				}
+
+				while (operatorCount > 0 && operators[operatorCount-1] != Token.Kind.OPEN_PARENTHESIS) {
+					reduce();
+				}
+				if (operatorCount == 0) {
+					if (currentKind != Token.Kind.END) {
+						throw new ExpressionParser.SyntaxError(scanner.position());
+					}
+					return operands[--operandCount];
+				}
+				if (currentKind != Token.Kind.CLOSE_PARENTHESIS) {
+					throw new ExpressionParser.SyntaxError(scanner.position());
+				}
+				closed(operands[operandCount-1]);
+				prefix = prefixes[--operatorCount];
+				getNextToken();
+				pushOperand(factor(prefix, operands[--operandCount]));
+			}
+		}
+	}
+
+	private ExpressionTree.Node factor(Token.Kind prefix, ExpressionTree.Node atom) throws ExpressionTree.NotAVariable {
+
+		// Applies the PreOp (if any) and then the PostOps that follow.
+
+		ExpressionTree.Node node;
+		if (prefix == null) {
+			node = atom;
+		} else {
+			switch (prefix) {
+				case MINUS:
+					node = new ExpressionTree.Negate(atom);
+					break;
+				case PLUS_PLUS:
+					node = new ExpressionTree.PreIncrement(atom);
+					break;
+				case MINUS_MINUS:
+					node = new ExpressionTree.PreDecrement(atom);
+					break;
+				default:
+					node = null;	// As ExpressionParser leaves it for +
+					break;
+			}
+		}
+
+		while (currentKind == Token.Kind.PLUS_PLUS || currentKind == Token.Kind.MINUS_MINUS) {
+			if (currentKind == Token.Kind.PLUS_PLUS) {
+				node = new ExpressionTree.PostIncrement(node);
+			} else {
+				node = new ExpressionTree.PostDecrement(node);
+			}
+			getNextToken();
+		}
+		return node;
+	}
+
+	private void reduce() throws ExpressionTree.NotAVariable {
+
+		// Replaces the top two operands with the top operator applied to them.
+
+		Token.Kind operator = operators[--operatorCount];
+		ExpressionTree.Node right = operands[--operandCount];
+		ExpressionTree.Node left = operands[--operandCount];
+		ExpressionTree.Node node;
+		switch (operator) {
+			case TIMES:         node = new ExpressionTree.Multiply(left, right); break;
+			case DIVIDE:        node = new ExpressionTree.Divide(left, right); break;
+			case MODULO:        node = new ExpressionTree.Mod(left, right); break;
+			case PLUS:          node = new ExpressionTree.Add(left, right); break;
+			case MINUS:         node = new ExpressionTree.Subtract(left, right); break;
+			case ASSIGN:        node = new ExpressionTree.Assign(left, right); break;
+			case PLUS_ASSIGN:   node = new ExpressionTree.AddTo(left, right); break;
+			case MINUS_ASSIGN:  node = new ExpressionTree.SubtractFrom(left, right); break;
+			case TIMES_ASSIGN:  node = new ExpressionTree.MultiplyBy(left, right); break;
+			case DIVIDE_ASSIGN: node = new ExpressionTree.DivideBy(left, right); break;
+			default:            node = new ExpressionTree.ModBy(left, right); break;
+		}
+		operands[operandCount++] = node;
+	}
+
+	private static int precedence(Token.Kind kind) {
+		// The precedence of a binary operator (0 for anything else).
+		switch (kind) {
+			case TIMES:
+			case DIVIDE:
+			case MODULO:
+				return MULTIPLICATIVE;
+			case PLUS:
+			case MINUS:
+				return ADDITIVE;
+			case ASSIGN:
+			case PLUS_ASSIGN:
+			case MINUS_ASSIGN:
+			case TIMES_ASSIGN:
+			case DIVIDE_ASSIGN:
+			case MODULO_ASSIGN:
+				return ASSIGNMENT;
+			default:
+				return 0;
+		}
+	}
+
+	private static boolean isPreOp(Token.Kind kind) {
+		return kind == Token.Kind.PLUS || kind == Token.Kind.MINUS
+			|| kind == Token.Kind.PLUS_PLUS || kind == Token.Kind.MINUS_MINUS;
+	}
+
+	private void getNextToken() {
+		currentKind = scanner.advance();
+	}
+
+	private void pushOperand(ExpressionTree.Node node) {
+		if (operandCount == operands.length) {
+			operands = java.util.Arrays.copyOf(operands, 2 * operandCount);
+		}
+		operands[operandCount++] = node;
+	}
+
+	private void pushOperator(Token.Kind operator, Token.Kind prefix) {
+		if (operatorCount == operators.length) {
+			operators = java.util.Arrays.copyOf(operators, 2 * operatorCount);
+			prefixes = java.util.Arrays.copyOf(prefixes, 2 * operatorCount);
+		}
+		operators[operatorCount] = operator;
+		prefixes[operatorCount++] = prefix;
+	}
+
+
+	// For IncrementalParser, which parses an edited line again from the
+	// first token that changed.  The stacks at the start of an operand
+	// depend only on the tokens before it, so it saves them now and then,
+	// and the tree inside a '(' ... ')' depends only on the tokens between
+	// them, so it keeps those trees to use again in place of the tokens.
+	// The hooks are called at the start of each operand, at each '(' (to
+	// ask for a kept tree, and then once it is pushed) and at its ')'; they
+	// do nothing here.
+
+	static final class State {
+		private final ExpressionTree.Node[] operands;
+		private final Token.Kind[] operators;
+		private final Token.Kind[] prefixes;
+
+		private State(ExpressionTree.Node[] operands, Token.Kind[] operators, Token.Kind[] prefixes) {
+			this.operands = operands;
+			this.operators = operators;
+			this.prefixes = prefixes;
+		}
+	}
+
+	State save() {
+		return new State(java.util.Arrays.copyOf(operands, operandCount),
+			java.util.Arrays.copyOf(operators, operatorCount), java.util.Arrays.copyOf(prefixes, operatorCount));
+	}
+
+	private void restore(State state) {
+		operandCount = 0;
+		operatorCount = 0;
+		for (ExpressionTree.Node operand : state.operands) {
+			pushOperand(operand);
+		}
+		for (int i = 0; i < state.operators.length; i++) {
+			pushOperator(state.operators[i], state.prefixes[i]);
+		}
+	}
+
+	int depth() {
+		// The number of operands and operators on the stacks.
+		return operandCount + operatorCount;
+	}
+
+	void operand() {
+	}
+
+	ExpressionTree.Node kept() {
+		// The tree inside the '(' at the cursor, with the cursor moved on to
+		// its ')', or null to parse it.
+		return null;
+	}
+
+	void opened() {
+	}
+
+	void closed(ExpressionTree.Node inner) {
+	}
+
+
+	// A main program that checks that both parsers give the same trees for
+	// some expressions, parses an expression nested deeper than the
+	// recursive parser can go, and compares their speed.
+
+	static boolean same(ExpressionTree.Node a, ExpressionTree.Node b) {
+
+		// True if the trees have the same structure (compared without
+		// recursion, since they may be deep).
+
+		java.util.ArrayList<ExpressionTree.Node[]> work = new java.util.ArrayList<>();
+		work.add(new ExpressionTree.Node[] { a, b });
+		while (!work.isEmpty()) {
+			ExpressionTree.Node[] next = work.remove(work.size() - 1);
+			ExpressionTree.Node x = next[0], y = next[1];
+			if (x == null || y == null) {
+				if (x != y) return false;
+			} else if (x.getClass() != y.getClass()) {
+				return false;
+			} else if (x instanceof ExpressionTree.Number) {
+				if (((ExpressionTree.Number) x).value() != ((ExpressionTree.Number) y).value()) return false;
+			} else if (x instanceof ExpressionTree.Variable) {
+				if (!((ExpressionTree.Variable) x).name().equals(((ExpressionTree.Variable) y).name())) return false;
+			} else if (x instanceof ExpressionTree.UnaryOperator) {
+				work.add(new ExpressionTree.Node[] {
+					((ExpressionTree.UnaryOperator) x).operand(), ((ExpressionTree.UnaryOperator) y).operand() });
+			} else {
+				ExpressionTree.BinaryOperator p = (ExpressionTree.BinaryOperator) x, q = (ExpressionTree.BinaryOperator) y;
+				work.add(new ExpressionTree.Node[] { p.left(), q.left() });
+				work.add(new ExpressionTree.Node[] { p.right(), q.right() });
+			}
+		}
+		return true;
+	}
+
+	private static String outcome(Object parser, String line) {
+		try {
+			ExpressionTree.Node node = (parser instanceof ExpressionParser)
+				? ((ExpressionParser) parser).parse(line) : ((PrecedenceParser) parser).parse(line);
+			return (node == null) ? "null" : node.format();
+		} catch (ExpressionParser.SyntaxError e) {
+			return "SyntaxError at " + e.position();
+		} catch (Exception e) {
+			return e.toString();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] lines = {
+			"1 + 2 * 3 - 4 / 5 % 6",
+			"x = y += (z = 3) * -w",
+			"a = b = c",
+			"- - x + +y - -(-z)",
+			"++x-- + --y++",
+			"-x++",
+			"((a + b) * (c - d)) % ++e",
+			"(a + b",
+			"a + b)",
+			"a + * b",
+			"a b",
+			"",
+			"99999999999 + 1",
+			"(x = 1) = 2",
+		};
+
+		ExpressionParser recursive = new ExpressionParser();
+		PrecedenceParser iterative = new PrecedenceParser();
+		int failures = 0;
+		for (String line : lines) {
+			String expected = outcome(recursive, line);
+			String actual = outcome(iterative, line);
+			if (!expected.equals(actual)) {
+				failures++;
+			}
+			System.out.printf("%-30s %-35s %s%n", line, actual, expected.equals(actual) ? "" : "EXPECTED " + expected);
+		}
+		System.out.println(failures == 0 ? "Both parsers agree" : failures + " differences");
+
+		int depth = 200000;
+		StringBuilder deep = new StringBuilder();
+		for (int i = 0; i < depth; i++) deep.append("-(x + ");
+		deep.append('1');
+		for (int i = 0; i < depth; i++) deep.append(')');
+		long start = System.nanoTime();
+		iterative.parse(deep.toString());
+		System.out.printf("Parsed %d nested parentheses in %.1f ms%n", depth, (System.nanoTime() - start) / 1e6);
+		try {
+			recursive.parse(deep.toString());
+			System.out.println("The recursive parser managed it too");
+		} catch (StackOverflowError e) {
+			System.out.println("The recursive parser overflows the stack");
+		}
+
+		String[][] corpora = {
+			{ "short", "a * 3 + b" },
+			{ "long", "v0 + v1 * 3 - v2 % 7 + v3 * v4 - 12 / v5 + v6 - v7 * v8 + v9 % 5 - v10 + 7 * v11" },
+			{ "nested", "a - (b * (c + (d - (e * (f + (g - (h * (i + (j - 1)))))))))" },
+			{ "assign", "x += (y = a * b) - (z -= ++w * 2) + v--" },
+		};
+		int iterations = 200000;
+		for (int round = 0; round < 3; round++) {
+			for (String[] corpus : corpora) {
+				String line = corpus[1];
+				if (!same(recursive.parse(line), iterative.parse(line))) {
+					throw new IllegalStateException("Different trees for " + line);
+				}
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					recursive.parse(line);
+				}
+				long recursiveTime = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					iterative.parse(line);
+				}
+				long iterativeTime = System.nanoTime() - start;
+				System.out.printf("%-7s recursive %.0f ns/parse, precedence %.0f ns/parse%n", corpus[0],
+					(double) recursiveTime / iterations, (double) iterativeTime / iterations);
+			}
+		}
+	}
+}
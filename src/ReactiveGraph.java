@@ -0,0 +1,663 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntBinaryOperator;
+
+public class ReactiveGraph implements SymbolTable {
+
+	// A set of expressions whose values are kept current as the variables
+	// they read change, recomputing only what a change can affect.  An
+	// expression is either a formula with no side effects, or a definition
+	// of a variable by one, as in total = a * b + c, which assigns total
+	// whenever its value changes (so other expressions can read it).
+	//
+	// The graph is the symbol table the variables are written through: it
+	// keeps the values in another table (and a copy of the ones it reads,
+	// so recomputing a node never looks a name up), and add() and merge()
+	// (which are what Variable.update and x++ call) mark each node that
+	// reads the variable, and the nodes above it, dirty.  So the variables
+	// must not be written to the other table behind its back.  propagate() then goes over
+	// the expressions with dirty nodes, recomputing those nodes from the
+	// values memoized in the clean ones, and writes the definitions whose
+	// values changed, which marks the expressions that read them in turn.
+	// Each expression has a level, one more than the levels of the
+	// definitions it reads (0 if none), and they are recomputed in order of
+	// level, so an expression is recomputed once, after everything it reads.
+	// A definition that reads itself (through others or not) is refused.
+	//
+	// A node that throws (an undefined variable, a division by zero) stays
+	// dirty, along with the nodes above it, and the exception is kept as the
+	// expression's value until a change lets it be recomputed.  Since the
+	// expressions have no side effects, and a clean node would compute the
+	// same value again, the value (or exception) is the one Node.evaluate()
+	// would give with the current variables.  A definition that throws
+	// leaves its variable as it was, as an assignment does.
+	//
+	// The nodes of all the expressions are kept in flat arrays, each
+	// expression's in post-order (its operands before it), so an expression
+	// is recomputed in one pass along its nodes with no recursion.  It isn't
+	// thread-safe.
+
+	private static final byte NUMBER = 0;		// Node operations
+	private static final byte VARIABLE = 1;
+	private static final byte NEGATE = 2;
+	private static final byte ADD = 3;
+	private static final byte SUBTRACT = 4;
+	private static final byte MULTIPLY = 5;
+	private static final byte DIVIDE = 6;
+	private static final byte MOD = 7;
+
+	private final SymbolTable symbols;		// Where the values are
+
+	// The nodes: the operation, the operands (-1 if none), the node this
+	// is an operand of (-1 for a root), the variable read, the expression,
+	// the memoized value, and whether that needs recomputing.
+
+	private byte[] ops = new byte[256];
+	private int[] lefts = new int[256];
+	private int[] rights = new int[256];
+	private int[] parents = new int[256];
+	private int[] reads = new int[256];
+	private int[] owners = new int[256];
+	private int[] values = new int[256];
+	private boolean[] dirty = new boolean[256];
+	private int nodeCount;
+
+	// The expressions: their first and last (root) node, the variable each
+	// defines (-1 if none), its level, the exception it threw (if it did),
+	// whether it has been computed, and whether it is waiting to be.
+
+	private int[] firsts = new int[64];
+	private int[] roots = new int[64];
+	private int[] targets = new int[64];
+	private int[] levels = new int[64];
+	private Exception[] errors = new Exception[64];
+	private boolean[] computed = new boolean[64];
+	private boolean[] queued = new boolean[64];
+	private int expressionCount;
+
+	// The variables the expressions read or define, numbered: the name, the
+	// value (if it has one), the VARIABLE nodes that read it, and the
+	// expression that defines it (-1).
+
+	private final IntValueHashMap numbers = new IntValueHashMap();
+	private String[] names = new String[64];
+	private int[] current = new int[64];
+	private boolean[] defined = new boolean[64];
+	private int[][] readers = new int[64][];
+	private int[] readerCounts = new int[64];
+	private int[] definitions = new int[64];
+	private int variableCount;
+
+	// The expressions waiting to be recomputed, by level.
+
+	private int[][] pending = new int[4][16];
+	private int[] pendingCounts = new int[4];
+	private int pendingTotal;
+
+	private int recomputed;			// Nodes recomputed by the last propagate()
+
+	// Work stacks for define().
+
+	private ExpressionTree.Node[] work = new ExpressionTree.Node[64];
+	private boolean[] expanded = new boolean[64];
+	private int[] operands = new int[64];
+	private int[] visits = new int[64];
+	private int visit;
+
+
+	public ReactiveGraph(SymbolTable symbols) {
+		this.symbols = symbols;
+	}
+
+	public ReactiveGraph() {
+		this(new IntValueHashMap());
+	}
+
+	public int size() {
+		// The number of expressions.
+		return this.expressionCount;
+	}
+
+	public int recomputed() {
+		// The number of nodes the last propagate() recomputed.
+		return this.recomputed;
+	}
+
+
+	public int define(ExpressionTree.Node expression) {
+
+		// Adds an expression (a formula, or an assignment of one to a
+		// variable) to the graph, and returns its number.  It is computed by
+		// the next propagate().
+
+		String target = null;
+		ExpressionTree.Node formula = expression;
+		if (expression != null && expression.getClass() == ExpressionTree.Assign.class) {
+			target = ((ExpressionTree.Assign) expression).variable().name();
+			formula = ((ExpressionTree.Assign) expression).right();
+		}
+		if (formula != null && formula.hasSideEffects()) {
+			throw new IllegalArgumentException("Only an assignment of a formula with no side effects can be kept current: "
+				+ new TreeWalker().format(expression));
+		}
+		int defined = (target == null) ? -1 : variable(target);
+		if (defined >= 0 && definitions[defined] >= 0) {
+			throw new IllegalArgumentException(target + " is already defined");
+		}
+
+		int number = expressionCount;
+		int first = nodeCount;
+		flatten(formula, number);
+		if (defined >= 0 && reaches(first, nodeCount, defined)) {
+			nodeCount = first;
+			throw new IllegalArgumentException("The definition of " + target + " reads " + target);
+		}
+
+		if (expressionCount == firsts.length) {
+			int length = 2 * expressionCount;
+			firsts = Arrays.copyOf(firsts, length);
+			roots = Arrays.copyOf(roots, length);
+			targets = Arrays.copyOf(targets, length);
+			levels = Arrays.copyOf(levels, length);
+			errors = Arrays.copyOf(errors, length);
+			computed = Arrays.copyOf(computed, length);
+			queued = Arrays.copyOf(queued, length);
+		}
+		expressionCount++;
+		firsts[number] = first;
+		roots[number] = nodeCount - 1;
+		targets[number] = defined;
+		errors[number] = null;
+		computed[number] = false;
+		queued[number] = false;
+
+		int level = 0;
+		for (int node = first; node < nodeCount; node++) {
+			if (ops[node] == VARIABLE) {
+				int variable = reads[node];
+				addReader(variable, node);
+				if (definitions[variable] >= 0) {
+					level = Math.max(level, levels[definitions[variable]] + 1);
+				}
+			}
+		}
+		levels[number] = level;
+		if (defined >= 0) {
+			definitions[defined] = number;
+			raise(number);
+		}
+		enqueue(number);
+		return number;
+	}
+
+	private void flatten(ExpressionTree.Node formula, int expression) {
+
+		// Appends the nodes of the formula in post-order (walking it with a
+		// stack, since it may be deep), all dirty but the numbers.
+
+		int first = nodeCount;
+		int depth = 0, top = 0;
+		push(formula, false, depth++);
+		while (depth > 0) {
+			ExpressionTree.Node node = work[--depth];
+			work[depth] = null;
+			Class<?> kind = (node == null) ? null : node.getClass();
+			byte op;
+			if (kind == ExpressionTree.Add.class) {
+				op = ADD;
+			} else if (kind == ExpressionTree.Subtract.class) {
+				op = SUBTRACT;
+			} else if (kind == ExpressionTree.Multiply.class) {
+				op = MULTIPLY;
+			} else if (kind == ExpressionTree.Divide.class) {
+				op = DIVIDE;
+			} else if (kind == ExpressionTree.Mod.class) {
+				op = MOD;
+			} else if (kind == ExpressionTree.Negate.class) {
+				op = NEGATE;
+			} else if (kind == ExpressionTree.Number.class) {
+				op = NUMBER;
+			} else if (kind == ExpressionTree.Variable.class) {
+				op = VARIABLE;
+			} else {
+				// A node of CommonSubexpressions or Binder, say, or the null
+				// operand of a unary +.
+				Arrays.fill(work, 0, depth, null);
+				nodeCount = first;
+				throw new IllegalArgumentException("Can't keep a "
+					+ ((kind == null) ? "missing operand" : kind.getName()) + " current");
+			}
+
+			if (op != NUMBER && op != VARIABLE && !expanded[depth]) {
+				// Visit the operands first (the left on top).
+				push(node, true, depth++);
+				if (op == NEGATE) {
+					push(((ExpressionTree.Negate) node).operand(), false, depth++);
+				} else {
+					push(((ExpressionTree.BinaryOperator) node).right(), false, depth++);
+					push(((ExpressionTree.BinaryOperator) node).left(), false, depth++);
+				}
+				continue;
+			}
+
+			int index = node(op, expression);
+			if (op == NUMBER) {
+				values[index] = ((ExpressionTree.Number) node).value();
+				dirty[index] = false;
+			} else if (op == VARIABLE) {
+				reads[index] = variable(((ExpressionTree.Variable) node).name());
+			} else {
+				if (op != NEGATE) {
+					rights[index] = operands[--top];
+					parents[rights[index]] = index;
+				}
+				lefts[index] = operands[--top];
+				parents[lefts[index]] = index;
+			}
+			if (top == operands.length) {
+				operands = Arrays.copyOf(operands, 2 * top);
+			}
+			operands[top++] = index;
+		}
+	}
+
+	private void push(ExpressionTree.Node node, boolean visited, int depth) {
+		if (depth == work.length) {
+			work = Arrays.copyOf(work, 2 * depth);
+			expanded = Arrays.copyOf(expanded, 2 * depth);
+		}
+		work[depth] = node;
+		expanded[depth] = visited;
+	}
+
+	private int node(byte op, int expression) {
+		if (nodeCount == ops.length) {
+			int length = 2 * nodeCount;
+			ops = Arrays.copyOf(ops, length);
+			lefts = Arrays.copyOf(lefts, length);
+			rights = Arrays.copyOf(rights, length);
+			parents = Arrays.copyOf(parents, length);
+			reads = Arrays.copyOf(reads, length);
+			owners = Arrays.copyOf(owners, length);
+			values = Arrays.copyOf(values, length);
+			dirty = Arrays.copyOf(dirty, length);
+		}
+		int index = nodeCount++;
+		ops[index] = op;
+		lefts[index] = rights[index] = parents[index] = reads[index] = -1;
+		owners[index] = expression;
+		values[index] = 0;
+		dirty[index] = true;
+		return index;
+	}
+
+	private int variable(String name) {
+		// The number of the variable (a new one if it hasn't been seen).
+		int variable = numbers.find(name, -1);
+		if (variable < 0) {
+			variable = variableCount++;
+			if (variable == names.length) {
+				names = Arrays.copyOf(names, 2 * variable);
+				current = Arrays.copyOf(current, 2 * variable);
+				defined = Arrays.copyOf(defined, 2 * variable);
+				readers = Arrays.copyOf(readers, 2 * variable);
+				readerCounts = Arrays.copyOf(readerCounts, 2 * variable);
+				definitions = Arrays.copyOf(definitions, 2 * variable);
+			}
+			names[variable] = name;
+			defined[variable] = symbols.contains(name);
+			current[variable] = defined[variable] ? symbols.find(name) : 0;
+			readers[variable] = new int[2];
+			readerCounts[variable] = 0;
+			definitions[variable] = -1;
+			numbers.add(name, variable);
+		}
+		return variable;
+	}
+
+	private void addReader(int variable, int node) {
+		int count = readerCounts[variable];
+		if (count == readers[variable].length) {
+			readers[variable] = Arrays.copyOf(readers[variable], 2 * count);
+		}
+		readers[variable][count] = node;
+		readerCounts[variable] = count + 1;
+	}
+
+	private boolean reaches(int first, int end, int defined) {
+
+		// True if the nodes from first to end read the variable, directly
+		// or through the definitions of the variables they read.
+
+		visit++;
+		int[] stack = new int[16];
+		int depth = 0;
+		for (int node = first; node < end; node++) {
+			if (ops[node] == VARIABLE) {
+				if (depth == stack.length) stack = Arrays.copyOf(stack, 2 * depth);
+				stack[depth++] = reads[node];
+			}
+		}
+		if (visits.length < variableCount) {
+			visits = Arrays.copyOf(visits, Math.max(variableCount, 2 * visits.length));
+		}
+		while (depth > 0) {
+			int variable = stack[--depth];
+			if (variable == defined) {
+				return true;
+			}
+			int definition = definitions[variable];
+			if (visits[variable] == visit || definition < 0) {
+				continue;
+			}
+			visits[variable] = visit;
+			for (int node = firsts[definition]; node <= roots[definition]; node++) {
+				if (ops[node] == VARIABLE) {
+					if (depth == stack.length) stack = Arrays.copyOf(stack, 2 * depth);
+					stack[depth++] = reads[node];
+				}
+			}
+		}
+		return false;
+	}
+
+	private void raise(int definition) {
+
+		// Raises the levels of the expressions that read the variable the
+		// definition defines (and of those that read theirs, and so on) to
+		// above its level, as when a definition is added after its readers.
+
+		int[] stack = { definition };
+		int depth = 1;
+		while (depth > 0) {
+			int expression = stack[--depth];
+			int variable = targets[expression];
+			for (int i = 0; i < readerCounts[variable]; i++) {
+				int reader = owners[readers[variable][i]];
+				if (levels[reader] <= levels[expression]) {
+					levels[reader] = levels[expression] + 1;
+					if (targets[reader] >= 0) {
+						if (depth == stack.length) stack = Arrays.copyOf(stack, 2 * depth + 1);
+						stack[depth++] = reader;
+					}
+				}
+			}
+		}
+	}
+
+
+	// The symbol table: a write marks the nodes that read the variable.
+
+	@Override
+	public boolean contains(String name) {
+		return symbols.contains(name);
+	}
+
+	@Override
+	public int find(String name) {
+		return symbols.find(name);
+	}
+
+	@Override
+	public void add(String name, int value) {
+		symbols.add(name, value);
+		changed(numbers.find(name, -1), value);
+	}
+
+	@Override
+	public int merge(String name, int operand, IntBinaryOperator function) {
+		int value = symbols.merge(name, operand, function);
+		changed(numbers.find(name, -1), value);
+		return value;
+	}
+
+	private void changed(int variable, int value) {
+		if (variable < 0) {
+			return;			// Not read by any expression
+		}
+		current[variable] = value;
+		defined[variable] = true;
+		int[] nodes = readers[variable];
+		for (int i = readerCounts[variable] - 1; i >= 0; i--) {
+			int node = nodes[i];
+			for (int n = node; n >= 0 && !dirty[n]; n = parents[n]) {
+				dirty[n] = true;
+			}
+			enqueue(owners[node]);
+		}
+	}
+
+	private void enqueue(int expression) {
+		if (queued[expression]) {
+			return;
+		}
+		queued[expression] = true;
+		pendingTotal++;
+		file(expression);
+	}
+
+	private void file(int expression) {
+		int level = levels[expression];
+		if (level >= pending.length) {
+			int length = Math.max(level + 1, 2 * pending.length);
+			pending = Arrays.copyOf(pending, length);
+			pendingCounts = Arrays.copyOf(pendingCounts, length);
+			for (int i = 0; i < length; i++) {
+				if (pending[i] == null) pending[i] = new int[16];
+			}
+		}
+		int count = pendingCounts[level];
+		if (count == pending[level].length) {
+			pending[level] = Arrays.copyOf(pending[level], 2 * count);
+		}
+		pending[level][count] = expression;
+		pendingCounts[level] = count + 1;
+	}
+
+
+	public int propagate() {
+
+		// Recomputes every expression with dirty nodes, in order of level
+		// (the definitions recomputed may add more, at higher levels), and
+		// returns the number of expressions recomputed.
+
+		int expressions = 0;
+		recomputed = 0;
+		for (int level = 0; pendingTotal > 0 && level < pending.length; level++) {
+			int[] waiting = pending[level];
+			for (int i = 0; i < pendingCounts[level]; i++) {
+				int expression = waiting[i];
+				if (levels[expression] != level) {
+					// Raised since it was filed (so to a later level).
+					file(expression);
+					continue;
+				}
+				queued[expression] = false;
+				pendingTotal--;
+				recompute(expression);
+				expressions++;
+			}
+			pendingCounts[level] = 0;
+		}
+		return expressions;
+	}
+
+	private void recompute(int expression) {
+		int root = roots[expression];
+		boolean written = computed[expression] && errors[expression] == null;
+		int old = values[root];
+		computed[expression] = true;
+		try {
+			for (int node = firsts[expression]; node <= root; node++) {
+				if (dirty[node]) {
+					values[node] = compute(node);
+					dirty[node] = false;
+					recomputed++;
+				}
+			}
+		} catch (ExpressionTree.UndefinedVariable | ArithmeticException e) {
+			errors[expression] = e;
+			return;
+		}
+		errors[expression] = null;
+
+		int target = targets[expression];
+		if (target >= 0 && (!written || values[root] != old)) {
+			symbols.add(names[target], values[root]);
+			changed(target, values[root]);
+		}
+	}
+
+	private int compute(int node) throws ExpressionTree.UndefinedVariable {
+		switch (ops[node]) {
+			case VARIABLE:
+				int variable = reads[node];
+				if (!defined[variable]) {
+					throw new ExpressionTree.UndefinedVariable(names[variable]);
+				}
+				return current[variable];
+			case NEGATE:
+				return -values[lefts[node]];
+			case ADD:
+				return values[lefts[node]] + values[rights[node]];
+			case SUBTRACT:
+				return values[lefts[node]] - values[rights[node]];
+			case MULTIPLY:
+				return values[lefts[node]] * values[rights[node]];
+			case DIVIDE:
+				return values[lefts[node]] / values[rights[node]];
+			case MOD:
+				return values[lefts[node]] % values[rights[node]];
+			default:
+				return values[node];
+		}
+	}
+
+	public int value(int expression) throws ExpressionTree.UndefinedVariable {
+
+		// The current value of the expression (after a propagate(), if there
+		// is anything to recompute), or the exception evaluating it throws.
+
+		if (pendingTotal > 0) {
+			propagate();
+		}
+		Exception error = errors[expression];
+		if (error instanceof ExpressionTree.UndefinedVariable) {
+			throw (ExpressionTree.UndefinedVariable) error;
+		} else if (error != null) {
+			throw (ArithmeticException) error;
+		}
+		return values[roots[expression]];
+	}
+
+
+	// A main program that keeps a few definitions current as their inputs
+	// change, and then times changes to a graph of 100,000 expressions
+	// against evaluating all of them again.
+
+	public static void main(String[] args) throws Exception {
+		PrecedenceParser parser = new PrecedenceParser();
+		ReactiveGraph graph = new ReactiveGraph();
+		graph.add("price", 40);
+		graph.add("quantity", 3);
+		graph.add("shipping", 7);
+		graph.add("discount", 0);
+		String[] lines = {
+			"subtotal = price * quantity",
+			"total = subtotal + shipping",
+			"tax = total / 10",
+			"net = total - tax",
+			"perUnit = net / quantity",
+			"share = total / discount",
+		};
+		int[] expressions = new int[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			expressions[i] = graph.define(parser.parse(lines[i]));
+		}
+		for (String line : new String[] { "x = x + 1", "total = 1", "count++ + 1" }) {
+			try {
+				graph.define(parser.parse(line));
+			} catch (IllegalArgumentException e) {
+				System.out.println(line + ": " + e.getMessage());
+			}
+		}
+
+		String[] changes = { null, "quantity = 5", "shipping = 7", "discount = 4", "price++", "quantity -= 5" };
+		for (String change : changes) {
+			if (change != null) {
+				parser.parse(change).evaluate(graph);	// Through Variable.update and merge
+			}
+			int recomputed = graph.propagate();
+			StringBuilder values = new StringBuilder();
+			for (int i = 0; i < lines.length; i++) {
+				String name = lines[i].substring(0, lines[i].indexOf(' '));
+				values.append(name).append('=');
+				try {
+					values.append(graph.value(expressions[i])).append(' ');
+				} catch (ArithmeticException e) {
+					values.append('(').append(e.getMessage()).append(") ");
+				}
+			}
+			System.out.printf("%-14s %d expressions, %2d nodes recomputed: %s%n",
+				(change == null) ? "(defined)" : change, recomputed, graph.recomputed(), values);
+		}
+
+		// 100,000 expressions over 1,000 inputs: 80,000 definitions reading
+		// inputs, and 20,000 formulas reading those.
+
+		int inputs = 1000, definitions = 80000, formulas = 20000;
+		Random random = new Random(1);
+		IntValueHashMap symbols = new IntValueHashMap();
+		graph = new ReactiveGraph(symbols);
+		for (int i = 0; i < inputs; i++) {
+			graph.add("in" + i, random.nextInt(100));
+		}
+		ExpressionTree.Node[] trees = new ExpressionTree.Node[definitions + formulas];
+		for (int i = 0; i < definitions; i++) {
+			trees[i] = parser.parse("d" + i + " = in" + random.nextInt(inputs) + " * in" + random.nextInt(inputs)
+				+ " + in" + random.nextInt(inputs) + " % 7 - (in" + random.nextInt(inputs) + " + 3) / 2");
+		}
+		for (int i = 0; i < formulas; i++) {
+			trees[definitions + i] = parser.parse("d" + random.nextInt(definitions) + " * 3 - d"
+				+ random.nextInt(definitions) + " % 11 + in" + random.nextInt(inputs));
+		}
+		long start = System.nanoTime();
+		for (ExpressionTree.Node tree : trees) {
+			graph.define(tree);
+		}
+		graph.propagate();
+		System.out.printf("%n%d expressions defined and computed in %.1f ms%n", graph.size(), (System.nanoTime() - start) / 1e6);
+
+		for (int round = 0; round < 3; round++) {
+			int writes = 20000;
+			long expressionsRecomputed = 0, nodesRecomputed = 0;
+			start = System.nanoTime();
+			for (int i = 0; i < writes; i++) {
+				graph.add("in" + random.nextInt(inputs), random.nextInt(100));
+				expressionsRecomputed += graph.propagate();
+				nodesRecomputed += graph.recomputed();
+			}
+			long propagateTime = System.nanoTime() - start;
+
+			// Evaluating every tree again, in order (definitions first).
+			IntValueHashMap copy = new IntValueHashMap();
+			for (int i = 0; i < inputs; i++) {
+				copy.add("in" + i, symbols.find("in" + i));
+			}
+			int passes = 5;
+			start = System.nanoTime();
+			for (int pass = 0; pass < passes; pass++) {
+				for (int i = 0; i < trees.length; i++) {
+					int value = trees[i].evaluate(copy);
+					if (pass == 0 && value != graph.value(i)) {
+						throw new IllegalStateException("Different values for expression " + i);
+					}
+				}
+			}
+			long fullTime = System.nanoTime() - start;
+			System.out.printf("A change: %.1f us, %.1f expressions and %.1f nodes recomputed; everything again: %.1f ms%n",
+				propagateTime / 1e3 / writes, (double) expressionsRecomputed / writes,
+				(double) nodesRecomputed / writes, fullTime / 1e6 / passes);
+		}
+	}
+}
@@ -0,0 +1,504 @@
+import java.util.NoSuchElementException;
+import java.util.function.IntBinaryOperator;
+
+public class RpnEvaluator {
+
+	// Evaluates expressions in the RPN that Node.format() writes (and that
+	// ExpressionTree.evaluate(String) reads, with one of these): tokens
+	// separated by single spaces, with ~ for negate and +++ and --- for
+	// post-increment and -decrement.  It gives the same results and throws
+	// the same exceptions as building the tree from the tokens and
+	// evaluating it, but doesn't split the string or build a tree: the
+	// tokens are found in place, and
+	// the values are computed on an int stack.  The arrays are kept from one
+	// call to the next (and the names of variables are cached), so once they
+	// have grown to fit, evaluating allocates nothing.
+	//
+	// Building the tree first has consequences that are kept:
+	//
+	//   - an operator that needs a variable and gets something else throws
+	//     NotAVariable before anything is evaluated, and running out of
+	//     operands throws ArrayIndexOutOfBoundsException, also first;
+	//   - only the last complete subexpression is evaluated, so 'x 1 = 5'
+	//     returns 5 without assigning x;
+	//   - a token that isn't an operator and that Integer.parseInt rejects
+	//     is a variable (so two spaces in a row make a variable named "").
+	//
+	// So the tokens are checked in a first pass, which works out the shape
+	// of the tree: which variables are assigned to (and not read), which
+	// compound assignments have a right side with no side effects (and are
+	// done with a single merge, as the tree does), and where the last
+	// subexpression starts.  The second pass evaluates that subexpression
+	// in token order, which is the order the tree evaluates its nodes.
+	//
+	// An evaluator has no state shared with other instances, so each thread
+	// can use its own, and a call that fails doesn't leave anything on the
+	// stack for the next.
+
+	private static final int NUMBER = 0;		// Token kinds
+	private static final int VARIABLE = 1;
+	private static final int NEGATE = 2;
+	private static final int PRE_INCREMENT = 3;
+	private static final int PRE_DECREMENT = 4;
+	private static final int POST_INCREMENT = 5;
+	private static final int POST_DECREMENT = 6;
+	private static final int ADD = 7;
+	private static final int SUBTRACT = 8;
+	private static final int MULTIPLY = 9;
+	private static final int DIVIDE = 10;
+	private static final int MOD = 11;
+	private static final int ASSIGN = 12;
+	private static final int ADD_TO = 13;
+	private static final int SUBTRACT_FROM = 14;
+	private static final int MULTIPLY_BY = 15;
+	private static final int DIVIDE_BY = 16;
+	private static final int MOD_BY = 17;
+
+	private static final String[] OPS = {
+		null, null, "~", "++", "--", "+++", "---", "+", "-", "*", "/", "%",
+		"=", "+=", "-=", "*=", "/=", "%=",
+	};
+
+	private static final IntBinaryOperator[] COMBINE = {
+		null, null, null, null, null, null, null, null, null, null, null, null, null,
+		(value, operand) -> value + operand,
+		(value, operand) -> value - operand,
+		(value, operand) -> value * operand,
+		(value, operand) -> value / operand,
+		(value, operand) -> value % operand,
+	};
+
+	private static final int READ = 0;		// For a variable: read where it is
+	private static final int ASSIGNED = 1;		// ... or just the target of =, ++ or --
+
+	private static final int PURE = -1;		// Shapes of subexpressions that aren't
+	private static final int IMPURE = -2;		// variables (side effects or not)
+
+	private static final int CACHE = 256;		// Size of the cache of names
+
+	private CharSequence expression;
+	private int count;			// The tokens
+	private int[] kinds = new int[16];
+	private int[] values = new int[16];	// The value of a number, the target of an
+						// assignment, how a variable is used
+	private String[] names = new String[16];	// The names of variables
+	private int[] stack = new int[16];	// The values (or shapes, in the first pass)
+	private int[] firsts = new int[16];	// The first token of each subexpression
+	private String[] cache = new String[CACHE];
+
+
+	public int evaluate(CharSequence expression, SymbolTable symbols)
+			throws ExpressionTree.NotAVariable, ExpressionTree.UndefinedVariable {
+		this.expression = expression;
+		try {
+			tokenize();
+			return run(check(), symbols);
+		} finally {
+			this.expression = null;
+		}
+	}
+
+	public int evaluate(CharSequence expression)
+			throws ExpressionTree.NotAVariable, ExpressionTree.UndefinedVariable {
+		return evaluate(expression, ExpressionTree.symbols);
+	}
+
+
+	private void tokenize() {
+
+		// Finds the tokens as String.split(" ") would: an empty token
+		// between two spaces, but none after the last token.
+
+		int length = expression.length();
+		int end = length;
+		while (end > 0 && expression.charAt(end-1) == ' ') end--;
+
+		count = 0;
+		if (length > 0 && end == 0) return;	// All spaces: no tokens
+
+		int start = 0;
+		for (int i = 0; i <= end; i++) {
+			if (i == end || expression.charAt(i) == ' ') {
+				token(start, i);
+				start = i + 1;
+			}
+		}
+	}
+
+	private void token(int start, int end) {
+		if (count == kinds.length) {
+			int size = 2 * count;
+			kinds = java.util.Arrays.copyOf(kinds, size);
+			values = java.util.Arrays.copyOf(values, size);
+			names = java.util.Arrays.copyOf(names, size);
+			stack = new int[size];
+			firsts = new int[size];
+		}
+		int kind = operator(start, end);
+		if (kind == VARIABLE) {
+			// A number if Integer.parseInt would take it.
+			long value = number(start, end);
+			if (value <= Integer.MAX_VALUE) {
+				kind = NUMBER;
+				values[count] = (int) value;
+			} else {
+				names[count] = name(start, end);
+			}
+		}
+		kinds[count++] = kind;
+	}
+
+	private int operator(int start, int end) {
+		// The kind of operator the token is (VARIABLE if it isn't one).
+		int length = end - start;
+		if (length < 1 || length > 3) return VARIABLE;
+		char c = expression.charAt(start);
+		char d = (length > 1) ? expression.charAt(start+1) : 0;
+
+		if (length == 1) {
+			switch (c) {
+				case '~': return NEGATE;
+				case '+': return ADD;
+				case '-': return SUBTRACT;
+				case '*': return MULTIPLY;
+				case '/': return DIVIDE;
+				case '%': return MOD;
+				case '=': return ASSIGN;
+				default:  return VARIABLE;
+			}
+		} else if (length == 2 && d == '=') {
+			switch (c) {
+				case '+': return ADD_TO;
+				case '-': return SUBTRACT_FROM;
+				case '*': return MULTIPLY_BY;
+				case '/': return DIVIDE_BY;
+				case '%': return MOD_BY;
+				default:  return VARIABLE;
+			}
+		} else if ((c == '+' || c == '-') && d == c && (length == 2 || expression.charAt(start+2) == c)) {
+			if (c == '+') return (length == 2) ? PRE_INCREMENT : POST_INCREMENT;
+			return (length == 2) ? PRE_DECREMENT : POST_DECREMENT;
+		}
+		return VARIABLE;
+	}
+
+	private long number(int start, int end) {
+
+		// The value of the token as Integer.parseInt(token) would give it,
+		// or Long.MAX_VALUE if it would throw NumberFormatException.
+
+		if (start == end) return Long.MAX_VALUE;
+		boolean negative = false;
+		char c = expression.charAt(start);
+		if (c == '-' || c == '+') {
+			negative = c == '-';
+			if (++start == end) return Long.MAX_VALUE;
+		}
+		long limit = negative ? -(long) Integer.MIN_VALUE : Integer.MAX_VALUE;
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = Character.digit(expression.charAt(i), 10);
+			if (digit < 0) return Long.MAX_VALUE;
+			value = 10 * value + digit;
+			if (value > limit) return Long.MAX_VALUE;
+		}
+		return negative ? -value : value;
+	}
+
+	private String name(int start, int end) {
+		// The name, from the cache if it's there.
+		int hash = 0;
+		for (int i = start; i < end; i++) {
+			hash = 31 * hash + expression.charAt(i);
+		}
+		int index = (hash ^ (hash >>> 16)) & (CACHE - 1);
+		String name = cache[index];
+		if (name == null || !matches(name, start, end)) {
+			name = expression.subSequence(start, end).toString();
+			cache[index] = name;
+		}
+		return name;
+	}
+
+	private boolean matches(String name, int start, int end) {
+		if (name.length() != end - start) return false;
+		for (int i = start; i < end; i++) {
+			if (name.charAt(i - start) != expression.charAt(i)) return false;
+		}
+		return true;
+	}
+
+
+	private int check() throws ExpressionTree.NotAVariable {
+
+		// The first pass.  Keeps, for each subexpression on the stack, its
+		// shape (the token, if it is a variable, or PURE or IMPURE) and its
+		// first token, and returns the first token of the last one.  An
+		// operator that runs out of operands throws (when --top is -1), as
+		// ExpressionTree.pop does.
+
+		int[] shapes = this.stack;
+		int top = 0;
+		for (int i = 0; i < count; i++) {
+			int kind = kinds[i];
+			if (kind == NUMBER) {
+				firsts[top] = i;
+				shapes[top++] = PURE;
+			} else if (kind == VARIABLE) {
+				values[i] = READ;
+				firsts[top] = i;
+				shapes[top++] = i;
+			} else if (kind == NEGATE) {
+				int operand = shapes[--top];
+				shapes[top++] = (operand == IMPURE) ? IMPURE : PURE;
+			} else if (kind <= POST_DECREMENT) {
+				int operand = shapes[--top];
+				if (operand < 0) throw notAVariable(firsts[top], i);
+				values[operand] = ASSIGNED;
+				values[i] = operand;
+				shapes[top++] = IMPURE;
+			} else {
+				int right = shapes[--top];
+				int left = shapes[--top];
+				if (kind <= MOD) {
+					shapes[top++] = (left == IMPURE || right == IMPURE) ? IMPURE : PURE;
+				} else {
+					if (left < 0) throw notAVariable(firsts[top], firsts[top+1]);
+					if (kind == ASSIGN) {
+						values[left] = ASSIGNED;
+						values[i] = left;
+					} else {
+						// The variable is read where it is, and the result
+						// written with a merge if the right side is pure.
+						values[i] = (left << 1) | ((right == IMPURE) ? 1 : 0);
+					}
+					shapes[top++] = IMPURE;
+				}
+			}
+		}
+		return firsts[--top];
+	}
+
+	private int run(int first, SymbolTable symbols) throws ExpressionTree.UndefinedVariable {
+
+		// The second pass: evaluates tokens[first .. count) on the stack.
+
+		int[] stack = this.stack;
+		int top = 0;
+		for (int i = first; i < count; i++) {
+			int kind = kinds[i];
+			switch (kind) {
+				case NUMBER:
+					stack[top++] = values[i];
+					break;
+				case VARIABLE:
+					stack[top++] = (values[i] == READ) ? find(symbols, names[i]) : 0;
+					break;
+				case NEGATE:
+					stack[top-1] = -stack[top-1];
+					break;
+				case PRE_INCREMENT:
+					stack[top-1] = add(symbols, names[values[i]], 1);
+					break;
+				case PRE_DECREMENT:
+					stack[top-1] = add(symbols, names[values[i]], -1);
+					break;
+				case POST_INCREMENT:
+					stack[top-1] = add(symbols, names[values[i]], 1) - 1;
+					break;
+				case POST_DECREMENT:
+					stack[top-1] = add(symbols, names[values[i]], -1) + 1;
+					break;
+				case ADD:
+					top--;
+					stack[top-1] += stack[top];
+					break;
+				case SUBTRACT:
+					top--;
+					stack[top-1] -= stack[top];
+					break;
+				case MULTIPLY:
+					top--;
+					stack[top-1] *= stack[top];
+					break;
+				case DIVIDE:
+					top--;
+					stack[top-1] /= stack[top];
+					break;
+				case MOD:
+					top--;
+					stack[top-1] %= stack[top];
+					break;
+				case ASSIGN:
+					top--;
+					symbols.add(names[values[i]], stack[top]);
+					stack[top-1] = stack[top];
+					break;
+				default:
+					// A compound assignment
+					top--;
+					String name = names[values[i] >> 1];
+					if ((values[i] & 1) == 0) {
+						try {
+							stack[top-1] = symbols.merge(name, stack[top], COMBINE[kind]);
+						} catch (NoSuchElementException e) {
+							throw new ExpressionTree.UndefinedVariable(name);
+						}
+					} else {
+						stack[top-1] = COMBINE[kind].applyAsInt(stack[top-1], stack[top]);
+						symbols.add(name, stack[top-1]);
+					}
+					break;
+			}
+		}
+		return stack[0];
+	}
+
+	private static int find(SymbolTable symbols, String name) throws ExpressionTree.UndefinedVariable {
+		try {
+			return symbols.find(name);
+		} catch (NoSuchElementException e) {
+			throw new ExpressionTree.UndefinedVariable(name);
+		}
+	}
+
+	private static int add(SymbolTable symbols, String name, int delta) throws ExpressionTree.UndefinedVariable {
+		try {
+			return symbols.merge(name, delta, Integer::sum);
+		} catch (NoSuchElementException e) {
+			throw new ExpressionTree.UndefinedVariable(name);
+		}
+	}
+
+
+	private ExpressionTree.NotAVariable notAVariable(int first, int end) {
+
+		// The exception for an operand (tokens[first .. end)) that should
+		// have been a variable, with the operand formatted as the tree would.
+		// Builds the operand's tree, but only on this path.
+
+		ExpressionTree.Node[] nodes = new ExpressionTree.Node[end - first];
+		int top = 0;
+		try {
+			for (int i = first; i < end; i++) {
+				int kind = kinds[i];
+				if (kind == NUMBER) {
+					nodes[top++] = new ExpressionTree.Number(values[i]);
+				} else if (kind == VARIABLE) {
+					nodes[top++] = new ExpressionTree.Variable(names[i]);
+				} else if (kind <= POST_DECREMENT) {
+					nodes[top-1] = ExpressionTree.unary(OPS[kind], nodes[top-1]);
+				} else {
+					top--;
+					nodes[top-1] = ExpressionTree.binary(OPS[kind], nodes[top-1], nodes[top]);
+				}
+			}
+			return new ExpressionTree.NotAVariable(nodes[0]);
+		} catch (ExpressionTree.NotAVariable e) {
+			// Can't happen: the operand's own tokens have been checked.
+			throw new IllegalStateException(e);
+		}
+	}
+
+
+	// A main program that checks the evaluator against the trees of a set of
+	// expressions (evaluating their RPN), and compares the speed of evaluating
+	// the RPN text with that of evaluating the trees.
+
+	private static String result(ExpressionTree.Node tree, String rpn, RpnEvaluator evaluator) {
+		IntValueHashMap symbols = new IntValueHashMap();
+		symbols.add("a", 3);
+		symbols.add("b", -7);
+		symbols.add("c", 0);
+		String result;
+		try {
+			result = Integer.toString((evaluator != null) ? evaluator.evaluate(rpn, symbols) : tree.evaluate(symbols));
+		} catch (ExpressionTree.UndefinedVariable | ArithmeticException e) {
+			result = e.getClass().getSimpleName();
+		} catch (ExpressionTree.NotAVariable e) {
+			throw new IllegalStateException(e);
+		}
+		for (String name : new String[] { "a", "b", "c", "x", "y" }) {
+			result += " " + name + "=" + (symbols.contains(name) ? "" + symbols.find(name) : "-");
+		}
+		return result;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] expressions = {
+			"1 + 2 * 3",
+			"(a + b) * a % 5 - -b",
+			"x = a * (y = b - 1)",
+			"a++ + a++ * --b",
+			"a += (a = 5)",
+			"b -= a * 2",
+			"a / c",
+			"x + 1",
+			"c %= (x = 2)",
+			"(y = 1) + y++ + y--",
+			"-2147483647 - a * 2",
+		};
+
+		ExpressionParser parser = new ExpressionParser();
+		RpnEvaluator evaluator = new RpnEvaluator();
+		int failures = 0;
+		for (String expression : expressions) {
+			ExpressionTree.Node tree = parser.parse(expression);
+			String rpn = tree.format();
+			String expected = result(tree, rpn, null);
+			String actual = result(tree, rpn, evaluator);
+			if (!expected.equals(actual)) {
+				failures++;
+				System.out.println("FAIL " + rpn + ": " + expected + " / " + actual);
+			}
+		}
+		String[] malformed = { "a ++ ++", "1 x =", "a b + =", "+" };
+		for (String text : malformed) {
+			try {
+				evaluator.evaluate(text);
+				failures++;
+			} catch (ExpressionTree.NotAVariable | ArrayIndexOutOfBoundsException e) {
+				System.out.println(text + ": " + e);
+			}
+		}
+		System.out.println(failures == 0 ? "All expressions agree" : failures + " failures");
+
+		String[] lines = {
+			"a b + a b - * a 3 * b 5 * + 7 % +",
+			"x a b * = x 3 / +",
+			"a +++ b --- + a ~ *",
+			"1000 a * 7 + 13 %",
+		};
+		String[] infix = {
+			"(a + b) * (a - b) + (a * 3 + b * 5) % 7",
+			"(x = a * b) + x / 3",
+			"(a++ + b--) * -a",
+			"(1000 * a + 7) % 13",
+		};
+		ExpressionTree.Node[] trees = new ExpressionTree.Node[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			trees[i] = parser.parse(infix[i]);
+		}
+		IntValueHashMap symbols = new IntValueHashMap();
+		symbols.add("a", 3);
+		symbols.add("b", -7);
+		symbols.add("x", 0);
+
+		int iterations = 1000000;
+		for (int round = 0; round < 3; round++) {
+			long start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				trees[i & 3].evaluate(symbols);
+			}
+			long tree = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				evaluator.evaluate(lines[i & 3], symbols);
+			}
+			long direct = System.nanoTime() - start;
+			System.out.printf("tree %.1f ns/expression, RPN text %.1f ns/expression%n",
+				(double) tree / iterations, (double) direct / iterations);
+		}
+	}
+}
@@ -0,0 +1,477 @@
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+public class ScriptScheduler {
+
+	// Runs the statements of a script in parallel where that can't change the
+	// outcome.  Each statement's tree is walked to find the variables it reads
+	// and the variables it writes: a Variable is read, an assignment (=) writes
+	// its variable, and a compound assignment (+= etc.) or ++/-- reads and
+	// writes it.  A statement must then run after every earlier statement
+	// that writes a variable it reads or writes, and after every earlier
+	// statement that reads a variable it writes.  These are the edges of a
+	// DAG, found in one pass by remembering, for each variable, its last
+	// writer and the readers since then.
+	//
+	// A statement is ready as soon as all the statements it depends on have
+	// finished.  The calling thread, and then each task on a ForkJoinPool,
+	// runs ready statements one after another from a work list, adding the
+	// ones they make ready, and hands half of its list to a new task only
+	// when the pool can run it on an idle worker.  Statements
+	// that run at the same time
+	// touch different variables, so every variable sees the same sequence of
+	// reads and writes as when the script runs from top to bottom, and the
+	// final symbols are the same.  The symbol table must allow different names
+	// to be used by different threads at once (a ConcurrentSymbolTable, say),
+	// and the trees shouldn't be bound to a Binder.Frame.
+	//
+	// A statement that fails (with an undefined variable, say) doesn't stop
+	// the ones after it, as in HW17_Reiss, and the writes it made before it
+	// failed are among the ones its dependents wait for.
+
+	private ForkJoinPool pool;
+
+	public ScriptScheduler(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	public ScriptScheduler() {
+		this(ForkJoinPool.commonPool());
+	}
+
+
+	public static void effects(ExpressionTree.Node node, Set<String> reads, Set<String> writes) {
+
+		// Adds the names of the variables that evaluating the tree reads and
+		// writes to the two sets.
+
+		if (node instanceof ExpressionTree.Variable) {
+			reads.add(((ExpressionTree.Variable) node).name());
+
+		} else if (node instanceof ExpressionTree.UnaryAssignmentOperator) {
+			String name = ((ExpressionTree.UnaryAssignmentOperator) node).variable().name();
+			reads.add(name);
+			writes.add(name);
+
+		} else if (node instanceof ExpressionTree.UnaryOperator) {
+			effects(((ExpressionTree.UnaryOperator) node).operand(), reads, writes);
+
+		} else if (node instanceof ExpressionTree.AssignmentOperator) {
+			ExpressionTree.AssignmentOperator op = (ExpressionTree.AssignmentOperator) node;
+			String name = op.variable().name();
+			if (!(op instanceof ExpressionTree.Assign)) {
+				reads.add(name);
+			}
+			writes.add(name);
+			effects(op.right(), reads, writes);
+
+		} else if (node instanceof ExpressionTree.BinaryOperator) {
+			ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+			effects(op.left(), reads, writes);
+			effects(op.right(), reads, writes);
+		}
+	}
+
+
+	private static class Accesses {
+
+		// The statements that have used a variable so far.
+
+		int writer = -1;		// The last statement to write it
+		int[] readers = new int[4];	// The statements reading it since then
+		int count;
+		int statement = -1;		// The statement being looked at, if it uses it ...
+		boolean writes;			// ... and whether it writes it
+	}
+
+	private static class Uses {
+
+		// Finds the variables a statement uses, as effects() does, but as the
+		// Accesses of each (once each), so no sets of names are needed.
+
+		LinearProbingHashMap<String, Accesses> variables = new LinearProbingHashMap<>();
+		Accesses[] used = new Accesses[8];
+		int count;
+		int statement;
+
+		void find(int statement, ExpressionTree.Node node) {
+			this.statement = statement;
+			this.count = 0;
+			visit(node);
+		}
+
+		private void visit(ExpressionTree.Node node) {
+			if (node instanceof ExpressionTree.Variable) {
+				use(((ExpressionTree.Variable) node).name(), false);
+
+			} else if (node instanceof ExpressionTree.UnaryAssignmentOperator) {
+				use(((ExpressionTree.UnaryAssignmentOperator) node).variable().name(), true);
+
+			} else if (node instanceof ExpressionTree.UnaryOperator) {
+				visit(((ExpressionTree.UnaryOperator) node).operand());
+
+			} else if (node instanceof ExpressionTree.AssignmentOperator) {
+				ExpressionTree.AssignmentOperator op = (ExpressionTree.AssignmentOperator) node;
+				use(op.variable().name(), true);
+				visit(op.right());
+
+			} else if (node instanceof ExpressionTree.BinaryOperator) {
+				ExpressionTree.BinaryOperator op = (ExpressionTree.BinaryOperator) node;
+				visit(op.left());
+				visit(op.right());
+			}
+		}
+
+		private void use(String name, boolean write) {
+			Accesses accesses = variables.find(name);
+			if (accesses == null) {
+				accesses = new Accesses();
+				variables.add(name, accesses);
+			}
+			if (accesses.statement != statement) {
+				accesses.statement = statement;
+				accesses.writes = false;
+				if (count == used.length) used = Arrays.copyOf(used, 2 * count);
+				used[count++] = accesses;
+			}
+			accesses.writes |= write;
+		}
+	}
+
+	private static class Graph {
+
+		// The edges of the DAG, in one array: the statements that have to
+		// wait for statement i are targets[first[i] .. first[i+1]), and
+		// statement j waits for waits[j] statements.
+
+		int[] first;
+		int[] targets;
+		int[] waits;
+
+		private int[] froms = new int[16];	// The edges as they are found
+		private int[] tos = new int[16];
+		private int count;
+		private int[] last;			// The last statement each one got an edge to
+
+		Graph(int n) {
+			waits = new int[n];
+			last = new int[n];
+			Arrays.fill(last, -1);
+		}
+
+		void edge(int from, int to) {
+			// Adds the edge from -> to (once).  The edges to a statement are
+			// all added before those to the next, so a repeat is always the
+			// last edge from its statement.
+			if (from == to || last[from] == to) return;
+			last[from] = to;
+			if (count == froms.length) {
+				froms = Arrays.copyOf(froms, 2 * count);
+				tos = Arrays.copyOf(tos, 2 * count);
+			}
+			froms[count] = from;
+			tos[count++] = to;
+			waits[to]++;
+		}
+
+		void finish() {
+			// Sorts the edges by the statement they are from.
+			int n = waits.length;
+			first = new int[n + 1];
+			for (int e = 0; e < count; e++) first[froms[e] + 1]++;
+			for (int i = 0; i < n; i++) first[i + 1] += first[i];
+			targets = new int[count];
+			int[] next = Arrays.copyOf(first, n);
+			for (int e = 0; e < count; e++) targets[next[froms[e]]++] = tos[e];
+			froms = tos = last = null;
+		}
+	}
+
+	private static Graph graph(ExpressionTree.Node[] statements) {
+
+		// Returns, for each statement, the later statements that have to
+		// wait for it.
+
+		int n = statements.length;
+		Graph graph = new Graph(n);
+		Uses uses = new Uses();
+		for (int j = 0; j < n; j++) {
+			if (statements[j] == null) continue;
+			uses.find(j, statements[j]);
+
+			for (int u = 0; u < uses.count; u++) {
+				Accesses accesses = uses.used[u];
+				if (accesses.writer >= 0) {
+					graph.edge(accesses.writer, j);
+				}
+				if (accesses.writes) {
+					for (int k = 0; k < accesses.count; k++) {
+						graph.edge(accesses.readers[k], j);
+					}
+					accesses.writer = j;
+					accesses.count = 0;
+				} else {
+					if (accesses.count == accesses.readers.length) {
+						accesses.readers = Arrays.copyOf(accesses.readers, 2 * accesses.count);
+					}
+					accesses.readers[accesses.count++] = j;
+				}
+			}
+		}
+		graph.finish();
+		return graph;
+	}
+
+
+	private boolean idle() {
+		// Whether a task handed to the pool now would soon be started by a
+		// worker with nothing else to do.
+		Thread thread = Thread.currentThread();
+		if (thread instanceof ForkJoinWorkerThread && ((ForkJoinWorkerThread) thread).getPool() == pool) {
+			return ForkJoinTask.getSurplusQueuedTaskCount() <= 0;
+		}
+		return pool.getActiveThreadCount() < pool.getParallelism() && !pool.hasQueuedSubmissions();
+	}
+
+	public String[] run(final ExpressionTree.Node[] statements, final SymbolTable symbols)
+			throws InterruptedException {
+
+		// Runs the statements (a null statement does nothing) and returns the
+		// value of each, or the message of the error it gave.
+
+		final int n = statements.length;
+		Graph graph = graph(statements);
+		final int[] first = graph.first;
+		final int[] targets = graph.targets;
+		final AtomicIntegerArray pending = new AtomicIntegerArray(graph.waits);
+
+		final String[] results = new String[n];
+		if (n == 0) return results;
+		final AtomicInteger remaining = new AtomicInteger(n);
+		final CountDownLatch done = new CountDownLatch(1);
+		final boolean parallel = pool.getParallelism() > 1;
+		class Step implements Runnable {
+			private int[] work;	// work[0 .. count) are ready to run
+			private int count;
+
+			Step(int[] work, int count) {
+				this.work = work;
+				this.count = count;
+			}
+
+			@Override
+			public void run() {
+
+				// Runs the ready statements, and the ones they make ready,
+				// until there are none left.  They are run first in, first
+				// out, which keeps close to the order of the script (and of
+				// the trees in memory).  While other workers are idle, the
+				// later half of the list is handed to a new task.
+				// evaluate() doesn't throw: if a task did, the pool would drop
+				// the tasks it had started, and run() would never return.
+
+				int[] work = this.work;
+				int head = 0, tail = this.count;	// work[head .. tail) are to run
+				int finished = 0;
+				while (head < tail) {
+					int i = work[head++];
+					results[i] = evaluate(statements[i], symbols);
+					finished++;
+					for (int e = first[i]; e < first[i+1]; e++) {
+						int j = targets[e];
+						if (pending.decrementAndGet(j) == 0) {
+							if (tail == work.length) {
+								if (head > 0) {
+									System.arraycopy(work, head, work, 0, tail - head);
+									tail -= head;
+									head = 0;
+								} else {
+									work = Arrays.copyOf(work, 2 * tail);
+								}
+							}
+							work[tail++] = j;
+						}
+					}
+					if (tail - head > 1 && parallel && idle()) {
+						int half = (tail - head) / 2;
+						pool.execute(new Step(Arrays.copyOfRange(work, tail - half, tail), half));
+						tail -= half;
+					}
+				}
+				if (remaining.addAndGet(-finished) == 0) {
+					done.countDown();
+				}
+			}
+		}
+
+
+		// The statements that are ready are found before any are started,
+		// since a running statement may take its successors' counts to zero.
+		// This thread runs them, rather than waiting for a worker to, and
+		// so runs the whole script if the pool has only one worker.
+
+		int[] ready = new int[n];
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (graph.waits[i] == 0) ready[count++] = i;
+		}
+		new Step(ready, count).run();
+		done.await();
+		return results;
+	}
+
+	public static String[] runSequentially(ExpressionTree.Node[] statements, SymbolTable symbols) {
+		// The same, from top to bottom on this thread.
+		String[] results = new String[statements.length];
+		for (int i = 0; i < statements.length; i++) {
+			results[i] = evaluate(statements[i], symbols);
+		}
+		return results;
+	}
+
+	private static String evaluate(ExpressionTree.Node statement, SymbolTable symbols) {
+		if (statement == null) return null;
+		try {
+			return Integer.toString(statement.evaluate(symbols));
+		} catch (ExpressionTree.UndefinedVariable e) {
+			return e.getMessage();
+		} catch (ArithmeticException e) {
+			return "Division by zero";
+		} catch (RuntimeException | StackOverflowError e) {
+			// A missing operand (for "x * +y", say) throws a
+			// NullPointerException, and a deeply nested statement may
+			// overflow the stack.
+			return e.toString();
+		}
+	}
+
+	public static ExpressionTree.Node[] parse(String[] lines) {
+		// Parses a script, leaving null for a line that doesn't parse.
+		ExpressionParser parser = new ExpressionParser();
+		ExpressionTree.Node[] statements = new ExpressionTree.Node[lines.length];
+		for (int i = 0; i < lines.length; i++) {
+			try {
+				statements[i] = parser.parse(lines[i]);
+			} catch (ExpressionParser.SyntaxError | ExpressionTree.NotAVariable
+					| ExpressionTree.UndefinedVariable | NumberFormatException e) {
+				statements[i] = null;
+			}
+		}
+		return statements;
+	}
+
+
+	// A main program that checks that scheduled runs of random scripts end
+	// with the same symbols and results as sequential runs, with any number
+	// of workers, and then times a script with a lot of independent work.
+
+	private static String[] script(Random random, int length, int variables) {
+		String[] templates = {
+			"%1$s = %3$d", "%1$s = %2$s * 2 + %3$d", "%1$s += %2$s", "%1$s++ - --%2$s",
+			"%2$s %% (%1$s - %3$d)", "(%1$s = %2$s) + (%2$s -= %3$d)", "%1$s / %2$s + %1$s",
+			"%1$s *= (%2$s += 1) - %2$s--", "-%2$s + %3$d * %1$s", "%1$s = (",
+			"%1$s * +%2$s", "(%1$s = %3$d) - +%2$s",
+		};
+		String[] lines = new String[length];
+		for (int i = 0; i < length; i++) {
+			String a = "v" + random.nextInt(variables);
+			String b = "v" + random.nextInt(variables);
+			lines[i] = String.format(templates[random.nextInt(templates.length)], a, b, random.nextInt(7));
+		}
+		return lines;
+	}
+
+	private static String state(SymbolTable symbols, int variables) {
+		StringBuilder state = new StringBuilder();
+		for (int v = 0; v < variables; v++) {
+			String name = "v" + v;
+			state.append(symbols.contains(name) ? Integer.toString(symbols.find(name)) : "-").append(' ');
+		}
+		return state.toString();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int failures = 0;
+		for (int workers = 1; workers <= 8; workers *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(workers);
+			ScriptScheduler scheduler = new ScriptScheduler(pool);
+			for (int seed = 0; seed < 200; seed++) {
+				int variables = 2 + seed % 30;
+				ExpressionTree.Node[] statements = parse(script(new Random(seed), 200, variables));
+
+				ConcurrentSymbolTable expected = new ConcurrentSymbolTable();
+				String[] expectedResults = runSequentially(statements, expected);
+				ConcurrentSymbolTable actual = new ConcurrentSymbolTable();
+				String[] actualResults = scheduler.run(statements, actual);
+
+				if (!state(expected, variables).equals(state(actual, variables))
+						|| !Arrays.equals(expectedResults, actualResults)) {
+					System.out.println("MISMATCH with " + workers + " workers, seed " + seed);
+					failures++;
+				}
+			}
+			pool.shutdown();
+		}
+
+		// A statement that throws something other than the errors above
+		// must still let the ones that depend on it run.
+
+		String[] script = { "x = 1", "x * +y", "x = x + 1", "x" };
+		ForkJoinPool two = new ForkJoinPool(2);
+		ConcurrentSymbolTable symbols = new ConcurrentSymbolTable();
+		String[] results = new ScriptScheduler(two).run(parse(script), symbols);
+		two.shutdown();
+		if (!"2".equals(results[3]) || symbols.find("x") != 2) {
+			System.out.println("MISMATCH running " + Arrays.toString(script) + ": " + Arrays.toString(results));
+			failures++;
+		}
+
+		System.out.println(failures == 0 ? "Scheduled runs match sequential runs" : failures + " mismatches");
+		if (failures != 0) System.exit(1);
+
+		// Many independent chains of dependent statements.
+
+		int chains = 64, length = 20000;
+		String[] lines = new String[length];
+		for (int i = 0; i < length; i++) {
+			String v = "c" + i % chains;
+			lines[i] = (i < chains) ? v + " = " + i : v + " = (" + v + " * 31 + " + i + ") % 1000003";
+		}
+		ExpressionTree.Node[] statements = parse(lines);
+		System.out.println(Runtime.getRuntime().availableProcessors() + " processor(s)");
+
+		// The best of many runs, after the code has been compiled.  With one
+		// worker there is no parallelism, so its ratio to the sequential
+		// time is the cost of scheduling.
+
+		int runs = 200;
+		long sequential = Long.MAX_VALUE;
+		for (int run = 0; run < runs; run++) {
+			long start = System.nanoTime();
+			runSequentially(statements, new ConcurrentSymbolTable());
+			sequential = Math.min(sequential, System.nanoTime() - start);
+		}
+		System.out.printf("sequential: %.2f us%n", sequential / 1e3);
+		for (int workers = 1; workers <= 8; workers *= 2) {
+			ForkJoinPool pool = new ForkJoinPool(workers);
+			ScriptScheduler scheduler = new ScriptScheduler(pool);
+			long scheduled = Long.MAX_VALUE;
+			for (int run = 0; run < runs; run++) {
+				long start = System.nanoTime();
+				scheduler.run(statements, new ConcurrentSymbolTable());
+				scheduled = Math.min(scheduled, System.nanoTime() - start);
+			}
+			pool.shutdown();
+			System.out.printf("%d worker(s): %.2f us scheduled (%.2fx sequential)%n",
+				workers, scheduled / 1e3, (double) scheduled / sequential);
+		}
+	}
+}
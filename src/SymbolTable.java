@@ -0,0 +1,27 @@
+import java.util.function.IntBinaryOperator;
+
+public interface SymbolTable {
+
+	// The operations that evaluating an expression tree needs from its
+	// symbol table: a map from variable names to int values.  find and
+	// merge throw NoSuchElementException if the name has no value.
+
+	public boolean contains(String name);
+
+	public int find(String name);
+
+	public default int find(String name, int missing) {
+		// The value of the name, or missing if it has none, without the
+		// cost of an exception.  A table that can look the name up once
+		// should override this.
+		return contains(name) ? find(name) : missing;
+	}
+
+	public void add(String name, int value);
+
+	public int merge(String name, int operand, IntBinaryOperator function);
+	// Replaces the value v of the name with function(v, operand) and returns
+	// the new value, probing for the name only once.  In a table that can
+	// be shared between threads this is atomic, so that concurrent x += 1's
+	// never lose an update.
+}
@@ -0,0 +1,21 @@
+public interface TokenCursor {
+
+	// The operations the parser needs from a scanner: a cursor that is moved
+	// from token to token, and that describes the token it is on without
+	// making a Token object for it.  ExpressionScanner scans a line held in
+	// memory; ExpressionStreamScanner scans lines pulled from a Reader.
+
+	public Token.Kind advance();
+	// Moves the cursor to the next token and returns its kind (END if there
+	// are no more).
+
+	public int intValue();
+	// The value of the NUMBER at the cursor.
+
+	public String text();
+	// The text of the token at the cursor.
+
+	public int position();
+	// Where the token at the cursor starts, relative to the start of the line
+	// (this is the position reported in a SyntaxError).
+}
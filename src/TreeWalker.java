@@ -0,0 +1,372 @@
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+
+public class TreeWalker {
+
+	// Evaluates and formats expression trees without recursion, so a tree
+	// can be as deep as memory allows: a generated a + a + a + ... with a
+	// million operands is a left-leaning chain a million nodes deep, which
+	// overflows the stack in Node.evaluate() and Node.format().
+	//
+	// The walk is post-order, with the pending operators on a stack of
+	// nodes (each with the step that finishes it) and the values of the
+	// left operands evaluated so far on a stack of ints.  The stacks are kept
+	// between walks, so a walker allocates nothing once they are big enough;
+	// like the parsers, a walker must not be used by two threads at once.
+	//
+	// The results, the exceptions and the order of the updates to the symbol
+	// table are those of Node.evaluate(): the left operand is evaluated
+	// before the right, x op= y reads x first unless y has no side effects
+	// (then x is read and written in one merge, as Variable.update does),
+	// and x++ and x-- are a single add that returns the old value.  The
+	// nodes it doesn't know (a Dag or Shared node of CommonSubexpressions,
+	// say, which keep their values in a Scratch it doesn't have) are
+	// evaluated by their own evaluate(), and so are the leaves.
+
+	private static final int VISIT = 0;		// The steps for a node on the stack
+	private static final int NEGATE = 1;
+	private static final int ADD = 2;
+	private static final int SUBTRACT = 3;
+	private static final int MULTIPLY = 4;
+	private static final int DIVIDE = 5;
+	private static final int MOD = 6;
+	private static final int ASSIGN = 7;		// x = y
+	private static final int COMBINE = 8;		// x op= y, with x's value on the value stack
+	private static final int EMIT = 9;		// Format the node's operator
+	private static final int LEFT = 16;		// ... with the left operand still being evaluated
+
+	private ExpressionTree.Node[] nodes = new ExpressionTree.Node[64];
+	private int[] steps = new int[64];
+	private int depth;
+	private int[] values = new int[64];
+	private int count;
+
+
+	public int evaluate(ExpressionTree.Node root, SymbolTable symbols) throws ExpressionTree.UndefinedVariable {
+		depth = 0;
+		count = 0;
+		try {
+			return walk(root, symbols);
+		} finally {
+			// Don't keep the tree alive.
+			Arrays.fill(nodes, 0, depth, null);
+		}
+	}
+
+	public int evaluate(ExpressionTree.Node root) throws ExpressionTree.UndefinedVariable {
+		return evaluate(root, ExpressionTree.symbols);
+	}
+
+	private int walk(ExpressionTree.Node root, SymbolTable symbols) throws ExpressionTree.UndefinedVariable {
+
+		// Evaluates the subtree on top of whatever is on the stacks already,
+		// and leaves them as they were.  It goes down the left operands,
+		// pushing each operator with the step that finishes it, to a node it
+		// can evaluate at once, and then back up with that value (kept in a
+		// local, not on the value stack) until it reaches an operator whose
+		// right operand is still to be walked.  Nodes are told apart by their
+		// exact class, which is quicker than a chain of instanceofs, and
+		// leaves a subclass that overrides evaluate() to its own.
+
+		int base = depth;
+		ExpressionTree.Node node = root;
+		int value;
+		while (true) {
+			descend:
+			while (true) {
+				Class<?> kind = node.getClass();	// A null operand throws, as in Node.evaluate()
+				int step;
+				if (kind == ExpressionTree.Number.class) {
+					value = ((ExpressionTree.Number) node).value();
+					break descend;
+				} else if (kind == ExpressionTree.Variable.class) {
+					String name = ((ExpressionTree.Variable) node).name();
+					try {
+						value = symbols.find(name);
+					} catch (NoSuchElementException e) {
+						throw new ExpressionTree.UndefinedVariable(name);
+					}
+					break descend;
+				} else if (kind == ExpressionTree.Add.class) {
+					step = ADD;
+				} else if (kind == ExpressionTree.Subtract.class) {
+					step = SUBTRACT;
+				} else if (kind == ExpressionTree.Multiply.class) {
+					step = MULTIPLY;
+				} else if (kind == ExpressionTree.Divide.class) {
+					step = DIVIDE;
+				} else if (kind == ExpressionTree.Mod.class) {
+					step = MOD;
+				} else if (kind == ExpressionTree.Negate.class) {
+					push(node, NEGATE);
+					node = ((ExpressionTree.Negate) node).operand();
+					continue;
+				} else if (kind == ExpressionTree.Assign.class) {
+					push(node, ASSIGN);
+					node = ((ExpressionTree.Assign) node).right();
+					continue;
+				} else if (kind == ExpressionTree.AddTo.class || kind == ExpressionTree.SubtractFrom.class
+						|| kind == ExpressionTree.MultiplyBy.class || kind == ExpressionTree.DivideBy.class
+						|| kind == ExpressionTree.ModBy.class) {
+					ExpressionTree.AssignmentOperator op = (ExpressionTree.AssignmentOperator) node;
+					ExpressionTree.Variable variable = op.variable();
+					if (!op.right().hasSideEffects() && variable.getClass() == ExpressionTree.Variable.class) {
+						value = update(variable, op, symbols);
+						break descend;
+					}
+					// As AssignmentOperator.evaluate: the variable, then the
+					// right side.  (A variable bound by Binder reads its slot,
+					// which a pure right side can't change, so it is read
+					// first in either case.)
+					value(variable.evaluate(symbols));
+					push(node, COMBINE);
+					node = op.right();
+					continue;
+				} else {
+					// ++ or -- (which only add to a variable), or a node we
+					// don't know.
+					value = node.evaluate(symbols);
+					break descend;
+				}
+				push(node, step | LEFT);
+				node = ((ExpressionTree.BinaryOperator) node).left();
+			}
+
+			while (true) {
+				if (depth == base) {
+					return value;
+				}
+				int step = steps[depth - 1];
+				ExpressionTree.Node parent = nodes[depth - 1];
+				if ((step & LEFT) != 0) {
+					// The left operand is done: keep it, and walk the right.
+					steps[depth - 1] = step & ~LEFT;
+					value(value);
+					node = ((ExpressionTree.BinaryOperator) parent).right();
+					break;
+				}
+				nodes[--depth] = null;
+				switch (step) {
+					case NEGATE:
+						value = -value;
+						break;
+					case ADD:
+						value = values[--count] + value;
+						break;
+					case SUBTRACT:
+						value = values[--count] - value;
+						break;
+					case MULTIPLY:
+						value = values[--count] * value;
+						break;
+					case DIVIDE:
+						value = values[--count] / value;
+						break;
+					case MOD:
+						value = values[--count] % value;
+						break;
+					case ASSIGN:
+						((ExpressionTree.Assign) parent).variable().update(symbols, value);
+						break;
+					case COMBINE:
+						ExpressionTree.AssignmentOperator op = (ExpressionTree.AssignmentOperator) parent;
+						value = op.combine(values[--count], value);
+						op.variable().update(symbols, value);
+						break;
+					default:
+						throw new IllegalStateException("Bad step " + step);
+				}
+			}
+		}
+	}
+
+	private int update(ExpressionTree.Variable variable, ExpressionTree.AssignmentOperator op, SymbolTable symbols)
+			throws ExpressionTree.UndefinedVariable {
+
+		// Variable.update(symbols, op), with the right side walked.  The
+		// right side has no assignments, so this nests at most once.
+
+		String name = variable.name();
+		int operand;
+		try {
+			operand = walk(op.right(), symbols);
+		} catch (ExpressionTree.UndefinedVariable | ArithmeticException e) {
+			// The variable itself is checked first when done in order.
+			if (!symbols.contains(name)) {
+				throw new ExpressionTree.UndefinedVariable(name);
+			}
+			throw e;
+		}
+
+		try {
+			return symbols.merge(name, operand, op);
+		} catch (NoSuchElementException e) {
+			throw new ExpressionTree.UndefinedVariable(name);
+		}
+	}
+
+
+	public String format(ExpressionTree.Node root) {
+
+		// The RPN of the tree, as Node.format() writes it: the tokens in
+		// post-order, separated by spaces.  The Dag and Shared nodes of
+		// CommonSubexpressions format as the subtrees they hold.
+
+		StringBuilder text = new StringBuilder();
+		boolean first = true;
+		depth = 0;
+		push(root, VISIT);
+		try {
+			while (depth > 0) {
+				ExpressionTree.Node node = nodes[--depth];
+				nodes[depth] = null;
+				String token;
+				if (steps[depth] == EMIT) {
+					token = (node instanceof ExpressionTree.UnaryOperator)
+						? ((ExpressionTree.UnaryOperator) node).op() : ((ExpressionTree.BinaryOperator) node).op();
+				} else if (node instanceof CommonSubexpressions.Dag) {
+					push(((CommonSubexpressions.Dag) node).root(), VISIT);
+					continue;
+				} else if (node instanceof CommonSubexpressions.Shared) {
+					push(((CommonSubexpressions.Shared) node).node(), VISIT);
+					continue;
+				} else if (node instanceof ExpressionTree.UnaryOperator) {
+					push(node, EMIT);
+					push(((ExpressionTree.UnaryOperator) node).operand(), VISIT);
+					continue;
+				} else if (node instanceof ExpressionTree.BinaryOperator) {
+					push(node, EMIT);
+					push(((ExpressionTree.BinaryOperator) node).right(), VISIT);
+					push(((ExpressionTree.BinaryOperator) node).left(), VISIT);
+					continue;
+				} else {
+					token = node.format();
+				}
+				if (!first) {
+					text.append(' ');
+				}
+				text.append(token);
+				first = false;
+			}
+		} finally {
+			Arrays.fill(nodes, 0, depth, null);
+		}
+		return text.toString();
+	}
+
+
+	private void push(ExpressionTree.Node node, int step) {
+		if (depth == nodes.length) {
+			nodes = Arrays.copyOf(nodes, 2 * depth);
+			steps = Arrays.copyOf(steps, 2 * depth);
+		}
+		nodes[depth] = node;
+		steps[depth++] = step;
+	}
+
+	private void value(int value) {
+		if (count == values.length) {
+			values = Arrays.copyOf(values, 2 * count);
+		}
+		values[count++] = value;
+	}
+
+
+	// A main program that checks that the walker agrees with the trees on
+	// some expressions, walks a chain too long for them, and compares their
+	// speed.
+
+	private static String outcome(ExpressionTree.Node tree, boolean walked, IntValueHashMap symbols) {
+		try {
+			int value = walked ? new TreeWalker().evaluate(tree, symbols) : tree.evaluate(symbols);
+			return value + " " + symbols.find("x") + " " + symbols.find("y");
+		} catch (Exception e) {
+			return e.toString();
+		}
+	}
+
+	private static IntValueHashMap inputs() {
+		IntValueHashMap symbols = new IntValueHashMap();
+		symbols.add("x", 7);
+		symbols.add("y", -3);
+		symbols.add("z", 0);
+		return symbols;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String[] lines = {
+			"1 + 2 * 3 - 4 / 5 % 6",
+			"x++ + x++ * x-- - --y",
+			"x += y++ * (y = 4) - x",
+			"x *= y - 2 * (x - y)",
+			"x -= w",
+			"x /= z",
+			"x %= w + (y = 1)",
+			"-(x = y = z)",
+			"(x = 2) * (y -= x++) + -(-x)",
+			"x / (y + 3)",
+			"+x",
+		};
+
+		PrecedenceParser parser = new PrecedenceParser();
+		TreeWalker walker = new TreeWalker();
+		int failures = 0;
+		for (String line : lines) {
+			String expected, actual;
+			try {
+				ExpressionTree.Node tree = parser.parse(line);
+				expected = tree.format() + " => " + outcome(tree, false, inputs());
+				actual = walker.format(tree) + " => " + outcome(tree, true, inputs());
+			} catch (Exception e) {
+				expected = actual = e.toString();
+			}
+			if (!expected.equals(actual)) {
+				failures++;
+			}
+			System.out.printf("%-32s %-45s %s%n", line, actual, expected.equals(actual) ? "" : "EXPECTED " + expected);
+		}
+		System.out.println(failures == 0 ? "The walker agrees with the trees" : failures + " differences");
+
+		int length = 1000000;
+		StringBuilder chain = new StringBuilder("x");
+		for (int i = 1; i < length; i++) chain.append(i % 2 == 0 ? " + x" : " - y");
+		ExpressionTree.Node deep = parser.parse(chain.toString());
+		long start = System.nanoTime();
+		int value = walker.evaluate(deep, inputs());
+		int formatted = walker.format(deep).length();
+		System.out.printf("Walked a chain of %d operands in %.1f ms: %d, %d characters of RPN%n",
+			length, (System.nanoTime() - start) / 1e6, value, formatted);
+		try {
+			deep.evaluate(inputs());
+			System.out.println("Node.evaluate() managed it too");
+		} catch (StackOverflowError e) {
+			System.out.println("Node.evaluate() overflows the stack");
+		}
+
+		String[][] corpora = {
+			{ "short", "x * 3 + y" },
+			{ "long", "x + y * 3 - z % 7 + x * y - 12 / (y + 4) + z - x * y + x % 5 - y + 7 * z" },
+			{ "nested", "x - (y * (z + (x - (y * (z + (x - (y * (z + (x - 1)))))))))" },
+			{ "assign", "z += (y = x * 2) - (x -= ++z * 2) + y--" },
+		};
+		int iterations = 1000000;
+		IntValueHashMap symbols = inputs();
+		for (int round = 0; round < 3; round++) {
+			for (String[] corpus : corpora) {
+				ExpressionTree.Node tree = parser.parse(corpus[1]);
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					tree.evaluate(symbols);
+				}
+				long recursiveTime = System.nanoTime() - start;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					walker.evaluate(tree, symbols);
+				}
+				long walkedTime = System.nanoTime() - start;
+				System.out.printf("%-7s recursive %.1f ns, walked %.1f ns%n", corpus[0],
+					(double) recursiveTime / iterations, (double) walkedTime / iterations);
+			}
+		}
+	}
+}